@@ -17,19 +17,26 @@
 package nl.basjes.modbus.device.digitalpetri
 
 import com.digitalpetri.modbus.client.ModbusClient
+import com.digitalpetri.modbus.pdu.ReadCoilsRequest
+import com.digitalpetri.modbus.pdu.ReadDiscreteInputsRequest
 import com.digitalpetri.modbus.pdu.ReadHoldingRegistersRequest
 import com.digitalpetri.modbus.pdu.ReadInputRegistersRequest
+import com.digitalpetri.modbus.pdu.ReadWriteMultipleRegistersRequest
+import com.digitalpetri.modbus.pdu.WriteMultipleRegistersRequest
 import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.DiscreteBlock
 import nl.basjes.modbus.device.api.FunctionCode.Companion.forReading
 import nl.basjes.modbus.device.api.FunctionCode.READ_COIL
 import nl.basjes.modbus.device.api.FunctionCode.READ_DISCRETE_INPUT
 import nl.basjes.modbus.device.api.FunctionCode.READ_HOLDING_REGISTERS
 import nl.basjes.modbus.device.api.FunctionCode.READ_INPUT_REGISTERS
+import nl.basjes.modbus.device.api.FunctionCode.READ_WRITE_MULTIPLE_REGISTERS
+import nl.basjes.modbus.device.api.FunctionCode.WRITE_MULTIPLE_HOLDING_REGISTERS
 import nl.basjes.modbus.device.api.ModbusDevice
 import nl.basjes.modbus.device.api.RegisterBlock
-import nl.basjes.modbus.device.api.RegisterValue
 import nl.basjes.modbus.device.exception.ModbusException
 import nl.basjes.modbus.device.exception.NotYetImplementedException
+import nl.basjes.modbus.device.exception.createReadErrorDiscreteBlock
 import nl.basjes.modbus.device.exception.createReadErrorRegisterBlock
 import com.digitalpetri.modbus.exceptions.ModbusException as DPModbusException
 import com.digitalpetri.modbus.exceptions.ModbusResponseException as DPModbusResponseException
@@ -64,91 +71,226 @@ class ModbusDeviceDigitalPetri(
         firstRegister: Address,
         count: Int,
     ): RegisterBlock {
-        when (val functionCode = forReading(firstRegister.addressClass)) {
-            READ_COIL,
-            READ_DISCRETE_INPUT,
-            -> {
-                throw NotYetImplementedException("Reading a ${firstRegister.addressClass} has not yet been implemented")
+        val bytes = readRegisterBytes(firstRegister, count)
+            ?: return createReadErrorRegisterBlock(firstRegister, count)
+        val result = RegisterBlock(firstRegister.addressClass)
+        // Record all received values under the current timestamp.
+        // Many devices have a bad clock.
+        result.setValues(firstRegister, bytes, System.currentTimeMillis())
+        return result
+    }
+
+    /**
+     * The raw bytes received from the device are stored directly into the provided RegisterBlock
+     * without creating an intermediate RegisterBlock.
+     */
+    @Throws(ModbusException::class)
+    override fun getRegistersInto(
+        firstRegister: Address,
+        count: Int,
+        registerBlock: RegisterBlock,
+    ): Boolean {
+        val bytes = readRegisterBytes(firstRegister, count) ?: return false
+        // Record all received values under the current timestamp.
+        // Many devices have a bad clock.
+        registerBlock.setValues(firstRegister, bytes, System.currentTimeMillis())
+        return true
+    }
+
+    @Throws(ModbusException::class)
+    override fun writeRegisters(
+        firstRegister: Address,
+        values: ShortArray,
+    ) {
+        requireWriteRegisters(firstRegister, values)
+        try {
+            client.writeMultipleRegisters(
+                unitId,
+                WriteMultipleRegistersRequest(firstRegister.physicalAddress, values.size, values.toBytes()),
+            )
+        } catch (e: DPModbusException) {
+            throw ModbusException(
+                "For " + WRITE_MULTIPLE_HOLDING_REGISTERS + " & " + firstRegister.physicalAddress + ":" + e.message,
+                e,
+            )
+        }
+    }
+
+    /**
+     * Does the write and read in a single Read/Write Multiple Registers (0x17) request.
+     * If the device rejects the request the write may not have been done so this is an exception (not a read error).
+     */
+    @Throws(ModbusException::class)
+    override fun readWriteRegisters(
+        writeFirstRegister: Address,
+        writeValues: ShortArray,
+        readFirstRegister: Address,
+        readCount: Int,
+    ): RegisterBlock {
+        requireReadWriteRegisters(writeFirstRegister, writeValues, readFirstRegister, readCount)
+        val bytes =
+            try {
+                client.readWriteMultipleRegisters(
+                    unitId,
+                    ReadWriteMultipleRegistersRequest(
+                        readFirstRegister.physicalAddress,
+                        readCount,
+                        writeFirstRegister.physicalAddress,
+                        writeValues.size,
+                        writeValues.toBytes(),
+                    ),
+                ).registers
+            } catch (e: DPModbusException) {
+                throw ModbusException(
+                    "For " + READ_WRITE_MULTIPLE_REGISTERS + " & " + writeFirstRegister.physicalAddress + ":" + e.message,
+                    e,
+                )
             }
+        if (bytes.size != readCount * 2) {
+            throw ModbusException("Received ${bytes.size} bytes for $readCount registers")
+        }
+        val result = RegisterBlock(readFirstRegister.addressClass)
+        // Record all received values under the current timestamp.
+        // Many devices have a bad clock.
+        result.setValues(readFirstRegister, bytes, System.currentTimeMillis())
+        return result
+    }
+
+    private fun ShortArray.toBytes(): ByteArray {
+        val bytes = ByteArray(size * 2)
+        forEachIndexed { index, value ->
+            bytes[index * 2] = (value.toInt() shr 8).toByte()
+            bytes[(index * 2) + 1] = value.toByte()
+        }
+        return bytes
+    }
+
+    /**
+     * Retrieve the raw bytes of the requested registers.
+     * @return The raw bytes (2 per register) or null if the device returned a read error.
+     */
+    @Throws(ModbusException::class)
+    private fun readRegisterBytes(
+        firstRegister: Address,
+        count: Int,
+    ): ByteArray? {
+        val functionCode = forReading(firstRegister.addressClass)
+        val bytes =
+            try {
+                when (functionCode) {
+                    READ_COIL,
+                    READ_DISCRETE_INPUT,
+                    -> {
+                        throw NotYetImplementedException("Reading a ${firstRegister.addressClass} must be done using getDiscretes")
+                    }
 
-            READ_HOLDING_REGISTERS -> {
-                try {
-                    val response =
+                    READ_HOLDING_REGISTERS ->
                         client.readHoldingRegisters(
                             unitId,
                             ReadHoldingRegistersRequest(firstRegister.physicalAddress, count),
-                        )
-                    return buildRegisterBlock(firstRegister, response.registers)
-                } catch (_: DPModbusResponseException) {
-                    return createReadErrorRegisterBlock(firstRegister, count)
-                } catch (e: DPModbusException) {
-                    throw ModbusException(
-                        "For " + functionCode + " & " + firstRegister.physicalAddress + ":" + e.message,
-                        e,
-                    )
-                }
-            }
+                        ).registers
 
-            READ_INPUT_REGISTERS -> {
-                try {
-                    val response =
+                    READ_INPUT_REGISTERS ->
                         client.readInputRegisters(
                             unitId,
                             ReadInputRegistersRequest(firstRegister.physicalAddress, count),
+                        ).registers
+
+                    else -> {
+                        throw NotYetImplementedException(
+                            "The function code $functionCode for ${firstRegister.addressClass} has not yet been implemented",
                         )
-                    return buildRegisterBlock(firstRegister, response.registers)
-                } catch (_: DPModbusResponseException) {
-                    return createReadErrorRegisterBlock(firstRegister, count)
-                } catch (e: ModbusException) {
-                    throw ModbusException(
-                        "For " + functionCode + " & " + firstRegister.physicalAddress + ":" + e.message,
-                        e,
-                    )
+                    }
                 }
-            }
-
-            else -> {
-                throw NotYetImplementedException(
-                    "The function code $functionCode for ${firstRegister.addressClass} has not yet been implemented",
+            } catch (_: DPModbusResponseException) {
+                return null
+            } catch (e: DPModbusException) {
+                throw ModbusException(
+                    "For " + functionCode + " & " + firstRegister.physicalAddress + ":" + e.message,
+                    e,
                 )
             }
+
+        if (bytes.size % 2 != 0) {
+            throw ModbusException("Received an odd number of bytes (${bytes.size}) for the registers")
         }
+        return bytes
     }
 
-    private fun buildRegisterBlock(
-        firstAddress: Address,
-        bytes: ByteArray?,
-    ): RegisterBlock {
+    @Throws(ModbusException::class)
+    override fun getDiscretes(
+        firstDiscrete: Address,
+        count: Int,
+    ): DiscreteBlock {
+        val packedBits = readDiscreteBits(firstDiscrete, count)
+            ?: return createReadErrorDiscreteBlock(firstDiscrete, count)
+        val result = DiscreteBlock(firstDiscrete.addressClass)
+        // Record all received values under the current timestamp.
+        // Many devices have a bad clock.
+        result.setValues(firstDiscrete, count, packedBits, System.currentTimeMillis())
+        return result
+    }
+
+    /**
+     * The packed bits received from the device are stored directly into the provided DiscreteBlock
+     * without creating an intermediate DiscreteBlock.
+     */
+    @Throws(ModbusException::class)
+    override fun getDiscretesInto(
+        firstDiscrete: Address,
+        count: Int,
+        discreteBlock: DiscreteBlock,
+    ): Boolean {
+        val packedBits = readDiscreteBits(firstDiscrete, count) ?: return false
         // Record all received values under the current timestamp.
         // Many devices have a bad clock.
-        val now = System.currentTimeMillis()
+        discreteBlock.setValues(firstDiscrete, count, packedBits, System.currentTimeMillis())
+        return true
+    }
 
-        var loopRegisterAddress = firstAddress
-        val result = RegisterBlock(firstAddress.addressClass)
+    /**
+     * Retrieve the packed bits of the requested discretes.
+     * @return The packed bits (8 per byte, first discrete in the least significant bit) or null if the device returned a read error.
+     */
+    @Throws(ModbusException::class)
+    private fun readDiscreteBits(
+        firstDiscrete: Address,
+        count: Int,
+    ): ByteArray? {
+        val functionCode = forReading(firstDiscrete.addressClass)
+        val packedBits =
+            try {
+                when (functionCode) {
+                    READ_COIL ->
+                        client.readCoils(
+                            unitId,
+                            ReadCoilsRequest(firstDiscrete.physicalAddress, count),
+                        ).coils
 
-        if (bytes == null) {
-            return result
-        }
-        if (bytes.size % 2 != 0) {
-            throw ModbusException("Received an odd number of bytes (${bytes.size}) for the registers")
-        }
+                    READ_DISCRETE_INPUT ->
+                        client.readDiscreteInputs(
+                            unitId,
+                            ReadDiscreteInputsRequest(firstDiscrete.physicalAddress, count),
+                        ).inputs
 
-        for (registerNr in 0 until bytes.size / 2) {
-            val byte0: Int = bytes[registerNr * 2].toInt()
-            val byte1: Int = bytes[(registerNr * 2) + 1].toInt()
-            val register: Short =
-                (
-                    (
-                        ((byte0 shl 8) and 0xFF00)
-                            or
-                            (byte1 and 0x00FF)
-                    ) and 0xFFFF
-                ).toShort()
-
-            result[loopRegisterAddress] =
-                RegisterValue(loopRegisterAddress).setValue(register, now)
-            loopRegisterAddress = loopRegisterAddress.increment(1)
+                    else -> {
+                        throw NotYetImplementedException(
+                            "The function code $functionCode for ${firstDiscrete.addressClass} cannot be retrieved using getDiscretes",
+                        )
+                    }
+                }
+            } catch (_: DPModbusResponseException) {
+                return null
+            } catch (e: DPModbusException) {
+                throw ModbusException(
+                    "For " + functionCode + " & " + firstDiscrete.physicalAddress + ":" + e.message,
+                    e,
+                )
+            }
+
+        if (packedBits.size * 8 < count) {
+            throw ModbusException("Received only ${packedBits.size} bytes for $count discretes")
         }
-        return result
+        return packedBits
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.digitalpetri
+
+import com.digitalpetri.modbus.client.ModbusTcpClient
+import com.digitalpetri.modbus.tcp.client.NettyClientTransportConfig
+import com.digitalpetri.modbus.tcp.client.NettyTcpClientTransport
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.FunctionCode
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.exception.NotYetImplementedException
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.device.server.ExceptionInjector
+import nl.basjes.modbus.device.server.ModbusTcpServer
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+internal class TestWithModbusTcpServer {
+
+    private val mockedDevice =
+        MockedModbusDevice
+            .builder()
+            .withRegisters(Address.of("hr:00000"), "0001 0002 ABCD FFFF 8000")
+            .withRegisters(Address.of("hr:00010"), "xxxx xxxx")
+            .withRegisters(Address.of("ir:00000"), "1234 5678 9ABC")
+            .withDiscretes(Address.of("c:00000"), "1 0 1 1 0 0 0 0 1 1")
+            .withDiscretes(Address.of("c:00020"), "x x")
+            .withDiscretes(Address.of("di:00000"), "0 1 1 0 1")
+            .build()
+
+    private fun connectAndRun(runThis: (modbusDevice: ModbusDeviceDigitalPetri, server: ModbusTcpServer) -> Unit) {
+        ModbusTcpServer(mockedDevice).start().use { server ->
+            val configBuilder = NettyClientTransportConfig.Builder()
+            configBuilder.hostname = "127.0.0.1"
+            configBuilder.port = server.port
+            val client = ModbusTcpClient.create(NettyTcpClientTransport(configBuilder.build()))
+            client.connect()
+            ModbusDeviceDigitalPetri(client, 1).use { runThis(it, server) }
+        }
+    }
+
+    @Test
+    fun testReads() {
+        connectAndRun { modbusDevice, _ ->
+            for ((address, count) in listOf("hr:00000" to 5, "hr:00001" to 3, "ir:00000" to 3)) {
+                assertEquals(
+                    mockedDevice.getRegisters(Address.of(address), count).toHexString(),
+                    modbusDevice.getRegisters(Address.of(address), count).toHexString(),
+                    "Registers $address # $count",
+                )
+            }
+            for ((address, count) in listOf("c:00000" to 10, "c:00003" to 6, "di:00000" to 5)) {
+                assertEquals(
+                    mockedDevice.getDiscretes(Address.of(address), count).toBitString(),
+                    modbusDevice.getDiscretes(Address.of(address), count).toBitString(),
+                    "Discretes $address # $count",
+                )
+            }
+
+            // An illegal data address response is a read error
+            val readError = modbusDevice.getRegisters(Address.of("hr:00010"), 2)
+            assertEquals(2, readError.size)
+            assertTrue(readError.values.all { it.isReadError() })
+        }
+    }
+
+    @Test
+    fun testDiscretes() {
+        connectAndRun { modbusDevice, _ ->
+            for ((address, count) in listOf("c:00000" to 1, "c:00001" to 9, "c:00007" to 3, "di:00000" to 1, "di:00002" to 3)) {
+                val expected = mockedDevice.getDiscretes(Address.of(address), count)
+                val discreteBlock = modbusDevice.getDiscretes(Address.of(address), count)
+                assertEquals(count, discreteBlock.size, "Discretes $address # $count")
+                assertEquals(expected.toBitString(), discreteBlock.toBitString(), "Discretes $address # $count")
+            }
+
+            // An illegal data address response for coils is a read error
+            val readError = modbusDevice.getDiscretes(Address.of("c:00020"), 2)
+            assertEquals(2, readError.size)
+            assertTrue(readError.values.all { it.isReadError() })
+
+            // Registers cannot be read as discretes
+            assertFailsWith<NotYetImplementedException> { modbusDevice.getDiscretes(Address.of("hr:00000"), 1) }
+        }
+    }
+
+    @Test
+    fun testErrorMapping() {
+        connectAndRun { modbusDevice, server ->
+            server.exceptionInjector =
+                ExceptionInjector { functionCode, firstAddress, _ ->
+                    when {
+                        firstAddress.physicalAddress != 1 -> null
+                        functionCode == FunctionCode.READ_DISCRETE_INPUT -> ModbusTcpServer.SERVER_DEVICE_BUSY
+                        else -> ModbusTcpServer.SERVER_DEVICE_FAILURE
+                    }
+                }
+
+            // Any modbus exception response to a read is a read error
+            assertTrue(modbusDevice.getDiscretes(Address.of("c:00001"), 2).values.all { it.isReadError() })
+            assertTrue(modbusDevice.getDiscretes(Address.of("di:00001"), 2).values.all { it.isReadError() })
+            assertTrue(modbusDevice.getRegisters(Address.of("hr:00001"), 2).values.all { it.isReadError() })
+
+            // Other requests are not affected
+            assertEquals("1 0", modbusDevice.getDiscretes(Address.of("c:00000"), 2).toBitString())
+            assertEquals("0 1", modbusDevice.getDiscretes(Address.of("di:00000"), 2).toBitString())
+
+            // A modbus exception response to a write means the write may not have been done
+            assertFailsWith<ModbusException> { modbusDevice.writeRegisters(Address.of("hr:00001"), shortArrayOf(42)) }
+        }
+    }
+
+    @Test
+    fun testWrites() {
+        connectAndRun { modbusDevice, server ->
+            // The server calls the injector from its own thread
+            val functionCodes = CopyOnWriteArrayList<FunctionCode>()
+            server.exceptionInjector =
+                ExceptionInjector { functionCode, _, _ ->
+                    functionCodes.add(functionCode)
+                    null
+                }
+
+            modbusDevice.writeRegisters(Address.of("hr:00001"), shortArrayOf(0x1234, 0x5678))
+            assertEquals(listOf(FunctionCode.WRITE_MULTIPLE_HOLDING_REGISTERS), functionCodes)
+            assertEquals("0001 1234 5678 FFFF 8000", mockedDevice.getRegisters(Address.of("hr:00000"), 5).toHexString())
+            assertEquals("0001 1234 5678 FFFF 8000", modbusDevice.getRegisters(Address.of("hr:00000"), 5).toHexString())
+
+            functionCodes.clear()
+            assertEquals(
+                "ABCD 5678 9ABC",
+                modbusDevice
+                    .readWriteRegisters(
+                        Address.of("hr:00001"),
+                        shortArrayOf(0xABCD.toShort(), 0x5678, 0x9ABC.toShort()),
+                        Address.of("hr:00001"),
+                        3,
+                    ).toHexString(),
+            )
+            // A single Read/Write Multiple Registers (0x17) request
+            assertEquals(listOf(FunctionCode.READ_WRITE_MULTIPLE_REGISTERS), functionCodes)
+            assertEquals("0001 ABCD 5678 9ABC 8000", mockedDevice.getRegisters(Address.of("hr:00000"), 5).toHexString())
+
+            // Writing a non-existent register is rejected by the device
+            assertFailsWith<ModbusException> { modbusDevice.writeRegisters(Address.of("hr:00010"), shortArrayOf(1)) }
+            assertFailsWith<ModbusException> {
+                modbusDevice.readWriteRegisters(Address.of("hr:00010"), shortArrayOf(1), Address.of("hr:00000"), 1)
+            }
+        }
+    }
+}
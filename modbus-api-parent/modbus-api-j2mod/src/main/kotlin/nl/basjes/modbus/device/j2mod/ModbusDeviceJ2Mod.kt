@@ -20,6 +20,7 @@ import com.ghgande.j2mod.modbus.ModbusSlaveException
 import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster
 import com.ghgande.j2mod.modbus.procimg.InputRegister
 import com.ghgande.j2mod.modbus.procimg.Register
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister
 import com.ghgande.j2mod.modbus.util.BitVector
 import nl.basjes.modbus.device.api.Address
 import nl.basjes.modbus.device.api.DiscreteBlock
@@ -29,6 +30,7 @@ import nl.basjes.modbus.device.api.FunctionCode.READ_COIL
 import nl.basjes.modbus.device.api.FunctionCode.READ_DISCRETE_INPUT
 import nl.basjes.modbus.device.api.FunctionCode.READ_HOLDING_REGISTERS
 import nl.basjes.modbus.device.api.FunctionCode.READ_INPUT_REGISTERS
+import nl.basjes.modbus.device.api.FunctionCode.WRITE_MULTIPLE_HOLDING_REGISTERS
 import nl.basjes.modbus.device.api.ModbusDevice
 import nl.basjes.modbus.device.api.RegisterBlock
 import nl.basjes.modbus.device.api.RegisterValue
@@ -117,6 +119,31 @@ class ModbusDeviceJ2Mod(
         }
     }
 
+    /**
+     * Writes using Write Multiple Registers (0x10).
+     * The J2Mod master does not support Read/Write Multiple Registers (0x17) so
+     * readWriteRegisters uses the default separate write and read.
+     */
+    @Throws(ModbusException::class)
+    override fun writeRegisters(
+        firstRegister: Address,
+        values: ShortArray,
+    ) {
+        requireWriteRegisters(firstRegister, values)
+        try {
+            master.writeMultipleRegisters(
+                unitId,
+                firstRegister.physicalAddress,
+                Array<Register>(values.size) { SimpleRegister(values[it].toInt() and 0xFFFF) },
+            )
+        } catch (e: J2ModModbusException) {
+            throw ModbusException(
+                "For " + WRITE_MULTIPLE_HOLDING_REGISTERS + " & " + firstRegister.physicalAddress + ":" + e.message,
+                e,
+            )
+        }
+    }
+
     private fun buildRegisterBlock(
         firstAddress: Address,
         registers: Array<out InputRegister>,
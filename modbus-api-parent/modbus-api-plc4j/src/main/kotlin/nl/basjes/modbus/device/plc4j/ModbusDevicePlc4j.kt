@@ -18,11 +18,15 @@ package nl.basjes.modbus.device.plc4j
 
 import nl.basjes.modbus.device.api.Address
 import nl.basjes.modbus.device.api.AddressClass
+import nl.basjes.modbus.device.api.AddressRange
+import nl.basjes.modbus.device.api.DiscreteBlock
+import nl.basjes.modbus.device.api.DiscreteValue
 import nl.basjes.modbus.device.api.FunctionCode.Companion.forReading
 import nl.basjes.modbus.device.api.FunctionCode.READ_COIL
 import nl.basjes.modbus.device.api.FunctionCode.READ_DISCRETE_INPUT
 import nl.basjes.modbus.device.api.FunctionCode.READ_HOLDING_REGISTERS
 import nl.basjes.modbus.device.api.FunctionCode.READ_INPUT_REGISTERS
+import nl.basjes.modbus.device.api.ModbusBlock
 import nl.basjes.modbus.device.api.ModbusDevice
 import nl.basjes.modbus.device.api.RegisterBlock
 import nl.basjes.modbus.device.api.RegisterValue
@@ -41,13 +45,29 @@ import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
 
 /**
- * An instance of a ModbusDevice that uses the Apache Plc4J library for the Modbus connection
+ * An instance of a ModbusDevice that uses the Apache Plc4J library for the Modbus connection.
+ *
+ * Limitation: PLC4X (0.13.1) only returns the first value when reading multiple coils or discrete inputs with a
+ * single tag so every discrete is read using a separate modbus request. Reading a large range of discretes is
+ * therefore slow and is bounded by the batchTimeoutMs.
  */
-class ModbusDevicePlc4j(
+class ModbusDevicePlc4j
+@JvmOverloads
+constructor(
     /**
      * The Plc4J specific connect string for the desired modbus device
      */
     connectionString: String,
+    /**
+     * The maximum time (in milliseconds) to wait for a single modbus request.
+     * PLC4X does a separate modbus request for each tag so the time to wait for a read of multiple tags
+     * (like a batch) is this timeout multiplied by the number of tags (bounded by the batchTimeoutMs).
+     */
+    private val requestTimeoutMs: Long = DEFAULT_REQUEST_TIMEOUT_MS,
+    /**
+     * The maximum time (in milliseconds) to wait for a single read (including a batch) of multiple tags.
+     */
+    private val batchTimeoutMs: Long = DEFAULT_BATCH_TIMEOUT_MS,
 ) : ModbusDevice() {
     private val connection: PlcConnection
 
@@ -61,6 +81,8 @@ class ModbusDevicePlc4j(
     }
 
     init {
+        require(requestTimeoutMs > 0) { "The request timeout must be positive" }
+        require(batchTimeoutMs >= requestTimeoutMs) { "The batch timeout must be at least the request timeout" }
         try {
             connection = PlcDriverManager.getDefault().connectionManager.getConnection(connectionString)
         } catch (e: PlcConnectionException) {
@@ -79,6 +101,230 @@ class ModbusDevicePlc4j(
 
     private fun getAddressClassTag(addressClass: AddressClass): String = addressClass.longLabel
 
+    // This is REALLY fragile ! If you add the correct type (like WORD) you only get a single value.
+    private fun getTag(
+        firstAddress: Address,
+        count: Int,
+    ): String =
+        String.format(
+            "%s:%05d[%d]",
+            getAddressClassTag(firstAddress.addressClass),
+            firstAddress.registerNumber,
+            count,
+        )
+
+    /**
+     * The tag(s) needed to read the range.
+     * PLC4X (0.13.1) only returns the first value when reading multiple coils or discrete inputs with a single tag.
+     * So for discretes each value is read with its own tag (named "name.offset").
+     */
+    private fun getTags(
+        name: String,
+        firstAddress: Address,
+        count: Int,
+    ): Map<String, String> =
+        when (firstAddress.addressClass.type) {
+            AddressClass.Type.REGISTER -> mapOf(name to getTag(firstAddress, count))
+            AddressClass.Type.DISCRETE -> (0 until count).associate { "$name.$it" to getTag(firstAddress.increment(it), 1) }
+        }
+
+    /** The deadline (System.nanoTime) for a read that starts now. */
+    private fun batchDeadline() = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchTimeoutMs)
+
+    private fun remainingMs(deadline: Long) = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())
+
+    /**
+     * Read all the provided tags.
+     * PLC4X (0.13.1) reports the error for ALL tags of a read request if only one of the underlying modbus requests
+     * fails. So the failed tags of a multi tag request are read again one by one to find the ones that really failed.
+     * These retries are only done as long as the deadline allows, the remaining tags keep the error of the
+     * combined request.
+     * @param tags The tag name to tag string mapping.
+     * @param deadline The System.nanoTime before which everything must be done.
+     * @return The tag name to the response that has the value of that tag.
+     */
+    @Throws(ModbusException::class)
+    private fun execute(
+        tags: Map<String, String>,
+        deadline: Long,
+    ): Map<String, PlcReadResponse> {
+        val response = executeRequest(tags, minOf(requestTimeoutMs * tags.size, remainingMs(deadline)))
+        val responses = tags.keys.associateWith { response }.toMutableMap()
+        if (tags.size > 1) {
+            for ((name, tag) in tags.filterKeys { !isOk(response, it) }) {
+                if (remainingMs(deadline) < requestTimeoutMs) {
+                    break
+                }
+                responses[name] = executeRequest(mapOf(name to tag), requestTimeoutMs)
+            }
+        }
+        return responses
+    }
+
+    /**
+     * Execute a single read request for all the provided tags.
+     * @param tags The tag name to tag string mapping.
+     * @param timeoutMs The maximum time to wait for the response.
+     */
+    @Throws(ModbusException::class)
+    private fun executeRequest(
+        tags: Map<String, String>,
+        timeoutMs: Long,
+    ): PlcReadResponse {
+        val builder = connection.readRequestBuilder()
+        tags.forEach { (name, tag) -> builder.addTag(name, ModbusTag.of(tag)) }
+
+        val asyncResponse = builder.build().execute()
+
+        // Wait for completion
+        try {
+            return asyncResponse[maxOf(timeoutMs, 1), TimeUnit.MILLISECONDS]
+        } catch (e: InterruptedException) {
+            throw ModbusException("Interrupted while waiting for $tags", e)
+        } catch (e: ExecutionException) {
+            throw ModbusException("Unable to read $tags", e)
+        } catch (e: TimeoutException) {
+            throw ModbusException("Timeout while reading $tags", e)
+        }
+    }
+
+    private fun isOk(
+        response: PlcReadResponse,
+        tagName: String,
+    ): Boolean =
+        when (response.getResponseCode(tagName)) {
+            PlcResponseCode.OK,
+            -> true
+
+            PlcResponseCode.NOT_FOUND,
+            PlcResponseCode.ACCESS_DENIED,
+            PlcResponseCode.INVALID_ADDRESS,
+            PlcResponseCode.INVALID_DATATYPE,
+            PlcResponseCode.INVALID_DATA,
+            PlcResponseCode.INTERNAL_ERROR,
+            PlcResponseCode.REMOTE_BUSY,
+            PlcResponseCode.REMOTE_ERROR,
+            PlcResponseCode.UNSUPPORTED,
+            PlcResponseCode.RESPONSE_PENDING,
+            null,
+            -> false
+        }
+
+    @Throws(ModbusException::class)
+    private fun toRegisterBlock(
+        response: PlcReadResponse,
+        tagName: String,
+        fieldTag: String,
+        firstRegister: Address,
+        count: Int,
+    ): RegisterBlock {
+        if (!isOk(response, tagName)) {
+            return createReadErrorRegisterBlock(firstRegister, count)
+        }
+
+        // Record all received values under the current timestamp.
+        // Many devices have a bad clock.
+        val now = System.currentTimeMillis()
+
+        var address = firstRegister
+        val result = RegisterBlock(address.addressClass)
+        try {
+            val allShorts = response.getAllIntegers(tagName)
+            for (value in allShorts) {
+                result[address] = RegisterValue(address).setValue(value.toShort(), now)
+                address = address.increment(1)
+            }
+        } catch (e: PlcRuntimeException) {
+            throw ModbusException("Got a PlcRuntimeException (" + e.message + ") on " + fieldTag, e)
+        }
+        return result
+    }
+
+    /**
+     * Combine the values of the tags (see getTags) of all discretes into a single block.
+     */
+    @Throws(ModbusException::class)
+    private fun toDiscreteBlock(
+        responses: Map<String, PlcReadResponse>,
+        name: String,
+        tags: Map<String, String>,
+        firstDiscrete: Address,
+        count: Int,
+    ): DiscreteBlock {
+        // Record all received values under the current timestamp.
+        // Many devices have a bad clock.
+        val now = System.currentTimeMillis()
+
+        val result = DiscreteBlock(firstDiscrete.addressClass)
+        for (offset in 0 until count) {
+            val address = firstDiscrete.increment(offset)
+            val tagName = "$name.$offset"
+            val response = responses.getValue(tagName)
+            if (!isOk(response, tagName)) {
+                result.setSoftReadError(address, 1)
+                continue
+            }
+            try {
+                result[address] = DiscreteValue(address).setValue(response.getBoolean(tagName), now)
+            } catch (e: PlcRuntimeException) {
+                throw ModbusException("Got a PlcRuntimeException (" + e.message + ") on " + tags[tagName], e)
+            }
+        }
+        return result
+    }
+
+    @Throws(ModbusException::class)
+    override fun getDiscretes(
+        firstDiscrete: Address,
+        count: Int,
+    ): DiscreteBlock {
+        if (firstDiscrete.addressClass.type != AddressClass.Type.DISCRETE) {
+            throw ModbusException("Reading a ${firstDiscrete.addressClass} as discretes is not possible")
+        }
+        return readDiscretes(firstDiscrete, count, batchDeadline())
+    }
+
+    @Throws(ModbusException::class)
+    private fun readDiscretes(
+        firstDiscrete: Address,
+        count: Int,
+        deadline: Long,
+    ): DiscreteBlock {
+        val tags = getTags("F", firstDiscrete, count)
+        return toDiscreteBlock(execute(tags, deadline), "F", tags, firstDiscrete, count)
+    }
+
+    /**
+     * PLC4X can combine multiple tags in a single read request and optimizes the way they are sent to the device.
+     * Only the register ranges of a batch are combined in a single read request. Each discrete needs a separate
+     * modbus request (and a separate tag) so combining them would only make a failure in a register range
+     * (which marks all tags as failed) very expensive. The entire batch is bounded by the batchTimeoutMs.
+     */
+    override val supportsBatchedReads: Boolean
+        get() = true
+
+    @Throws(ModbusException::class)
+    override fun getBatch(ranges: List<AddressRange>): List<ModbusBlock<*, *, *>> {
+        if (ranges.isEmpty()) {
+            return emptyList()
+        }
+        val deadline = batchDeadline()
+        val registerTags =
+            ranges
+                .withIndex()
+                .filter { it.value.start.addressClass.type == AddressClass.Type.REGISTER }
+                .associate { (index, range) -> "Q$index" to getTag(range.start, range.count) }
+        val responses = if (registerTags.isEmpty()) emptyMap() else execute(registerTags, deadline)
+        return ranges.mapIndexed { index, range ->
+            val name = "Q$index"
+            when (range.start.addressClass.type) {
+                AddressClass.Type.REGISTER ->
+                    toRegisterBlock(responses.getValue(name), name, registerTags.getValue(name), range.start, range.count)
+                AddressClass.Type.DISCRETE -> readDiscretes(range.start, range.count, deadline)
+            }
+        }
+    }
+
     @Throws(ModbusException::class)
     override fun getRegisters(
         firstRegister: Address,
@@ -94,69 +340,9 @@ class ModbusDevicePlc4j(
             READ_HOLDING_REGISTERS,
             READ_INPUT_REGISTERS,
             -> {
-                val builder = connection.readRequestBuilder()
-
-                // This is REALLY fragile ! If you add the correct type (like WORD) you only get a single value.
-                val fieldTag =
-                    String.format(
-                        "%s:%05d[%d]",
-                        getAddressClassTag(firstRegister.addressClass),
-                        firstRegister.registerNumber,
-                        count,
-                    )
-                builder.addTag("F", ModbusTag.of(fieldTag))
-
-                val asyncResponse = builder.build().execute()
-
-                // Wait for completion
-                val response: PlcReadResponse
-                try {
-                    response = asyncResponse[2, TimeUnit.SECONDS]
-                } catch (e: InterruptedException) {
-                    throw RuntimeException(e)
-                } catch (e: ExecutionException) {
-                    throw RuntimeException(e)
-                } catch (e: TimeoutException) {
-                    throw RuntimeException(e)
-                }
-
-                // Record all received values under the current timestamp.
-                // Many devices have a bad clock.
-                val now = System.currentTimeMillis()
-
-                when (response.getResponseCode("F")) {
-                    PlcResponseCode.OK,
-                    -> {
-                        // We're cool
-                    }
-
-                    PlcResponseCode.NOT_FOUND,
-                    PlcResponseCode.ACCESS_DENIED,
-                    PlcResponseCode.INVALID_ADDRESS,
-                    PlcResponseCode.INVALID_DATATYPE,
-                    PlcResponseCode.INVALID_DATA,
-                    PlcResponseCode.INTERNAL_ERROR,
-                    PlcResponseCode.REMOTE_BUSY,
-                    PlcResponseCode.REMOTE_ERROR,
-                    PlcResponseCode.UNSUPPORTED,
-                    PlcResponseCode.RESPONSE_PENDING,
-                    -> {
-                        return createReadErrorRegisterBlock(firstRegister, count)
-                    }
-                }
-
-                var address = firstRegister
-                val result = RegisterBlock(address.addressClass)
-                try {
-                    val allShorts = response.getAllIntegers("F")
-                    for (value in allShorts) {
-                        result[address] = RegisterValue(address).setValue(value.toShort(), now)
-                        address = address.increment(1)
-                    }
-                } catch (e: PlcRuntimeException) {
-                    throw ModbusException("Got a PlcRuntimeException (" + e.message + ") on " + fieldTag, e)
-                }
-                return result
+                val fieldTag = getTag(firstRegister, count)
+                val response = executeRequest(mapOf("F" to fieldTag), requestTimeoutMs)
+                return toRegisterBlock(response, "F", fieldTag, firstRegister, count)
             }
 
             else -> {
@@ -166,4 +352,12 @@ class ModbusDevicePlc4j(
             }
         }
     }
+
+    companion object {
+        /** The default maximum time (in milliseconds) to wait for a single modbus request. */
+        const val DEFAULT_REQUEST_TIMEOUT_MS = 2000L
+
+        /** The default maximum time (in milliseconds) to wait for a single read of multiple tags (like a batch). */
+        const val DEFAULT_BATCH_TIMEOUT_MS = 10000L
+    }
 }
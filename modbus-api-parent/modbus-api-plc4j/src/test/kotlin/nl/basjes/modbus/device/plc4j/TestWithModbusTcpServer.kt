@@ -0,0 +1,124 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.plc4j
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressRange
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.device.server.ModbusTcpServer
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource
+
+internal class TestWithModbusTcpServer {
+
+    private val mockedDevice =
+        MockedModbusDevice
+            .builder()
+            .withRegisters(Address.of("hr:00000"), "0001 0002 ABCD FFFF 8000")
+            .withRegisters(Address.of("hr:00010"), "xxxx xxxx")
+            .withRegisters(Address.of("ir:00000"), "1234 5678 9ABC")
+            .withDiscretes(Address.of("c:00000"), "1 0 1 1 0 0 0 0 1 1")
+            .withDiscretes(Address.of("c:00020"), "x x")
+            .withDiscretes(Address.of("di:00000"), "0 1 1 0 1")
+            .build()
+
+    private fun connectAndRun(runThis: (modbusDevice: ModbusDevicePlc4j) -> Unit) {
+        ModbusTcpServer(mockedDevice).start().use { server ->
+            ModbusDevicePlc4j("modbus-tcp:tcp://127.0.0.1:${server.port}?unit-identifier=1").use { runThis(it) }
+        }
+    }
+
+    @Test
+    fun testReads() {
+        connectAndRun { modbusDevice ->
+            for ((address, count) in listOf("hr:00000" to 5, "hr:00001" to 3, "ir:00000" to 3)) {
+                assertEquals(
+                    mockedDevice.getRegisters(Address.of(address), count).toHexString(),
+                    modbusDevice.getRegisters(Address.of(address), count).toHexString(),
+                    "Registers $address # $count",
+                )
+            }
+
+            for ((address, count) in listOf("c:00000" to 10, "c:00003" to 6, "di:00000" to 5)) {
+                assertEquals(
+                    mockedDevice.getDiscretes(Address.of(address), count).toBitString(),
+                    modbusDevice.getDiscretes(Address.of(address), count).toBitString(),
+                    "Discretes $address # $count",
+                )
+            }
+
+            // An illegal data address response is a read error
+            val readError = modbusDevice.getRegisters(Address.of("hr:00010"), 2)
+            assertEquals(2, readError.size)
+            assertTrue(readError.values.all { it.isReadError() })
+
+            val discreteReadError = modbusDevice.getDiscretes(Address.of("c:00020"), 2)
+            assertEquals(2, discreteReadError.size)
+            assertTrue(discreteReadError.values.all { it.isReadError() })
+        }
+    }
+
+    @Test
+    fun testBatch() {
+        val ranges =
+            listOf(
+                AddressRange(Address.of("hr:00000"), 5),
+                AddressRange(Address.of("c:00000"), 10),
+                AddressRange(Address.of("hr:00010"), 2), // Read error
+                AddressRange(Address.of("ir:00001"), 2),
+                AddressRange(Address.of("c:00020"), 2), // Read error
+                AddressRange(Address.of("di:00000"), 5),
+            )
+        connectAndRun { modbusDevice ->
+            assertTrue(modbusDevice.supportsBatchedReads)
+            val expected = mockedDevice.getBatch(ranges)
+            val actual = modbusDevice.getBatch(ranges)
+            assertEquals(ranges.size, actual.size)
+            for (index in ranges.indices) {
+                assertEquals(expected[index].addressClass, actual[index].addressClass, "AddressClass of ${ranges[index]}")
+                assertEquals(expected[index].asString(), actual[index].asString(), "Values of ${ranges[index]}")
+            }
+            assertTrue(actual[2].values.all { it.isReadError() })
+            assertTrue(actual[4].values.all { it.isReadError() })
+        }
+    }
+
+    @Test
+    fun testBatchTimeout() {
+        // Reading 100 discretes is 100 tags so the wait would be 100 times the request timeout without the batch timeout
+        val device = MockedModbusDevice.builder().withDiscretes(Address.of("c:00000"), List(100) { "1" }.joinToString(" ")).build()
+        ModbusTcpServer(device).start().use { server ->
+            server.latency = 10.seconds
+            ModbusDevicePlc4j("modbus-tcp:tcp://127.0.0.1:${server.port}?unit-identifier=1", 1000, 1000).use { modbusDevice ->
+                val start = TimeSource.Monotonic.markNow()
+                assertFailsWith<ModbusException> { modbusDevice.getBatch(listOf(AddressRange(Address.of("c:00000"), 100))) }
+                assertTrue(start.elapsedNow() < 3.seconds, "Took ${start.elapsedNow()}")
+            }
+        }
+    }
+
+    @Test
+    fun testInvalidTimeout() {
+        assertFailsWith<IllegalArgumentException> { ModbusDevicePlc4j("modbus-tcp:tcp://127.0.0.1:1", 0) }
+        assertFailsWith<IllegalArgumentException> { ModbusDevicePlc4j("modbus-tcp:tcp://127.0.0.1:1", 2000, 1000) }
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.server
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressClass
+import nl.basjes.modbus.device.api.AddressClass.COIL
+import nl.basjes.modbus.device.api.AddressClass.DISCRETE_INPUT
+import nl.basjes.modbus.device.api.AddressClass.HOLDING_REGISTER
+import nl.basjes.modbus.device.api.AddressClass.INPUT_REGISTER
+import nl.basjes.modbus.device.api.AddressClass.Type.DISCRETE
+import nl.basjes.modbus.device.api.AddressClass.Type.REGISTER
+import nl.basjes.modbus.device.api.FunctionCode
+import nl.basjes.modbus.device.api.FunctionCode.Companion.forReading
+import nl.basjes.modbus.device.api.FunctionCode.READ_WRITE_MULTIPLE_REGISTERS
+import nl.basjes.modbus.device.api.FunctionCode.WRITE_MULTIPLE_HOLDING_REGISTERS
+import nl.basjes.modbus.device.api.MODBUS_MAX_DISCRETES_PER_REQUEST
+import nl.basjes.modbus.device.api.MODBUS_MAX_REGISTERS_PER_READ_WRITE
+import nl.basjes.modbus.device.api.MODBUS_MAX_REGISTERS_PER_REQUEST
+import nl.basjes.modbus.device.api.MODBUS_MAX_REGISTERS_PER_WRITE
+import nl.basjes.modbus.device.api.ModbusDevice
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.exception.ModbusApiException
+import nl.basjes.modbus.device.exception.ModbusException
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import kotlin.time.Duration
+
+/**
+ * Decides if a request must get an exception response instead of the real values.
+ */
+fun interface ExceptionInjector {
+    /**
+     * @param functionCode The function code of the request
+     * @param firstAddress The first requested address
+     * @param count The number of requested values
+     * @return The modbus exception code to return or null to return the normal response
+     */
+    fun exceptionCode(
+        functionCode: FunctionCode,
+        firstAddress: Address,
+        count: Int,
+    ): Int?
+}
+
+/**
+ * A non-blocking Modbus TCP server that serves the values of any ModbusDevice (for example a MockedModbusDevice).
+ * This makes it possible to use the real drivers without a physical device.
+ * Only the read function codes (Coils, Discrete Inputs, Holding Registers and Input Registers),
+ * Write Multiple Registers and Read/Write Multiple Registers are supported.
+ * Writes are passed on to the ModbusDevice.
+ * Values that are not available in the ModbusDevice are returned as 0, read errors are returned as an
+ * Illegal Data Address exception.
+ *
+ * All requests are handled on a single worker thread so the ModbusDevice does not need to be thread safe.
+ */
+class ModbusTcpServer
+@JvmOverloads
+constructor(
+    /** The device which provides the values */
+    private val modbusDevice: ModbusDevice,
+    /** The TCP port to listen on, 0 means any free port. */
+    port: Int = 0,
+    /** The hostname or IP to listen on. */
+    host: String = "127.0.0.1",
+    /** If not null only requests for this unit id are answered, all others get a Gateway exception. */
+    private val unitId: Int? = null,
+) : AutoCloseable {
+    /** The artificial delay before each response is sent. */
+    var latency: Duration = Duration.ZERO
+        set(value) {
+            require(!value.isNegative()) { "The latency cannot be negative" }
+            field = value
+        }
+
+    /** A random extra delay (between 0 and this value) added to the latency of each response. */
+    var jitter: Duration = Duration.ZERO
+        set(value) {
+            require(!value.isNegative()) { "The jitter cannot be negative" }
+            field = value
+        }
+
+    /** The fraction (0.0 - 1.0) of the requests that get the exceptionCode as the response. */
+    var exceptionRate: Double = 0.0
+        set(value) {
+            require(value in 0.0..1.0) { "The exceptionRate must be between 0.0 and 1.0" }
+            field = value
+        }
+
+    /** The modbus exception code used for the exceptionRate. */
+    var exceptionCode: Int = SERVER_DEVICE_FAILURE
+
+    /** For full control over which requests get an exception response. */
+    var exceptionInjector: ExceptionInjector? = null
+
+    private val selector: Selector = Selector.open()
+
+    private val serverChannel: ServerSocketChannel =
+        ServerSocketChannel.open().apply {
+            bind(InetSocketAddress(host, port))
+            configureBlocking(false)
+        }
+
+    /** The actual TCP port this server listens on. */
+    val port: Int = (serverChannel.localAddress as InetSocketAddress).port
+
+    private val worker: ScheduledExecutorService =
+        Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "ModbusTcpServer-$port-worker").apply { isDaemon = true }
+        }
+
+    private val pendingResponses = ConcurrentLinkedQueue<Pair<Connection, ByteBuffer>>()
+
+    @Volatile
+    private var running = false
+
+    private var selectorThread: Thread? = null
+
+    private class Connection(
+        val channel: SocketChannel,
+    ) {
+        val readBuffer: ByteBuffer = ByteBuffer.allocate(4 * MAX_ADU_SIZE)
+        val writeQueue: ArrayDeque<ByteBuffer> = ArrayDeque()
+    }
+
+    /**
+     * Start accepting connections.
+     */
+    fun start(): ModbusTcpServer {
+        check(!running) { "The server has already been started" }
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT)
+        running = true
+        selectorThread =
+            Thread(::runSelector, "ModbusTcpServer-$port").apply {
+                isDaemon = true
+                start()
+            }
+        LOG.info("Modbus TCP server started on port {}", port)
+        return this
+    }
+
+    override fun close() {
+        running = false
+        selector.wakeup()
+        selectorThread?.join(1000)
+        worker.shutdownNow()
+        selector.keys().forEach { it.channel().close() }
+        selector.close()
+        serverChannel.close()
+    }
+
+    private fun runSelector() {
+        try {
+            while (running) {
+                selector.select()
+                queuePendingResponses()
+                val selectedKeys = selector.selectedKeys().iterator()
+                while (selectedKeys.hasNext()) {
+                    val key = selectedKeys.next()
+                    selectedKeys.remove()
+                    try {
+                        if (key.isValid && key.isAcceptable) {
+                            accept()
+                        }
+                        if (key.isValid && key.isReadable) {
+                            read(key)
+                        }
+                        if (key.isValid && key.isWritable) {
+                            write(key)
+                        }
+                    } catch (_: IOException) {
+                        key.cancel()
+                        key.channel().close()
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            if (running) {
+                LOG.error("Modbus TCP server on port {} failed: {}", port, e.message)
+            }
+        }
+    }
+
+    private fun accept() {
+        val channel = serverChannel.accept() ?: return
+        channel.configureBlocking(false)
+        channel.register(selector, SelectionKey.OP_READ, Connection(channel))
+    }
+
+    private fun read(key: SelectionKey) {
+        val connection = key.attachment() as Connection
+        val readBuffer = connection.readBuffer
+        if (connection.channel.read(readBuffer) < 0) {
+            key.cancel()
+            connection.channel.close()
+            return
+        }
+        readBuffer.flip()
+        while (readBuffer.remaining() >= MBAP_HEADER_SIZE) {
+            val length = readBuffer.getShort(readBuffer.position() + 4).toInt() and 0xFFFF
+            if (length < 2 || MBAP_HEADER_SIZE - 1 + length > MAX_ADU_SIZE) {
+                // This is not a valid Modbus TCP request
+                key.cancel()
+                connection.channel.close()
+                return
+            }
+            if (readBuffer.remaining() < MBAP_HEADER_SIZE - 1 + length) {
+                break // Wait for the rest of the request
+            }
+            val request = ByteArray(MBAP_HEADER_SIZE - 1 + length)
+            readBuffer.get(request)
+            scheduleResponse(connection, request)
+        }
+        readBuffer.compact()
+    }
+
+    private fun write(key: SelectionKey) {
+        val connection = key.attachment() as Connection
+        while (connection.writeQueue.isNotEmpty()) {
+            val response = connection.writeQueue.first()
+            connection.channel.write(response)
+            if (response.hasRemaining()) {
+                return // Socket buffer is full, continue when writable again
+            }
+            connection.writeQueue.removeFirst()
+        }
+        key.interestOps(SelectionKey.OP_READ)
+    }
+
+    private fun queuePendingResponses() {
+        while (true) {
+            val (connection, response) = pendingResponses.poll() ?: return
+            val key = connection.channel.keyFor(selector)
+            if (key == null || !key.isValid) {
+                continue // Connection was closed
+            }
+            connection.writeQueue.addLast(response)
+            key.interestOps(SelectionKey.OP_READ or SelectionKey.OP_WRITE)
+        }
+    }
+
+    private fun scheduleResponse(
+        connection: Connection,
+        request: ByteArray,
+    ) {
+        var delayNanos = latency.inWholeNanoseconds
+        val jitterNanos = jitter.inWholeNanoseconds
+        if (jitterNanos > 0) {
+            delayNanos += ThreadLocalRandom.current().nextLong(jitterNanos + 1)
+        }
+        worker.schedule(
+            {
+                val response = handleRequest(request)
+                if (response != null) {
+                    pendingResponses.add(connection to ByteBuffer.wrap(response))
+                    selector.wakeup()
+                }
+            },
+            delayNanos,
+            TimeUnit.NANOSECONDS,
+        )
+    }
+
+    /**
+     * @param request The full Modbus TCP request (MBAP header + PDU)
+     * @return The full Modbus TCP response (MBAP header + PDU) or null if the request must be dropped.
+     */
+    private fun handleRequest(request: ByteArray): ByteArray? {
+        val requestBuffer = ByteBuffer.wrap(request)
+        val transactionId = requestBuffer.getShort(0)
+        val protocolId = requestBuffer.getShort(2)
+        if (protocolId != MODBUS_PROTOCOL_ID) {
+            LOG.warn("Dropping request with protocol id {} (must be {})", protocolId, MODBUS_PROTOCOL_ID)
+            return null
+        }
+        val requestUnitId = request[6]
+        requestBuffer.position(MBAP_HEADER_SIZE)
+
+        val pdu =
+            try {
+                handlePdu(requestUnitId.toInt() and 0xFF, requestBuffer)
+            } catch (e: Exception) {
+                // A malformed request or a failing ModbusDevice must still get a response.
+                LOG.warn("Unable to handle request: {}", e.toString())
+                exceptionPdu(request[MBAP_HEADER_SIZE].toInt() and 0xFF, SERVER_DEVICE_FAILURE)
+            }
+
+        val response = ByteBuffer.allocate(MBAP_HEADER_SIZE + pdu.size)
+        response.putShort(transactionId)
+        response.putShort(protocolId)
+        response.putShort((pdu.size + 1).toShort())
+        response.put(requestUnitId)
+        response.put(pdu)
+        return response.array()
+    }
+
+    private fun handlePdu(
+        requestUnitId: Int,
+        request: ByteBuffer,
+    ): ByteArray {
+        val functionCodeValue = request.get().toInt() and 0xFF
+        if (unitId != null && requestUnitId != unitId) {
+            return exceptionPdu(functionCodeValue, GATEWAY_TARGET_DEVICE_FAILED_TO_RESPOND)
+        }
+
+        val addressClass: AddressClass =
+            when (functionCodeValue) {
+                0x01 -> COIL
+                0x02 -> DISCRETE_INPUT
+                0x03 -> HOLDING_REGISTER
+                0x04 -> INPUT_REGISTER
+                0x10 -> return handleWriteMultipleRegisters(request)
+                0x17 -> return handleReadWriteMultipleRegisters(request)
+                else -> return exceptionPdu(functionCodeValue, ILLEGAL_FUNCTION)
+            }
+
+        if (request.remaining() < 4) {
+            return exceptionPdu(functionCodeValue, ILLEGAL_DATA_VALUE)
+        }
+        val physicalAddress = request.getShort().toInt() and 0xFFFF
+        val count = request.getShort().toInt() and 0xFFFF
+
+        val maxCount =
+            when (addressClass.type) {
+                DISCRETE -> MODBUS_MAX_DISCRETES_PER_REQUEST
+                REGISTER -> MODBUS_MAX_REGISTERS_PER_REQUEST
+            }
+        if (count < 1 || count > maxCount) {
+            return exceptionPdu(functionCodeValue, ILLEGAL_DATA_VALUE)
+        }
+        if (physicalAddress + count > 0x10000) {
+            return exceptionPdu(functionCodeValue, ILLEGAL_DATA_ADDRESS)
+        }
+
+        val firstAddress = Address.of(addressClass, physicalAddress)
+
+        val injectedExceptionCode = injectedExceptionCode(forReading(addressClass), firstAddress, count)
+        if (injectedExceptionCode != null) {
+            return exceptionPdu(functionCodeValue, injectedExceptionCode)
+        }
+
+        return try {
+            when (addressClass.type) {
+                DISCRETE -> readDiscretes(functionCodeValue, firstAddress, count)
+                REGISTER -> readRegisters(functionCodeValue, firstAddress, count)
+            }
+        } catch (e: ModbusException) {
+            LOG.warn("Unable to read {} # {}: {}", firstAddress, count, e.message)
+            exceptionPdu(functionCodeValue, SERVER_DEVICE_FAILURE)
+        }
+    }
+
+    private fun injectedExceptionCode(
+        functionCode: FunctionCode,
+        firstAddress: Address,
+        count: Int,
+    ): Int? =
+        exceptionInjector?.exceptionCode(functionCode, firstAddress, count)
+            ?: if (exceptionRate > 0.0 && ThreadLocalRandom.current().nextDouble() < exceptionRate) exceptionCode else null
+
+    /**
+     * Read the register values of a write request.
+     * @return The values or null if the request is malformed.
+     */
+    private fun readWriteValues(
+        request: ByteBuffer,
+        physicalAddress: Int,
+        count: Int,
+        maxCount: Int,
+    ): ShortArray? {
+        if (count < 1 || count > maxCount || physicalAddress + count > 0x10000 || request.remaining() < 1) {
+            return null
+        }
+        val byteCount = request.get().toInt() and 0xFF
+        if (byteCount != count * 2 || request.remaining() < byteCount) {
+            return null
+        }
+        return ShortArray(count) { request.getShort() }
+    }
+
+    private fun handleWriteMultipleRegisters(request: ByteBuffer): ByteArray {
+        val functionCodeValue = 0x10
+        if (request.remaining() < 4) {
+            return exceptionPdu(functionCodeValue, ILLEGAL_DATA_VALUE)
+        }
+        val physicalAddress = request.getShort().toInt() and 0xFFFF
+        val count = request.getShort().toInt() and 0xFFFF
+        val values =
+            readWriteValues(request, physicalAddress, count, MODBUS_MAX_REGISTERS_PER_WRITE)
+                ?: return exceptionPdu(functionCodeValue, ILLEGAL_DATA_VALUE)
+
+        val firstAddress = Address.of(HOLDING_REGISTER, physicalAddress)
+        val injectedExceptionCode = injectedExceptionCode(WRITE_MULTIPLE_HOLDING_REGISTERS, firstAddress, count)
+        if (injectedExceptionCode != null) {
+            return exceptionPdu(functionCodeValue, injectedExceptionCode)
+        }
+
+        try {
+            modbusDevice.writeRegisters(firstAddress, values)
+        } catch (e: ModbusApiException) {
+            LOG.warn("Unable to write {} # {}: {}", firstAddress, count, e.message)
+            return exceptionPdu(functionCodeValue, ILLEGAL_FUNCTION)
+        } catch (e: ModbusException) {
+            LOG.warn("Unable to write {} # {}: {}", firstAddress, count, e.message)
+            return exceptionPdu(functionCodeValue, SERVER_DEVICE_FAILURE)
+        }
+        return ByteBuffer
+            .allocate(5)
+            .put(functionCodeValue.toByte())
+            .putShort(physicalAddress.toShort())
+            .putShort(count.toShort())
+            .array()
+    }
+
+    private fun handleReadWriteMultipleRegisters(request: ByteBuffer): ByteArray {
+        val functionCodeValue = 0x17
+        if (request.remaining() < 8) {
+            return exceptionPdu(functionCodeValue, ILLEGAL_DATA_VALUE)
+        }
+        val readPhysicalAddress = request.getShort().toInt() and 0xFFFF
+        val readCount = request.getShort().toInt() and 0xFFFF
+        val writePhysicalAddress = request.getShort().toInt() and 0xFFFF
+        val writeCount = request.getShort().toInt() and 0xFFFF
+        if (readCount < 1 || readCount > MODBUS_MAX_REGISTERS_PER_REQUEST || readPhysicalAddress + readCount > 0x10000) {
+            return exceptionPdu(functionCodeValue, ILLEGAL_DATA_VALUE)
+        }
+        val values =
+            readWriteValues(request, writePhysicalAddress, writeCount, MODBUS_MAX_REGISTERS_PER_READ_WRITE)
+                ?: return exceptionPdu(functionCodeValue, ILLEGAL_DATA_VALUE)
+
+        val readFirstAddress = Address.of(HOLDING_REGISTER, readPhysicalAddress)
+        val writeFirstAddress = Address.of(HOLDING_REGISTER, writePhysicalAddress)
+        val injectedExceptionCode = injectedExceptionCode(READ_WRITE_MULTIPLE_REGISTERS, writeFirstAddress, writeCount)
+        if (injectedExceptionCode != null) {
+            return exceptionPdu(functionCodeValue, injectedExceptionCode)
+        }
+
+        val registerBlock =
+            try {
+                modbusDevice.readWriteRegisters(writeFirstAddress, values, readFirstAddress, readCount)
+            } catch (e: ModbusApiException) {
+                LOG.warn("Unable to write {} # {}: {}", writeFirstAddress, writeCount, e.message)
+                return exceptionPdu(functionCodeValue, ILLEGAL_FUNCTION)
+            } catch (e: ModbusException) {
+                LOG.warn("Unable to write {} # {}: {}", writeFirstAddress, writeCount, e.message)
+                return exceptionPdu(functionCodeValue, SERVER_DEVICE_FAILURE)
+            }
+        return registersPdu(functionCodeValue, registerBlock, readFirstAddress, readCount)
+    }
+
+    private fun readRegisters(
+        functionCodeValue: Int,
+        firstAddress: Address,
+        count: Int,
+    ): ByteArray {
+        val registerBlock = modbusDevice.getRegisters(firstAddress, count)
+        return registersPdu(functionCodeValue, registerBlock, firstAddress, count)
+    }
+
+    private fun registersPdu(
+        functionCodeValue: Int,
+        registerBlock: RegisterBlock,
+        firstAddress: Address,
+        count: Int,
+    ): ByteArray {
+        if (registerBlock.values.any { it.isReadError() }) {
+            return exceptionPdu(functionCodeValue, ILLEGAL_DATA_ADDRESS)
+        }
+        val pdu = ByteArray(2 + (count * 2))
+        pdu[0] = functionCodeValue.toByte()
+        pdu[1] = (count * 2).toByte()
+        for (index in 0 until count) {
+            val value = (registerBlock.getValue(firstAddress.increment(index)) ?: 0).toInt()
+            pdu[2 + (index * 2)] = (value shr 8).toByte()
+            pdu[3 + (index * 2)] = value.toByte()
+        }
+        return pdu
+    }
+
+    private fun readDiscretes(
+        functionCodeValue: Int,
+        firstAddress: Address,
+        count: Int,
+    ): ByteArray {
+        val discreteBlock = modbusDevice.getDiscretes(firstAddress, count)
+        if (discreteBlock.values.any { it.isReadError() }) {
+            return exceptionPdu(functionCodeValue, ILLEGAL_DATA_ADDRESS)
+        }
+        val byteCount = (count + 7) / 8
+        val pdu = ByteArray(2 + byteCount)
+        pdu[0] = functionCodeValue.toByte()
+        pdu[1] = byteCount.toByte()
+        for (index in 0 until count) {
+            if (discreteBlock.getValue(firstAddress.increment(index)) == true) {
+                pdu[2 + (index / 8)] = (pdu[2 + (index / 8)].toInt() or (1 shl (index % 8))).toByte()
+            }
+        }
+        return pdu
+    }
+
+    private fun exceptionPdu(
+        functionCodeValue: Int,
+        exceptionCode: Int,
+    ) = byteArrayOf((functionCodeValue or 0x80).toByte(), exceptionCode.toByte())
+
+    companion object {
+        private val LOG: Logger = LogManager.getLogger()
+
+        private const val MBAP_HEADER_SIZE = 7
+        private const val MODBUS_PROTOCOL_ID: Short = 0
+        private const val MAX_ADU_SIZE = 260
+
+        // The standard Modbus exception codes
+        const val ILLEGAL_FUNCTION                          = 0x01
+        const val ILLEGAL_DATA_ADDRESS                      = 0x02
+        const val ILLEGAL_DATA_VALUE                        = 0x03
+        const val SERVER_DEVICE_FAILURE                     = 0x04
+        const val SERVER_DEVICE_BUSY                        = 0x06
+        const val GATEWAY_TARGET_DEVICE_FAILED_TO_RESPOND   = 0x0B
+    }
+}
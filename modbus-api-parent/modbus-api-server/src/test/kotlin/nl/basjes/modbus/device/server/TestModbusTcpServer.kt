@@ -0,0 +1,167 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.server
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.net.Socket
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.TimeSource
+
+internal class TestModbusTcpServer {
+
+    private val mockedDevice =
+        MockedModbusDevice
+            .builder()
+            .withRegisters(Address.of("hr:00000"), "0001 0002 ---- ABCD xxxx")
+            .withDiscretes(Address.of("c:00000"), "1 0 1 1 0 0 0 0 1 1")
+            .build()
+
+    /**
+     * A minimal Modbus TCP client that returns the PDU of the response.
+     */
+    private class RawClient(port: Int) : AutoCloseable {
+        private val socket = Socket("127.0.0.1", port)
+        private val output = DataOutputStream(socket.getOutputStream())
+        private val input = DataInputStream(socket.getInputStream())
+        private var transactionId = 0
+
+        fun send(vararg pdu: Int, unitId: Int = 1, protocolId: Int = 0) {
+            transactionId++
+            output.writeShort(transactionId)
+            output.writeShort(protocolId)
+            output.writeShort(pdu.size + 1)
+            output.writeByte(unitId)
+            pdu.forEach { output.writeByte(it) }
+            output.flush()
+        }
+
+        fun request(vararg pdu: Int, unitId: Int = 1): List<Int> {
+            send(*pdu, unitId = unitId)
+
+            assertEquals(transactionId, input.readUnsignedShort())
+            assertEquals(0, input.readUnsignedShort())
+            val length = input.readUnsignedShort()
+            assertEquals(unitId, input.readUnsignedByte())
+            return (1 until length).map { input.readUnsignedByte() }
+        }
+
+        override fun close() = socket.close()
+    }
+
+    @Test
+    fun testReads() {
+        ModbusTcpServer(mockedDevice).start().use { server ->
+            RawClient(server.port).use { client ->
+                assertEquals(
+                    listOf(0x03, 8, 0x00, 0x01, 0x00, 0x02, 0x00, 0x00, 0xAB, 0xCD),
+                    client.request(0x03, 0x00, 0x00, 0x00, 0x04),
+                )
+                // Read error
+                assertEquals(listOf(0x83, 0x02), client.request(0x03, 0x00, 0x00, 0x00, 0x05))
+                // Discretes are packed LSB first
+                assertEquals(
+                    listOf(0x01, 2, 0x0D, 0x03),
+                    client.request(0x01, 0x00, 0x00, 0x00, 0x0A),
+                )
+                // Unsupported function code
+                assertEquals(listOf(0x86, 0x01), client.request(0x06, 0x00, 0x00, 0x00, 0x01))
+                // Too many registers
+                assertEquals(listOf(0x83, 0x03), client.request(0x03, 0x00, 0x00, 0x00, 126))
+            }
+        }
+    }
+
+    @Test
+    fun testWrites() {
+        ModbusTcpServer(mockedDevice).start().use { server ->
+            RawClient(server.port).use { client ->
+                // Write Multiple Registers
+                assertEquals(
+                    listOf(0x10, 0x00, 0x01, 0x00, 0x02),
+                    client.request(0x10, 0x00, 0x01, 0x00, 0x02, 4, 0x12, 0x34, 0x56, 0x78),
+                )
+                assertEquals(
+                    listOf(0x03, 8, 0x00, 0x01, 0x12, 0x34, 0x56, 0x78, 0xAB, 0xCD),
+                    client.request(0x03, 0x00, 0x00, 0x00, 0x04),
+                )
+                // Read/Write Multiple Registers: the write is done before the read
+                assertEquals(
+                    listOf(0x17, 6, 0x12, 0x34, 0x56, 0x78, 0x00, 0x99),
+                    client.request(0x17, 0x00, 0x01, 0x00, 0x03, 0x00, 0x03, 0x00, 0x01, 2, 0x00, 0x99),
+                )
+                // Writing a register that does not exist
+                assertEquals(listOf(0x90, 0x04), client.request(0x10, 0x00, 0x04, 0x00, 0x01, 2, 0x00, 0x01))
+                // Byte count does not match the number of registers
+                assertEquals(listOf(0x90, 0x03), client.request(0x10, 0x00, 0x01, 0x00, 0x02, 2, 0x00, 0x01))
+                // Too many registers
+                assertEquals(listOf(0x97, 0x03), client.request(0x17, 0x00, 0x00, 0x00, 126, 0x00, 0x00, 0x00, 0x01, 2, 0x00, 0x01))
+            }
+        }
+    }
+
+    @Test
+    fun testBrokenRequestsAndDevices() {
+        val brokenDevice =
+            object : MockedModbusDevice() {
+                override fun getRegisters(
+                    firstRegister: Address,
+                    count: Int,
+                ): RegisterBlock = throw IllegalStateException("Broken device")
+            }
+        ModbusTcpServer(brokenDevice).start().use { server ->
+            RawClient(server.port).use { client ->
+                // An unexpected exception in the device still gives a response
+                assertEquals(listOf(0x83, 0x04), client.request(0x03, 0x00, 0x00, 0x00, 0x01))
+
+                // A request with a non Modbus protocol id is dropped: the next response is for the next request.
+                client.send(0x03, 0x00, 0x00, 0x00, 0x01, protocolId = 1)
+                assertEquals(listOf(0x10, 0x00, 0x00, 0x00, 0x01), client.request(0x10, 0x00, 0x00, 0x00, 0x01, 2, 0x00, 0x01))
+            }
+        }
+    }
+
+    @Test
+    fun testExceptionsAndLatency() {
+        ModbusTcpServer(mockedDevice, unitId = 1).start().use { server ->
+            server.latency = 50.milliseconds
+            server.jitter = 10.milliseconds
+            RawClient(server.port).use { client ->
+                val start = TimeSource.Monotonic.markNow()
+                assertEquals(listOf(0x03, 2, 0x00, 0x01), client.request(0x03, 0x00, 0x00, 0x00, 0x01))
+                assertTrue(start.elapsedNow() >= 50.milliseconds)
+
+                assertEquals(listOf(0x83, 0x0B), client.request(0x03, 0x00, 0x00, 0x00, 0x01, unitId = 2))
+
+                server.exceptionRate = 1.0
+                server.exceptionCode = ModbusTcpServer.SERVER_DEVICE_BUSY
+                assertEquals(listOf(0x83, 0x06), client.request(0x03, 0x00, 0x00, 0x00, 0x01))
+
+                server.exceptionRate = 0.0
+                server.exceptionInjector = ExceptionInjector { _, firstAddress, _ -> if (firstAddress.physicalAddress == 1) 0x04 else null }
+                assertEquals(listOf(0x83, 0x04), client.request(0x03, 0x00, 0x01, 0x00, 0x01))
+                assertEquals(listOf(0x03, 2, 0x00, 0x01), client.request(0x03, 0x00, 0x00, 0x00, 0x01))
+            }
+        }
+    }
+}
@@ -31,9 +31,9 @@ private const val SUNSPEC_MODEL_HEADER_SIZE = 2
 /** The list of starting addresses where the SunSpec Model chain can begin. */
 private val sunSpecStandardStartPhysicalAddress =
     arrayOf(
-        Address(HOLDING_REGISTER, 0),
-        Address(HOLDING_REGISTER, 40000),
-        Address(HOLDING_REGISTER, 50000),
+        Address.of(HOLDING_REGISTER, 0),
+        Address.of(HOLDING_REGISTER, 40000),
+        Address.of(HOLDING_REGISTER, 50000),
     )
 
 const val SUNSPEC_STANDARD_UNITID: Int = 126
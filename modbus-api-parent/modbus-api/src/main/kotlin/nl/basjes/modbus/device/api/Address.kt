@@ -43,10 +43,17 @@ class Address(
 
     companion object {
         /**
-         * Creates a new Modbus Address instance.
+         * The canonical instances of all Addresses that have been requested via the factory methods.
+         * Per AddressClass a table of all 65536 possible addresses which is created and filled lazily.
+         * Because an Address is immutable a race condition only results in a harmless duplicate instance.
+         */
+        private val canonicalAddresses = arrayOfNulls<Array<Address?>>(AddressClass.entries.size)
+
+        /**
+         * Gets the (cached) Modbus Address instance.
          * @param addressClass The type of address (COIL/DISCRETE_INPUT/INPUT_REGISTER/HOLDING_REGISTER)
          * @param physicalAddress The physical wire address of the modbus register (0-65535). Usually 1 lower than what many modbus tools use.
-         * @return A new immutable instance of Address with the given values
+         * @return The canonical immutable instance of Address with the given values
          */
         @JvmStatic
         fun of(
@@ -54,7 +61,16 @@ class Address(
             addressClass: AddressClass,
             /** The technical wire address. Always in the 0-65535 range. */
             physicalAddress: Int,
-        ) = Address(addressClass, physicalAddress)
+        ): Address {
+            if (physicalAddress < 0 || physicalAddress > 0xFFFF) {
+                return Address(addressClass, physicalAddress) // Will throw the appropriate exception
+            }
+            val addresses =
+                canonicalAddresses[addressClass.ordinal]
+                    ?: arrayOfNulls<Address>(0x10000).also { canonicalAddresses[addressClass.ordinal] = it }
+            return addresses[physicalAddress]
+                ?: Address(addressClass, physicalAddress).also { addresses[physicalAddress] = it }
+        }
 
         /**
          * Create the address by parsing the provided numerical register format.
@@ -65,7 +81,7 @@ class Address(
         @JvmStatic
         fun ofModicon5(modicon5RegisterTag: Int): Address {
             val (addressClass, physicalAddress) = addressFromModicon5(modicon5RegisterTag)
-            return Address(addressClass, physicalAddress)
+            return of(addressClass, physicalAddress)
         }
 
         /**
@@ -77,7 +93,7 @@ class Address(
         @JvmStatic
         fun ofModicon6(modicon6RegisterTag: Int): Address {
             val (addressClass, physicalAddress) = addressFromModicon6(modicon6RegisterTag)
-            return Address(addressClass, physicalAddress)
+            return of(addressClass, physicalAddress)
         }
 
         /**
@@ -88,17 +104,17 @@ class Address(
         @JvmStatic
         fun of(registerTag: String): Address {
             val (addressClass, physicalAddress) = addressFrom(registerTag)
-            return Address(addressClass, physicalAddress)
+            return of(addressClass, physicalAddress)
         }
     }
 
     /**
      * Increment the address by `step`
      * @param step The desired address increase (step=1 if unspecified).
-     * @return A NEW (incremented) immutable instance
+     * @return The (incremented) immutable instance
      */
     @JvmOverloads
-    fun increment(step: Int = 1): Address = Address(addressClass, physicalAddress + step)
+    fun increment(step: Int = 1): Address = of(addressClass, physicalAddress + step)
 
     /**
      * @param address The address to compare to
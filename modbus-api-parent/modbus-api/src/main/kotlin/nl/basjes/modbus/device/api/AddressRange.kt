@@ -0,0 +1,37 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.api
+
+/**
+ * A contiguous range of registers or discretes.
+ * @param start The first address of the range.
+ * @param count The number of registers or discretes in the range ( >= 1 ).
+ */
+class AddressRange(
+    val start: Address,
+    val count: Int,
+) {
+    init {
+        require(count >= 1) { "A range must have at least 1 address" }
+    }
+
+    override fun equals(other: Any?): Boolean = other is AddressRange && start == other.start && count == other.count
+
+    override fun hashCode(): Int = start.hashCode() * 31 + count
+
+    override fun toString(): String = "${start.toCleanFormat()} # $count"
+}
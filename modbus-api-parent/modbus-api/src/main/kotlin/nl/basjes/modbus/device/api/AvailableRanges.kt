@@ -0,0 +1,40 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.api
+
+/**
+ * Calls the action for each contiguous range of available values (offset and count).
+ * Values that are not available in the device are simply not returned.
+ */
+internal fun forEachAvailableRange(
+    available: BooleanArray,
+    action: (offset: Int, count: Int) -> Unit,
+) {
+    var offset = 0
+    while (offset < available.size) {
+        if (!available[offset]) {
+            offset++
+            continue
+        }
+        var end = offset
+        while (end < available.size && available[end]) {
+            end++
+        }
+        action(offset, end - offset)
+        offset = end
+    }
+}
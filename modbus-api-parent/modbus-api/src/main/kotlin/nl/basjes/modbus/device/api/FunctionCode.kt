@@ -48,6 +48,8 @@ enum class FunctionCode(
     WRITE_SINGLE_HOLDING_REGISTER(    0x06, HOLDING_REGISTER, true,  false, "WRITE_SINGLE_HOLDING_REGISTER",    "Write Single Holding Register"),
     WRITE_MULTIPLE_COILS(             0x0F, COIL,             true,  true,  "WRITE_MULTIPLE_COILS",             "Write Multiple Coils"),
     WRITE_MULTIPLE_HOLDING_REGISTERS( 0x10, HOLDING_REGISTER, true,  true,  "WRITE_MULTIPLE_HOLDING_REGISTERS", "Write Multiple Holding Registers"),
+
+    READ_WRITE_MULTIPLE_REGISTERS(    0x17, HOLDING_REGISTER, true,  true,  "READ_WRITE_MULTIPLE_REGISTERS",    "Read/Write Multiple Registers"),
     ;
 
     // Sometimes 1 bit per value (booleans really), sometimes 16 bits (normal registers) */
@@ -48,6 +48,51 @@ class RegisterBlock(
 
     override fun asString() = toHexString()
 
+    /**
+     * Store a contiguous range of registers (as retrieved in a single request) with a single timestamp.
+     * @param firstAddress The address of the first register
+     * @param count The number of registers to store
+     * @param values The register values (at least count values starting at valuesOffset)
+     * @param timestamp The fetch timestamp (epoch milliseconds) of all these values
+     * @param valuesOffset The index in values of the value for the firstAddress
+     */
+    @JvmOverloads
+    fun setValues(
+        firstAddress: Address,
+        count: Int,
+        values: ShortArray,
+        timestamp: Long,
+        valuesOffset: Int = 0,
+    ) {
+        require(valuesOffset >= 0 && valuesOffset + count <= values.size) { "Not enough values provided: need $count values starting at $valuesOffset but only have ${values.size}" }
+        forEachInRange(firstAddress, count) { index, registerValue ->
+            registerValue.setValue(values[valuesOffset + index], timestamp)
+        }
+    }
+
+    /**
+     * Store a contiguous range of registers directly from the raw bytes as received from a device.
+     * Each register is 2 bytes (most significant byte first) and all values get the same timestamp.
+     * @param firstAddress The address of the first register in the bytes
+     * @param bytes The raw register bytes
+     * @param timestamp The fetch timestamp (epoch milliseconds) of all these values
+     */
+    fun setValues(
+        firstAddress: Address,
+        bytes: ByteArray,
+        timestamp: Long,
+    ) {
+        require(bytes.size % 2 == 0) { "Raw register bytes must be an even number of bytes (got ${bytes.size})" }
+        forEachInRange(firstAddress, bytes.size / 2) { registerNr, registerValue ->
+            val value =
+                (
+                    ((bytes[registerNr * 2].toInt() and 0xFF) shl 8) or
+                    (bytes[(registerNr * 2) + 1].toInt() and 0xFF)
+                ).toShort()
+            registerValue.setValue(value, timestamp)
+        }
+    }
+
     override fun toString(): String =
         firstAddress?.let {
             "Starting at " + it.toCleanFormat() + ": [ " + toHexString() + " ]"
@@ -84,6 +129,48 @@ class DiscreteBlock(
 
     override fun asString() = toBitString()
 
+    /**
+     * Store a contiguous range of discretes (as retrieved in a single request) with a single timestamp.
+     * @param firstAddress The address of the first discrete
+     * @param count The number of discretes to store
+     * @param values The discrete values (at least count values starting at valuesOffset)
+     * @param timestamp The fetch timestamp (epoch milliseconds) of all these values
+     * @param valuesOffset The index in values of the value for the firstAddress
+     */
+    @JvmOverloads
+    fun setValues(
+        firstAddress: Address,
+        count: Int,
+        values: BooleanArray,
+        timestamp: Long,
+        valuesOffset: Int = 0,
+    ) {
+        require(valuesOffset >= 0 && valuesOffset + count <= values.size) { "Not enough values provided: need $count values starting at $valuesOffset but only have ${values.size}" }
+        forEachInRange(firstAddress, count) { index, discreteValue ->
+            discreteValue.setValue(values[valuesOffset + index], timestamp)
+        }
+    }
+
+    /**
+     * Store a contiguous range of discretes directly from the packed bits as received from a device.
+     * As defined by Modbus the first discrete is the least significant bit of the first byte.
+     * @param firstAddress The address of the first discrete in the bytes
+     * @param count The number of discretes to store (the bytes may contain trailing padding bits)
+     * @param packedBits The raw packed bits
+     * @param timestamp The fetch timestamp (epoch milliseconds) of all these values
+     */
+    fun setValues(
+        firstAddress: Address,
+        count: Int,
+        packedBits: ByteArray,
+        timestamp: Long,
+    ) {
+        require(count <= packedBits.size * 8) { "Not enough packed bits provided: need $count bits but only have ${packedBits.size * 8}" }
+        forEachInRange(firstAddress, count) { index, discreteValue ->
+            discreteValue.setValue(((packedBits[index shr 3].toInt() shr (index and 7)) and 1) == 1, timestamp)
+        }
+    }
+
     override fun toString(): String =
         firstAddress?.let {
             "Starting at " + it.toCleanFormat() + ": [ " + toBitString() + " ]"
@@ -197,6 +284,64 @@ sealed class ModbusBlock<BLOCK: ModbusBlock<BLOCK, VALUE, TYPE>, VALUE: ModbusVa
         this[address].setValue(value, timestamp)
     }
 
+    /**
+     * Mark the contiguous range of addresses as a soft read error
+     * @param firstAddress The first address of the range
+     * @param count The number of addresses in the range
+     */
+    fun setSoftReadError(firstAddress: Address, count: Int) =
+        forEachInRange(firstAddress, count) { _, modbusValue -> modbusValue.setSoftReadError() }
+
+    /**
+     * Mark the contiguous range of addresses as a hard read error
+     * @param firstAddress The first address of the range
+     * @param count The number of addresses in the range
+     */
+    fun setHardReadError(firstAddress: Address, count: Int) =
+        forEachInRange(firstAddress, count) { _, modbusValue -> modbusValue.setHardReadError() }
+
+    /**
+     * All existing values in the contiguous range of addresses (sorted by address, there can be gaps).
+     * This is a view on the underlying values; nothing is created or copied.
+     * @param firstAddress The first address of the range
+     * @param count The number of addresses in the range
+     */
+    fun valuesInRange(firstAddress: Address, count: Int): Collection<VALUE> {
+        assertAddressClass(firstAddress.addressClass)
+        require(count > 0) { "A range must have at least 1 address" }
+        return modbusValues.subMap(firstAddress, true, firstAddress.increment(count - 1), true).values
+    }
+
+    /**
+     * Walk over a contiguous range of addresses in a single pass over the sorted values.
+     * Any value that does not exist yet is created first.
+     * @param firstAddress The first address of the range
+     * @param count The number of addresses in the range
+     * @param action Called for each value with the index (0..count-1) in the range
+     */
+    protected fun forEachInRange(
+        firstAddress: Address,
+        count: Int,
+        action: (index: Int, modbusValue: VALUE) -> Unit,
+    ) {
+        require(count >= 0) { "A range cannot have a negative number of addresses" }
+        if (count == 0) {
+            return
+        }
+        val rangeValues = valuesInRange(firstAddress, count)
+        if (rangeValues.size != count) {
+            var address = firstAddress
+            repeat(count) {
+                modbusValues.computeIfAbsent(address, newValue)
+                address = address.increment()
+            }
+        }
+        var index = 0
+        for (modbusValue in rangeValues) {
+            action(index++, modbusValue)
+        }
+    }
+
     fun merge(modbusBlock: BLOCK) {
         assertAddressClass(modbusBlock.addressClass)
         for (registerValue in modbusBlock.modbusValues.values) {
@@ -18,9 +18,12 @@ package nl.basjes.modbus.device.api
 
 import nl.basjes.modbus.device.exception.ModbusApiException
 import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.exception.ModbusIllegalAddressClassException
 
 const val MODBUS_MAX_REGISTERS_PER_REQUEST: Int = 125
 const val MODBUS_MAX_DISCRETES_PER_REQUEST: Int = MODBUS_MAX_REGISTERS_PER_REQUEST * 16
+const val MODBUS_MAX_REGISTERS_PER_WRITE: Int = 123
+const val MODBUS_MAX_REGISTERS_PER_READ_WRITE: Int = 121
 const val MODBUS_STANDARD_TCP_PORT: Int = 502
 
 abstract class ModbusDevice : AutoCloseable {
@@ -59,6 +62,31 @@ abstract class ModbusDevice : AutoCloseable {
         count: Int,
     ): RegisterBlock
 
+    /**
+     * Retrieve a block of 16 bit registers (Input Registers and Holding Registers) and store
+     * the retrieved values directly into the provided RegisterBlock.
+     * Implementations that receive the raw bytes from the device should override this
+     * to avoid building an intermediate RegisterBlock.
+     *
+     * @param firstRegister The first modbus register that is desired in the output.
+     * @param count The maximum number of registers to retrieve ( >= 1 ).
+     * @param registerBlock The RegisterBlock in which the retrieved values must be stored.
+     * @return true if the values were stored, false if the device returned a read error (nothing was stored).
+     */
+    @Throws(ModbusException::class)
+    open fun getRegistersInto(
+        firstRegister: Address,
+        count: Int,
+        registerBlock: RegisterBlock,
+    ): Boolean {
+        val fetchedRegisterBlock = getRegisters(firstRegister, count)
+        if (fetchedRegisterBlock.values.any { it.isReadError() }) {
+            return false
+        }
+        registerBlock.merge(fetchedRegisterBlock)
+        return true
+    }
+
     /**
      * Retrieve a block of 1 bit values (Coils and Discrete Inputs).
      *
@@ -74,6 +102,126 @@ abstract class ModbusDevice : AutoCloseable {
         throw ModbusApiException("Not yet implemented")
     }
 
+    /**
+     * Retrieve a block of 1 bit values (Coils and Discrete Inputs) and store
+     * the retrieved values directly into the provided DiscreteBlock.
+     *
+     * @param firstDiscrete The first modbus discrete value that is desired in the output.
+     * @param count The maximum number of values to retrieve ( >= 1 ).
+     * @param discreteBlock The DiscreteBlock in which the retrieved values must be stored.
+     * @return true if the values were stored, false if the device returned a read error (nothing was stored).
+     */
+    @Throws(ModbusException::class)
+    open fun getDiscretesInto(
+        firstDiscrete: Address,
+        count: Int,
+        discreteBlock: DiscreteBlock,
+    ): Boolean {
+        val fetchedDiscreteBlock = getDiscretes(firstDiscrete, count)
+        if (fetchedDiscreteBlock.values.any { it.isReadError() }) {
+            return false
+        }
+        discreteBlock.merge(fetchedDiscreteBlock)
+        return true
+    }
+
+    /**
+     * If this device can retrieve multiple ranges in a single (optimized) request using getBatch.
+     */
+    open val supportsBatchedReads: Boolean
+        get() = false
+
+    /**
+     * Retrieve multiple ranges of registers and/or discretes in one go.
+     * The default implementation simply retrieves the ranges one by one.
+     *
+     * @param ranges The ranges that must be retrieved.
+     * @return For each range (in the same order) the retrieved values (with read errors if the range could not be read).
+     */
+    @Throws(ModbusException::class)
+    open fun getBatch(ranges: List<AddressRange>): List<ModbusBlock<*, *, *>> =
+        ranges.map {
+            when (it.start.addressClass.type) {
+                AddressClass.Type.REGISTER -> getRegisters(it.start, it.count)
+                AddressClass.Type.DISCRETE -> getDiscretes(it.start, it.count)
+            }
+        }
+
+    /**
+     * Write a block of Holding Registers (function code 0x10).
+     *
+     * @param firstRegister The first modbus register that must be written.
+     * @param values The values that must be written ( 1 - MODBUS_MAX_REGISTERS_PER_WRITE values ).
+     * @throws ModbusException If the device did not accept the write.
+     */
+    @Throws(ModbusException::class)
+    open fun writeRegisters(
+        firstRegister: Address,
+        values: ShortArray,
+    ) {
+        throw ModbusApiException("Not yet implemented")
+    }
+
+    /**
+     * Write a block of Holding Registers and read a (possibly different) block of Holding Registers
+     * in a single transaction (function code 0x17). The write is done before the read.
+     * The default implementation does a separate write and read.
+     *
+     * @param writeFirstRegister The first modbus register that must be written.
+     * @param writeValues The values that must be written ( 1 - MODBUS_MAX_REGISTERS_PER_READ_WRITE values ).
+     * @param readFirstRegister The first modbus register that is desired in the output.
+     * @param readCount The number of registers to retrieve ( 1 - MODBUS_MAX_REGISTERS_PER_REQUEST ).
+     * @return A RegisterBlock with all the retrieved values (with read errors if the read part failed).
+     * @throws ModbusException If the device did not accept the write.
+     */
+    @Throws(ModbusException::class)
+    open fun readWriteRegisters(
+        writeFirstRegister: Address,
+        writeValues: ShortArray,
+        readFirstRegister: Address,
+        readCount: Int,
+    ): RegisterBlock {
+        requireReadWriteRegisters(writeFirstRegister, writeValues, readFirstRegister, readCount)
+        writeRegisters(writeFirstRegister, writeValues)
+        return getRegisters(readFirstRegister, readCount)
+    }
+
+    /**
+     * Validate the arguments of a writeRegisters call.
+     */
+    @Throws(ModbusApiException::class)
+    protected fun requireWriteRegisters(
+        firstRegister: Address,
+        values: ShortArray,
+        maxValues: Int = MODBUS_MAX_REGISTERS_PER_WRITE,
+    ) {
+        if (firstRegister.addressClass != AddressClass.HOLDING_REGISTER) {
+            throw ModbusIllegalAddressClassException("Only holding registers can be written (got $firstRegister)")
+        }
+        if (values.isEmpty() || values.size > maxValues) {
+            throw ModbusApiException("Writing ${values.size} registers is not possible (allowed 1 - $maxValues)")
+        }
+    }
+
+    /**
+     * Validate the arguments of a readWriteRegisters call.
+     */
+    @Throws(ModbusApiException::class)
+    protected fun requireReadWriteRegisters(
+        writeFirstRegister: Address,
+        writeValues: ShortArray,
+        readFirstRegister: Address,
+        readCount: Int,
+    ) {
+        requireWriteRegisters(writeFirstRegister, writeValues, MODBUS_MAX_REGISTERS_PER_READ_WRITE)
+        if (readFirstRegister.addressClass != AddressClass.HOLDING_REGISTER) {
+            throw ModbusIllegalAddressClassException("Only holding registers can be read in a read/write transaction (got $readFirstRegister)")
+        }
+        if (readCount < 1 || readCount > MODBUS_MAX_REGISTERS_PER_REQUEST) {
+            throw ModbusApiException("Reading $readCount registers is not possible (allowed 1 - $MODBUS_MAX_REGISTERS_PER_REQUEST)")
+        }
+    }
+
     // Explicitly override with a more restricted kind of exception because of
     // https://bugs.openjdk.org/browse/JDK-8155591
     @Throws(ModbusException::class)
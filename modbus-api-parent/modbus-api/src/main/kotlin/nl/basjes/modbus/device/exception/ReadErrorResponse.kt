@@ -19,22 +19,14 @@ package nl.basjes.modbus.device.exception
 
 import nl.basjes.modbus.device.api.Address
 import nl.basjes.modbus.device.api.DiscreteBlock
-import nl.basjes.modbus.device.api.DiscreteValue
 import nl.basjes.modbus.device.api.RegisterBlock
-import nl.basjes.modbus.device.api.RegisterValue
 
 fun createReadErrorRegisterBlock(
     firstRegister: Address,
     count: Int,
 ): RegisterBlock {
     val registerBlock = RegisterBlock(firstRegister.addressClass)
-    var address = firstRegister
-    for (i in 0..count) {
-        val readErrorValue = RegisterValue(address)
-        readErrorValue.setSoftReadError()
-        registerBlock[address] = readErrorValue
-        address = firstRegister.increment(i)
-    }
+    registerBlock.setSoftReadError(firstRegister, count)
     return registerBlock
 }
 
@@ -43,12 +35,6 @@ fun createReadErrorDiscreteBlock(
     count: Int,
 ): DiscreteBlock {
     val discreteBlock = DiscreteBlock(firstDiscrete.addressClass)
-    var address = firstDiscrete
-    for (i in 0..count) {
-        val readErrorValue = DiscreteValue(address)
-        readErrorValue.setSoftReadError()
-        discreteBlock[address] = readErrorValue
-        address = firstDiscrete.increment(i)
-    }
+    discreteBlock.setSoftReadError(firstDiscrete, count)
     return discreteBlock
 }
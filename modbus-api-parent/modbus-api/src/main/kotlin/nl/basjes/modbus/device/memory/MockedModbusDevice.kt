@@ -23,8 +23,10 @@ import nl.basjes.modbus.device.api.AddressClass.Type.REGISTER
 import nl.basjes.modbus.device.api.DiscreteBlock
 import nl.basjes.modbus.device.api.DiscreteValue
 import nl.basjes.modbus.device.api.ModbusDevice
+import nl.basjes.modbus.device.api.ModbusValue
 import nl.basjes.modbus.device.api.RegisterBlock
 import nl.basjes.modbus.device.api.RegisterValue
+import nl.basjes.modbus.device.api.forEachAvailableRange
 import nl.basjes.modbus.device.api.toDiscreteBlock
 import nl.basjes.modbus.device.api.toRegisterBlock
 import nl.basjes.modbus.device.exception.ModbusException
@@ -101,7 +103,7 @@ open class MockedModbusDevice : ModbusDevice() {
         firstPhysicalAddress: Int,
         binaryDiscretesValues: String,
     ): MockedModbusDevice {
-        val discreteBlock: DiscreteBlock = binaryDiscretesValues.toDiscreteBlock(Address(addressClass, firstPhysicalAddress))
+        val discreteBlock: DiscreteBlock = binaryDiscretesValues.toDiscreteBlock(Address.of(addressClass, firstPhysicalAddress))
         addDiscretes(discreteBlock)
         return this
     }
@@ -118,32 +120,40 @@ open class MockedModbusDevice : ModbusDevice() {
         firstDiscrete: Address,
         count: Int,
     ): DiscreteBlock {
-//        if (logRequests) {
-//            logger.info("MODBUS GET: {} # {}",firstRegister, count );
-//        }
-        val addressClass = firstDiscrete.addressClass
-        val discreteBlock = discreteBlocks[addressClass] ?: return DiscreteBlock(addressClass)
-        val discretes = DiscreteBlock(addressClass)
-
-        val firstPhysicalAddress = firstDiscrete.physicalAddress
-        for (registerNumber in firstPhysicalAddress until (firstPhysicalAddress + count)) {
-            val address = Address.of(addressClass, registerNumber)
-            val discreteValue = discreteBlock[address]
-            if (discreteValue.isReadError()) {
-                // If ANY of the requested registers is invalid then the entire block of values is returned as readerror
-                // This is to match the behaviour of real devices
-                logRequestResult(firstDiscrete, count, "READ ERROR ON ${address.toCleanFormat()}")
-                return createReadErrorDiscreteBlock(firstDiscrete, count)
-            }
-            if (discreteValue.hasValue()) {
-                discreteValue.fetchTimestamp = System.currentTimeMillis()
-                discretes[address] = discreteValue
-            }
+        val discretes = DiscreteBlock(firstDiscrete.addressClass)
+        if (!getDiscretesInto(firstDiscrete, count, discretes)) {
+            return createReadErrorDiscreteBlock(firstDiscrete, count)
         }
         logRequestResult(firstDiscrete, count, discretes)
         return discretes
     }
 
+    @Throws(ModbusException::class)
+    override fun getDiscretesInto(
+        firstDiscrete: Address,
+        count: Int,
+        discreteBlock: DiscreteBlock,
+    ): Boolean {
+        val storedValues = discreteBlocks[firstDiscrete.addressClass]?.valuesInRange(firstDiscrete, count) ?: return true
+        if (hasReadError(firstDiscrete, count, storedValues)) {
+            return false
+        }
+        val now = System.currentTimeMillis()
+        val values = BooleanArray(count)
+        val available = BooleanArray(count)
+        for (discreteValue in storedValues) {
+            val value = discreteValue.value ?: continue
+            val index = firstDiscrete.distance(discreteValue.address)!!
+            values[index] = value
+            available[index] = true
+            discreteValue.fetchTimestamp = now
+        }
+        forEachAvailableRange(available) { offset, rangeCount ->
+            discreteBlock.setValues(firstDiscrete.increment(offset), rangeCount, values, now, offset)
+        }
+        return true
+    }
+
     fun addRegister(
         registerValue: RegisterValue,
     ) {
@@ -177,41 +187,86 @@ open class MockedModbusDevice : ModbusDevice() {
         firstPhysicalAddress: Int,
         hexRegisterValues: String,
     ): MockedModbusDevice {
-        val registerBlock: RegisterBlock = hexRegisterValues.toRegisterBlock(Address(addressClass, firstPhysicalAddress))
+        val registerBlock: RegisterBlock = hexRegisterValues.toRegisterBlock(Address.of(addressClass, firstPhysicalAddress))
         addRegisters(registerBlock)
         return this
     }
 
+    @Throws(ModbusException::class)
     override fun getRegisters(
         firstRegister: Address,
         count: Int,
     ): RegisterBlock {
-//        if (logRequests) {
-//            logger.info("MODBUS GET: {} # {}",firstRegister, count );
-//        }
-        val addressClass = firstRegister.addressClass
-        val registerBlock = registerBlocks[addressClass] ?: return RegisterBlock(addressClass)
-        val registers = RegisterBlock(addressClass)
-
-        val firstPhysicalAddress = firstRegister.physicalAddress
-        for (registerNumber in firstPhysicalAddress until (firstPhysicalAddress + count)) {
-            val address = Address.of(addressClass, registerNumber)
-            val registerValue = registerBlock[address]
-            if (registerValue.isReadError()) {
-                // If ANY of the requested registers is invalid then the entire block of values is returned as readerror
-                // This is to match the behaviour of real devices
-                logRequestResult(firstRegister, count, "READ ERROR ON ${address.toCleanFormat()}")
-                return createReadErrorRegisterBlock(firstRegister, count)
-            }
-            if (registerValue.hasValue()) {
-                registerValue.fetchTimestamp = System.currentTimeMillis()
-                registers[address] = registerValue
-            }
+        val registers = RegisterBlock(firstRegister.addressClass)
+        if (!getRegistersInto(firstRegister, count, registers)) {
+            return createReadErrorRegisterBlock(firstRegister, count)
         }
         logRequestResult(firstRegister, count, registers)
         return registers
     }
 
+    @Throws(ModbusException::class)
+    override fun getRegistersInto(
+        firstRegister: Address,
+        count: Int,
+        registerBlock: RegisterBlock,
+    ): Boolean {
+        val storedValues = registerBlocks[firstRegister.addressClass]?.valuesInRange(firstRegister, count) ?: return true
+        if (hasReadError(firstRegister, count, storedValues)) {
+            return false
+        }
+        val now = System.currentTimeMillis()
+        val values = ShortArray(count)
+        val available = BooleanArray(count)
+        for (registerValue in storedValues) {
+            val value = registerValue.value ?: continue
+            val index = firstRegister.distance(registerValue.address)!!
+            values[index] = value
+            available[index] = true
+            registerValue.fetchTimestamp = now
+        }
+        forEachAvailableRange(available) { offset, rangeCount ->
+            registerBlock.setValues(firstRegister.increment(offset), rangeCount, values, now, offset)
+        }
+        return true
+    }
+
+    /**
+     * The written values are stored so they are returned by all subsequent reads.
+     * Writing a register that was set as a read error fails (like a real device does for a non-existent register).
+     */
+    @Throws(ModbusException::class)
+    override fun writeRegisters(
+        firstRegister: Address,
+        values: ShortArray,
+    ) {
+        requireWriteRegisters(firstRegister, values)
+        val registerBlock =
+            registerBlocks.computeIfAbsent(firstRegister.addressClass) { RegisterBlock(firstRegister.addressClass) }
+        val readError = registerBlock.valuesInRange(firstRegister, values.size).firstOrNull { it.isReadError() }
+        if (readError != null) {
+            throw ModbusException("Unable to write ${readError.address.toCleanFormat()}")
+        }
+        registerBlock.setValues(firstRegister, values.size, values, System.currentTimeMillis())
+        if (logRequests) {
+            logger.info("Writing {} registers starting at \"{}\": {}", values.size, firstRegister, values.joinToString(" ") { "%04X".format(it) })
+        }
+    }
+
+    /**
+     * If ANY of the requested values is a read error then the entire request is a read error.
+     * This is to match the behaviour of real devices.
+     */
+    private fun hasReadError(
+        first: Address,
+        count: Int,
+        storedValues: Collection<ModbusValue<*, *>>,
+    ): Boolean {
+        val readError = storedValues.firstOrNull { it.isReadError() } ?: return false
+        logRequestResult(first, count, "READ ERROR ON ${readError.address.toCleanFormat()}")
+        return true
+    }
+
     private fun logRequestResult(
         first: Address,
         count: Int,
@@ -250,10 +305,7 @@ open class MockedModbusDevice : ModbusDevice() {
         }
 
         fun withDiscretes(discreteBlock: DiscreteBlock): MockedModbusDeviceBuilder {
-            val firstAddress = discreteBlock.firstAddress
-            if (firstAddress != null) {
-                mockedModbusDevice.addDiscretes(firstAddress, discreteBlock.toBitString())
-            }
+            mockedModbusDevice.addDiscretes(discreteBlock)
             return this
         }
 
@@ -275,10 +327,7 @@ open class MockedModbusDevice : ModbusDevice() {
         }
 
         fun withRegisters(registerBlock: RegisterBlock): MockedModbusDeviceBuilder {
-            val firstAddress = registerBlock.firstAddress
-            if (firstAddress != null) {
-                mockedModbusDevice.addRegisters(firstAddress, registerBlock.toHexString())
-            }
+            mockedModbusDevice.addRegisters(registerBlock)
             return this
         }
 
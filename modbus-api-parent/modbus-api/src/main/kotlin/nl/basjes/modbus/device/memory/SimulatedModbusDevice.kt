@@ -0,0 +1,368 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.memory
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressClass
+import nl.basjes.modbus.device.api.AddressClass.Type.DISCRETE
+import nl.basjes.modbus.device.api.AddressClass.Type.REGISTER
+import nl.basjes.modbus.device.api.DiscreteBlock
+import nl.basjes.modbus.device.api.ModbusDevice
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.api.forEachAvailableRange
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.exception.createReadErrorDiscreteBlock
+import nl.basjes.modbus.device.exception.createReadErrorRegisterBlock
+
+/**
+ * A simulated ModbusDevice intended for load testing with many devices.
+ * All values are stored in (lazily allocated) arrays instead of ModbusValue instances
+ * and values can be produced by ValueGenerators so the device behaves like live data.
+ * All methods are thread safe.
+ */
+open class SimulatedModbusDevice : ModbusDevice() {
+    // Per AddressClass the stored values (created when first needed)
+    private val valueTables = arrayOfNulls<ValueTable>(AddressClass.entries.size)
+
+    private val generatedValues: MutableList<GeneratedValue> = mutableListOf()
+
+    override fun close() {
+        // Nothing to do here
+    }
+
+    private fun valueTable(addressClass: AddressClass): ValueTable =
+        valueTables[addressClass.ordinal] ?: ValueTable().also { valueTables[addressClass.ordinal] = it }
+
+    private fun requireRange(
+        firstAddress: Address,
+        count: Int,
+        type: AddressClass.Type,
+    ) {
+        require(firstAddress.addressClass.type == type) {
+            "The address $firstAddress is not a ${type.name.lowercase()} address"
+        }
+        require(count >= 0 && firstAddress.physicalAddress + count <= 0x10000) {
+            "The range $firstAddress # $count is outside the valid address range"
+        }
+    }
+
+    /**
+     * Set the values of a range of registers
+     * @param firstAddress The address of the first register
+     * @param values The register values
+     */
+    fun setRegisters(
+        firstAddress: Address,
+        values: ShortArray,
+    ): SimulatedModbusDevice {
+        requireRange(firstAddress, values.size, REGISTER)
+        synchronized(this) {
+            val valueTable = valueTable(firstAddress.addressClass)
+            values.forEachIndexed { index, value -> valueTable.setValue(firstAddress.physicalAddress + index, value) }
+        }
+        return this
+    }
+
+    @Throws(ModbusException::class)
+    override fun writeRegisters(
+        firstRegister: Address,
+        values: ShortArray,
+    ) {
+        requireWriteRegisters(firstRegister, values)
+        setRegisters(firstRegister, values)
+    }
+
+    /**
+     * Set the values of a range of discretes
+     * @param firstAddress The address of the first discrete
+     * @param values The discrete values
+     */
+    fun setDiscretes(
+        firstAddress: Address,
+        values: BooleanArray,
+    ): SimulatedModbusDevice {
+        requireRange(firstAddress, values.size, DISCRETE)
+        synchronized(this) {
+            val valueTable = valueTable(firstAddress.addressClass)
+            values.forEachIndexed { index, value -> valueTable.setValue(firstAddress.physicalAddress + index, if (value) 1 else 0) }
+        }
+        return this
+    }
+
+    /**
+     * Make a range of addresses return a read error (like a real device does when reading a non-existent register)
+     * @param firstAddress The first address of the range
+     * @param count The number of addresses
+     */
+    fun setReadError(
+        firstAddress: Address,
+        count: Int,
+    ): SimulatedModbusDevice {
+        requireRange(firstAddress, count, firstAddress.addressClass.type)
+        synchronized(this) {
+            val valueTable = valueTable(firstAddress.addressClass)
+            for (index in 0 until count) {
+                valueTable.setReadError(firstAddress.physicalAddress + index)
+            }
+        }
+        return this
+    }
+
+    /**
+     * Load all values (and read errors) from the provided RegisterBlock.
+     */
+    fun load(registerBlock: RegisterBlock): SimulatedModbusDevice {
+        synchronized(this) {
+            val valueTable = valueTable(registerBlock.addressClass)
+            for (registerValue in registerBlock.values) {
+                val value = registerValue.value
+                when {
+                    value != null                -> valueTable.setValue(registerValue.address.physicalAddress, value)
+                    registerValue.isReadError()  -> valueTable.setReadError(registerValue.address.physicalAddress)
+                }
+            }
+        }
+        return this
+    }
+
+    /**
+     * Load all values (and read errors) from the provided DiscreteBlock.
+     */
+    fun load(discreteBlock: DiscreteBlock): SimulatedModbusDevice {
+        synchronized(this) {
+            val valueTable = valueTable(discreteBlock.addressClass)
+            for (discreteValue in discreteBlock.values) {
+                val value = discreteValue.value
+                when {
+                    value != null                -> valueTable.setValue(discreteValue.address.physicalAddress, if (value) 1 else 0)
+                    discreteValue.isReadError()  -> valueTable.setReadError(discreteValue.address.physicalAddress)
+                }
+            }
+        }
+        return this
+    }
+
+    /**
+     * Let the registers starting at the provided address get their value from the generator each time they are read.
+     * @param firstAddress The address of the first register
+     * @param encoding How the generated value is stored in the registers
+     * @param generator The generator of the values
+     */
+    fun addGenerator(
+        firstAddress: Address,
+        encoding: ValueEncoding,
+        generator: ValueGenerator,
+    ): SimulatedModbusDevice {
+        requireRange(firstAddress, encoding.registers, REGISTER)
+        synchronized(this) {
+            valueTable(firstAddress.addressClass)
+            generatedValues.add(GeneratedValue(firstAddress, encoding, generator))
+        }
+        return this
+    }
+
+    /**
+     * Let the discrete at the provided address get its value from the generator each time it is read.
+     * The discrete is true if the generated value is not 0.
+     * @param address The address of the discrete
+     * @param generator The generator of the values
+     */
+    fun addGenerator(
+        address: Address,
+        generator: ValueGenerator,
+    ): SimulatedModbusDevice {
+        requireRange(address, 1, DISCRETE)
+        synchronized(this) {
+            valueTable(address.addressClass)
+            generatedValues.add(GeneratedValue(address, null, generator))
+        }
+        return this
+    }
+
+    @Throws(ModbusException::class)
+    override fun getRegisters(
+        firstRegister: Address,
+        count: Int,
+    ): RegisterBlock {
+        val registers = RegisterBlock(firstRegister.addressClass)
+        if (!getRegistersInto(firstRegister, count, registers)) {
+            return createReadErrorRegisterBlock(firstRegister, count)
+        }
+        return registers
+    }
+
+    @Throws(ModbusException::class)
+    override fun getRegistersInto(
+        firstRegister: Address,
+        count: Int,
+        registerBlock: RegisterBlock,
+    ): Boolean {
+        requireRange(firstRegister, count, REGISTER)
+        val now = System.currentTimeMillis()
+        val values = ShortArray(count)
+        val available = BooleanArray(count)
+        synchronized(this) {
+            if (!readValues(firstRegister, count, now, values, available)) {
+                return false
+            }
+        }
+        forEachAvailableRange(available) { offset, rangeCount ->
+            registerBlock.setValues(firstRegister.increment(offset), rangeCount, values, now, offset)
+        }
+        return true
+    }
+
+    @Throws(ModbusException::class)
+    override fun getDiscretes(
+        firstDiscrete: Address,
+        count: Int,
+    ): DiscreteBlock {
+        val discretes = DiscreteBlock(firstDiscrete.addressClass)
+        if (!getDiscretesInto(firstDiscrete, count, discretes)) {
+            return createReadErrorDiscreteBlock(firstDiscrete, count)
+        }
+        return discretes
+    }
+
+    @Throws(ModbusException::class)
+    override fun getDiscretesInto(
+        firstDiscrete: Address,
+        count: Int,
+        discreteBlock: DiscreteBlock,
+    ): Boolean {
+        requireRange(firstDiscrete, count, DISCRETE)
+        val now = System.currentTimeMillis()
+        val values = ShortArray(count)
+        val available = BooleanArray(count)
+        synchronized(this) {
+            if (!readValues(firstDiscrete, count, now, values, available)) {
+                return false
+            }
+        }
+        val discreteValues = BooleanArray(count) { values[it].toInt() != 0 }
+        forEachAvailableRange(available) { offset, rangeCount ->
+            discreteBlock.setValues(firstDiscrete.increment(offset), rangeCount, discreteValues, now, offset)
+        }
+        return true
+    }
+
+    /**
+     * Read the current values (after running the relevant generators).
+     * MUST be called while holding the lock.
+     * @return false if any of the values is a read error
+     */
+    private fun readValues(
+        firstAddress: Address,
+        count: Int,
+        now: Long,
+        values: ShortArray,
+        available: BooleanArray,
+    ): Boolean {
+        val valueTable = valueTables[firstAddress.addressClass.ordinal] ?: return true
+        for (generatedValue in generatedValues) {
+            if (generatedValue.overlaps(firstAddress, count)) {
+                generatedValue.generate(valueTable, now)
+            }
+        }
+        val firstPhysicalAddress = firstAddress.physicalAddress
+        for (index in 0 until count) {
+            when (valueTable.state(firstPhysicalAddress + index)) {
+                ValueTable.READ_ERROR -> return false
+                ValueTable.HAS_VALUE  -> {
+                    values[index] = valueTable.value(firstPhysicalAddress + index)
+                    available[index] = true
+                }
+            }
+        }
+        return true
+    }
+
+    private class GeneratedValue(
+        val firstAddress: Address,
+        /** The encoding of the value or null for a discrete */
+        val encoding: ValueEncoding?,
+        val generator: ValueGenerator,
+    ) {
+        private val count = encoding?.registers ?: 1
+        private val registers = ShortArray(count)
+
+        fun overlaps(
+            address: Address,
+            addressCount: Int,
+        ): Boolean {
+            val distance = address.distance(firstAddress) ?: return false
+            return distance < addressCount && distance + count > 0
+        }
+
+        fun generate(
+            valueTable: ValueTable,
+            now: Long,
+        ) {
+            val value = generator.valueAt(now)
+            if (encoding == null) {
+                registers[0] = if (value != 0.0) 1 else 0
+            } else {
+                encoding.encode(value, registers)
+            }
+            registers.forEachIndexed { index, register -> valueTable.setValue(firstAddress.physicalAddress + index, register) }
+        }
+    }
+
+    /**
+     * All values of a single AddressClass stored in pages of arrays which are only created when used.
+     */
+    private class ValueTable {
+        private val pageValues = arrayOfNulls<ShortArray>(PAGES)
+        private val pageStates = arrayOfNulls<ByteArray>(PAGES)
+
+        fun setValue(
+            physicalAddress: Int,
+            value: Short,
+        ) {
+            val page = physicalAddress ushr PAGE_BITS
+            val values = pageValues[page] ?: ShortArray(PAGE_SIZE).also { pageValues[page] = it }
+            values[physicalAddress and PAGE_MASK] = value
+            setState(physicalAddress, HAS_VALUE)
+        }
+
+        fun setReadError(physicalAddress: Int) = setState(physicalAddress, READ_ERROR)
+
+        private fun setState(
+            physicalAddress: Int,
+            state: Byte,
+        ) {
+            val page = physicalAddress ushr PAGE_BITS
+            val states = pageStates[page] ?: ByteArray(PAGE_SIZE).also { pageStates[page] = it }
+            states[physicalAddress and PAGE_MASK] = state
+        }
+
+        fun state(physicalAddress: Int): Byte = pageStates[physicalAddress ushr PAGE_BITS]?.get(physicalAddress and PAGE_MASK) ?: ABSENT
+
+        fun value(physicalAddress: Int): Short = pageValues[physicalAddress ushr PAGE_BITS]?.get(physicalAddress and PAGE_MASK) ?: 0
+
+        companion object {
+            const val ABSENT: Byte      = 0
+            const val HAS_VALUE: Byte   = 1
+            const val READ_ERROR: Byte  = 2
+
+            private const val PAGE_BITS = 8
+            private const val PAGE_SIZE = 1 shl PAGE_BITS
+            private const val PAGE_MASK = PAGE_SIZE - 1
+            private const val PAGES     = 0x10000 / PAGE_SIZE
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.memory
+
+import java.util.Random
+
+/**
+ * Generates the (changing) value of a simulated modbus value.
+ */
+fun interface ValueGenerator {
+    /**
+     * @param timestamp The moment (epoch milliseconds) the value is read.
+     * @return The value at the provided moment
+     */
+    fun valueAt(timestamp: Long): Double
+
+    companion object {
+        /**
+         * A value that never changes.
+         * @param value The value
+         */
+        @JvmStatic
+        fun constant(value: Double): ValueGenerator = ValueGenerator { value }
+
+        /**
+         * A value that linearly goes from `from` to `to` in `periodMs` milliseconds and then starts again.
+         * @param from The value at the start of each period
+         * @param to The value at the end of each period
+         * @param periodMs The length (in milliseconds) of each period
+         */
+        @JvmStatic
+        fun ramp(
+            from: Double,
+            to: Double,
+            periodMs: Long,
+        ): ValueGenerator {
+            require(periodMs > 0) { "The period of a ramp must be positive" }
+            return ValueGenerator { timestamp ->
+                from + ((to - from) * Math.floorMod(timestamp, periodMs).toDouble() / periodMs)
+            }
+        }
+
+        /**
+         * A random value uniformly distributed between `center - amplitude` and `center + amplitude`.
+         * @param center The average value
+         * @param amplitude The maximum deviation from the center
+         * @param seed The seed of the random generator (to make the simulation reproducible)
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun noise(
+            center: Double,
+            amplitude: Double,
+            seed: Long = System.nanoTime(),
+        ): ValueGenerator {
+            val random = Random(seed)
+            return ValueGenerator { center + amplitude * ((random.nextDouble() * 2.0) - 1.0) }
+        }
+
+        /**
+         * A counter that increases by `step` every time the value is read.
+         * @param start The first value
+         * @param step The increase per read
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun counter(
+            start: Double = 0.0,
+            step: Double = 1.0,
+        ): ValueGenerator =
+            object : ValueGenerator {
+                private var next = start
+
+                @Synchronized
+                override fun valueAt(timestamp: Long): Double {
+                    val value = next
+                    next += step
+                    return value
+                }
+            }
+    }
+}
+
+/**
+ * How a generated value is stored in one or more (big endian) registers.
+ */
+enum class ValueEncoding(
+    /** The number of registers needed to store the value */
+    val registers: Int,
+) {
+    INT16(1),
+    INT32(2),
+    INT64(4),
+    IEEE754_32(2),
+    IEEE754_64(4),
+    ;
+
+    /**
+     * Encode the value into the registers.
+     * @param value The value to encode (integer encodings drop the fraction)
+     * @param target Where the registers must be written
+     * @param offset The index in the target of the first register
+     */
+    fun encode(
+        value: Double,
+        target: ShortArray,
+        offset: Int = 0,
+    ) {
+        val bits =
+            when (this) {
+                INT16,
+                INT32,
+                INT64,
+                -> value.toLong()
+                IEEE754_32 -> value.toFloat().toRawBits().toLong()
+                IEEE754_64 -> value.toRawBits()
+            }
+        for (register in 0 until registers) {
+            target[offset + register] = (bits ushr (16 * (registers - 1 - register))).toShort()
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.recording
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressClass
+import nl.basjes.modbus.device.api.AddressClass.Type.DISCRETE
+import nl.basjes.modbus.device.api.AddressClass.Type.REGISTER
+import nl.basjes.modbus.device.api.DiscreteBlock
+import nl.basjes.modbus.device.api.ModbusBlock
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.api.forEachAvailableRange
+import nl.basjes.modbus.device.exception.ModbusApiException
+import nl.basjes.modbus.device.exception.createReadErrorDiscreteBlock
+import nl.basjes.modbus.device.exception.createReadErrorRegisterBlock
+import java.nio.ByteBuffer
+
+// The binary format of a capture log (all numbers are big endian):
+//
+// Header:
+//   4 bytes    "MBCL"
+//   1 byte     Format version
+//
+// Records (repeated):
+//   1 byte     Status (0 = end of log, 1 = values, 2 = read error, 3 = exception,
+//                      4 = write, 5 = write exception, 6 = write part of a read/write)
+//   1 byte     AddressClass (ordinal)
+//   2 bytes    Physical address of the first value
+//   2 bytes    Count
+//   8 bytes    Start of the request (epoch milliseconds)
+//   8 bytes    Duration of the request (nanoseconds)
+//   Status = values:
+//     (count+7)/8 bytes  Bitmap of the available values (LSB first)
+//     Registers: count * 2 bytes, Discretes: (count+7)/8 bytes (LSB first)
+//   Status = exception:
+//     2 bytes + N bytes  The UTF-8 exception message
+//   Status = write or write part of a read/write:
+//     count * 2 bytes    The written values
+//   Status = write exception:
+//     count * 2 bytes    The written values
+//     2 bytes + N bytes  The UTF-8 exception message
+//
+// The write part of a read/write is always directly followed by the record of the read part.
+// Version 1 logs only contain reads and are a valid subset of version 2.
+
+internal val CAPTURE_LOG_MAGIC = byteArrayOf('M'.code.toByte(), 'B'.code.toByte(), 'C'.code.toByte(), 'L'.code.toByte())
+internal const val CAPTURE_LOG_VERSION: Byte = 2
+internal const val CAPTURE_LOG_HEADER_SIZE = 5
+
+internal const val STATUS_END_OF_LOG: Byte      = 0
+internal const val STATUS_VALUES: Byte          = 1
+internal const val STATUS_READ_ERROR: Byte      = 2
+internal const val STATUS_EXCEPTION: Byte       = 3
+internal const val STATUS_WRITE: Byte           = 4
+internal const val STATUS_WRITE_EXCEPTION: Byte = 5
+internal const val STATUS_READ_WRITE: Byte      = 6
+
+internal const val RECORD_HEADER_SIZE = 22
+
+/**
+ * A single request and response as stored in the capture log.
+ */
+internal class CapturedRequest(
+    val status: Byte,
+    val firstAddress: Address,
+    val count: Int,
+    /** The start of the request (epoch milliseconds) */
+    val timestamp: Long,
+    /** The duration of the request in nanoseconds */
+    val durationNanos: Long,
+    /** The position in the log of the values or the exception message */
+    val payloadPosition: Int,
+) {
+    private fun bitmapSize() = (count + 7) / 8
+
+    /** The written values are stored before the exception message */
+    private fun exceptionMessagePosition() =
+        if (status == STATUS_WRITE_EXCEPTION) payloadPosition + (count * 2) else payloadPosition
+
+    val isWrite: Boolean
+        get() = status == STATUS_WRITE || status == STATUS_WRITE_EXCEPTION || status == STATUS_READ_WRITE
+
+    val isException: Boolean
+        get() = status == STATUS_EXCEPTION || status == STATUS_WRITE_EXCEPTION
+
+    /**
+     * Rebuild the response using the provided timestamp for all values.
+     * Must not be called for an exception.
+     */
+    fun toModbusBlock(
+        log: ByteBuffer,
+        valuesTimestamp: Long,
+    ): ModbusBlock<*, *, *> {
+        if (status == STATUS_READ_ERROR) {
+            return when (firstAddress.addressClass.type) {
+                DISCRETE -> createReadErrorDiscreteBlock(firstAddress, count)
+                REGISTER -> createReadErrorRegisterBlock(firstAddress, count)
+            }
+        }
+        val available = BooleanArray(count) { isBitSet(log, payloadPosition, it) }
+        val valuesPosition = payloadPosition + bitmapSize()
+        return when (firstAddress.addressClass.type) {
+            DISCRETE -> {
+                val values = BooleanArray(count) { isBitSet(log, valuesPosition, it) }
+                val discreteBlock = DiscreteBlock(firstAddress.addressClass)
+                forEachAvailableRange(available) { offset, rangeCount ->
+                    discreteBlock.setValues(firstAddress.increment(offset), rangeCount, values, valuesTimestamp, offset)
+                }
+                discreteBlock
+            }
+            REGISTER -> {
+                val values = ShortArray(count) { log.getShort(valuesPosition + (it * 2)) }
+                val registerBlock = RegisterBlock(firstAddress.addressClass)
+                forEachAvailableRange(available) { offset, rangeCount ->
+                    registerBlock.setValues(firstAddress.increment(offset), rangeCount, values, valuesTimestamp, offset)
+                }
+                registerBlock
+            }
+        }
+    }
+
+    fun exceptionMessage(log: ByteBuffer): String {
+        val messagePosition = exceptionMessagePosition()
+        val length = log.getShort(messagePosition).toInt() and 0xFFFF
+        val bytes = ByteArray(length)
+        log.get(messagePosition + 2, bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    /**
+     * The values that were written.
+     * Must only be called for a write.
+     */
+    fun writtenValues(log: ByteBuffer): ShortArray = ShortArray(count) { log.getShort(payloadPosition + (it * 2)) }
+
+    companion object {
+        /**
+         * Read the record at the current position of the log (the position is moved to the next record).
+         * @return The record or null at the end of the log.
+         */
+        fun read(log: ByteBuffer): CapturedRequest? {
+            if (log.remaining() < RECORD_HEADER_SIZE) {
+                return null
+            }
+            val status = log.get()
+            if (status == STATUS_END_OF_LOG) {
+                return null
+            }
+            val addressClassOrdinal = log.get().toInt()
+            if (addressClassOrdinal !in AddressClass.entries.indices) {
+                throw ModbusApiException("Invalid AddressClass $addressClassOrdinal in capture log at position ${log.position() - 2}")
+            }
+            val firstAddress = Address.of(AddressClass.entries[addressClassOrdinal], log.getShort().toInt() and 0xFFFF)
+            val count = log.getShort().toInt() and 0xFFFF
+            val timestamp = log.getLong()
+            val durationNanos = log.getLong()
+            val request = CapturedRequest(status, firstAddress, count, timestamp, durationNanos, log.position())
+            val payloadSize =
+                when (status) {
+                    STATUS_VALUES     -> payloadSize(firstAddress.addressClass, count)
+                    STATUS_READ_ERROR -> 0
+                    STATUS_EXCEPTION  -> 2 + (log.getShort(log.position()).toInt() and 0xFFFF)
+                    STATUS_WRITE,
+                    STATUS_READ_WRITE -> count * 2
+                    STATUS_WRITE_EXCEPTION -> (count * 2) + 2 + (log.getShort(log.position() + (count * 2)).toInt() and 0xFFFF)
+                    else -> throw ModbusApiException("Invalid status $status in capture log at position ${request.payloadPosition - RECORD_HEADER_SIZE}")
+                }
+            log.position(log.position() + payloadSize)
+            return request
+        }
+
+        fun payloadSize(
+            addressClass: AddressClass,
+            count: Int,
+        ) = ((count + 7) / 8) +
+            when (addressClass.type) {
+                DISCRETE -> (count + 7) / 8
+                REGISTER -> count * 2
+            }
+
+        private fun isBitSet(
+            log: ByteBuffer,
+            position: Int,
+            index: Int,
+        ) = (log.get(position + (index / 8)).toInt() and (1 shl (index % 8))) != 0
+    }
+}
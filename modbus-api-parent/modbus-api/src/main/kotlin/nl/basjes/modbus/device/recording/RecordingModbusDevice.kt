@@ -0,0 +1,304 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.recording
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.DiscreteBlock
+import nl.basjes.modbus.device.api.ModbusBlock
+import nl.basjes.modbus.device.api.ModbusDevice
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.exception.ModbusException
+import java.io.IOException
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode.READ_WRITE
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.StandardOpenOption.TRUNCATE_EXISTING
+import java.nio.file.StandardOpenOption.WRITE
+
+/**
+ * A ModbusDevice that passes all requests to the provided ModbusDevice and appends every
+ * request and response (including timestamps, durations and errors) to a binary capture log.
+ * The capture log is written through a memory mapped buffer so recording adds very little
+ * overhead to the actual requests. The recorded log can be served back using a ReplayModbusDevice.
+ *
+ * @param modbusDevice The actual device to record the traffic of.
+ * @param captureLog The file to write the capture log to (an existing file is overwritten).
+ * @param mappedChunkSize The number of bytes that are mapped into memory at a time.
+ */
+class RecordingModbusDevice
+    @JvmOverloads
+    constructor(
+        private val modbusDevice: ModbusDevice,
+        captureLog: Path,
+        private val mappedChunkSize: Int = DEFAULT_MAPPED_CHUNK_SIZE,
+    ) : ModbusDevice() {
+        init {
+            // Must be checked before the capture log is created and mapped.
+            require(mappedChunkSize >= 1024) { "The mappedChunkSize must be at least 1024 bytes" }
+        }
+
+        private val channel: FileChannel = FileChannel.open(captureLog, CREATE, TRUNCATE_EXISTING, READ, WRITE)
+
+        // The absolute position in the file of the start of the mapped buffer
+        private var mappedPosition = 0L
+        private var buffer: MappedByteBuffer = channel.map(READ_WRITE, mappedPosition, mappedChunkSize.toLong())
+        private var closed = false
+
+        init {
+            maxRegistersPerModbusRequest = modbusDevice.maxRegistersPerModbusRequest
+            buffer.put(CAPTURE_LOG_MAGIC)
+            buffer.put(CAPTURE_LOG_VERSION)
+        }
+
+        /** The number of bytes written to the capture log so far. */
+        val size: Long
+            @Synchronized get() = mappedPosition + buffer.position()
+
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun getRegisters(
+            firstRegister: Address,
+            count: Int,
+        ): RegisterBlock = record(firstRegister, count) { modbusDevice.getRegisters(firstRegister, count) }
+
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun getDiscretes(
+            firstDiscrete: Address,
+            count: Int,
+        ): DiscreteBlock = record(firstDiscrete, count) { modbusDevice.getDiscretes(firstDiscrete, count) }
+
+        /**
+         * The written values and the outcome of the write are recorded.
+         */
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun writeRegisters(
+            firstRegister: Address,
+            values: ShortArray,
+        ) {
+            checkNotClosed()
+            val timestamp = System.currentTimeMillis()
+            val start = System.nanoTime()
+            try {
+                modbusDevice.writeRegisters(firstRegister, values)
+            } catch (e: ModbusException) {
+                val messageBytes = e.messageBytes()
+                writeRecordHeader(
+                    STATUS_WRITE_EXCEPTION,
+                    firstRegister,
+                    values.size,
+                    timestamp,
+                    System.nanoTime() - start,
+                    (values.size * 2) + 2 + messageBytes.size,
+                )
+                putValues(values)
+                putMessage(messageBytes)
+                throw e
+            }
+            writeRecordHeader(STATUS_WRITE, firstRegister, values.size, timestamp, System.nanoTime() - start, values.size * 2)
+            putValues(values)
+        }
+
+        /**
+         * The written values are recorded directly followed by the read part of the transaction.
+         */
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun readWriteRegisters(
+            writeFirstRegister: Address,
+            writeValues: ShortArray,
+            readFirstRegister: Address,
+            readCount: Int,
+        ): RegisterBlock =
+            record(readFirstRegister, readCount, writeFirstRegister, writeValues) {
+                modbusDevice.readWriteRegisters(writeFirstRegister, writeValues, readFirstRegister, readCount)
+            }
+
+        /**
+         * Do the request and record the response.
+         * @param writeFirstRegister The first written register if the request also does a write.
+         * @param writeValues The written values if the request also does a write.
+         */
+        private fun <T : ModbusBlock<*, *, *>> record(
+            firstAddress: Address,
+            count: Int,
+            writeFirstRegister: Address? = null,
+            writeValues: ShortArray? = null,
+            request: () -> T,
+        ): T {
+            checkNotClosed()
+            val timestamp = System.currentTimeMillis()
+            val start = System.nanoTime()
+
+            fun writeResponseHeader(
+                status: Byte,
+                durationNanos: Long,
+                payloadSize: Int,
+            ) {
+                if (writeFirstRegister != null && writeValues != null) {
+                    writeRecordHeader(STATUS_READ_WRITE, writeFirstRegister, writeValues.size, timestamp, durationNanos, writeValues.size * 2)
+                    putValues(writeValues)
+                }
+                writeRecordHeader(status, firstAddress, count, timestamp, durationNanos, payloadSize)
+            }
+
+            val response: T
+            try {
+                response = request()
+            } catch (e: ModbusException) {
+                val messageBytes = e.messageBytes()
+                writeResponseHeader(STATUS_EXCEPTION, System.nanoTime() - start, 2 + messageBytes.size)
+                putMessage(messageBytes)
+                throw e
+            }
+            val durationNanos = System.nanoTime() - start
+
+            if (response.values.any { it.isReadError() }) {
+                writeResponseHeader(STATUS_READ_ERROR, durationNanos, 0)
+                return response
+            }
+
+            val bitmapSize = (count + 7) / 8
+            writeResponseHeader(STATUS_VALUES, durationNanos, CapturedRequest.payloadSize(firstAddress.addressClass, count))
+            val bitmapPosition = buffer.position()
+            when (response) {
+                is RegisterBlock -> {
+                    val valuesPosition = bitmapPosition + bitmapSize
+                    for (index in 0 until bitmapSize + (count * 2)) {
+                        buffer.put(bitmapPosition + index, 0)
+                    }
+                    for (registerValue in response.valuesInRange(firstAddress, count)) {
+                        val value = registerValue.value ?: continue
+                        val index = firstAddress.distance(registerValue.address)!!
+                        setBit(bitmapPosition, index)
+                        buffer.putShort(valuesPosition + (index * 2), value)
+                    }
+                    buffer.position(valuesPosition + (count * 2))
+                }
+                is DiscreteBlock -> {
+                    val valuesPosition = bitmapPosition + bitmapSize
+                    for (index in 0 until bitmapSize * 2) {
+                        buffer.put(bitmapPosition + index, 0)
+                    }
+                    for (discreteValue in response.valuesInRange(firstAddress, count)) {
+                        val value = discreteValue.value ?: continue
+                        val index = firstAddress.distance(discreteValue.address)!!
+                        setBit(bitmapPosition, index)
+                        if (value) {
+                            setBit(valuesPosition, index)
+                        }
+                    }
+                    buffer.position(valuesPosition + bitmapSize)
+                }
+            }
+            return response
+        }
+
+        private fun checkNotClosed() {
+            if (closed) {
+                throw ModbusException("The RecordingModbusDevice has been closed")
+            }
+        }
+
+        /** The UTF-8 exception message (cut to the maximum length that can be stored) */
+        private fun ModbusException.messageBytes(): ByteArray {
+            val messageBytes = (message ?: javaClass.name).toByteArray(Charsets.UTF_8)
+            return if (messageBytes.size > 0xFFFF) messageBytes.copyOf(0xFFFF) else messageBytes
+        }
+
+        private fun putMessage(messageBytes: ByteArray) {
+            buffer.putShort(messageBytes.size.toShort())
+            buffer.put(messageBytes)
+        }
+
+        private fun putValues(values: ShortArray) {
+            values.forEach { buffer.putShort(it) }
+        }
+
+        private fun setBit(
+            position: Int,
+            index: Int,
+        ) {
+            val bytePosition = position + (index / 8)
+            buffer.put(bytePosition, (buffer.get(bytePosition).toInt() or (1 shl (index % 8))).toByte())
+        }
+
+        private fun writeRecordHeader(
+            status: Byte,
+            firstAddress: Address,
+            count: Int,
+            timestamp: Long,
+            durationNanos: Long,
+            payloadSize: Int,
+        ) {
+            ensureCapacity(RECORD_HEADER_SIZE + payloadSize)
+            buffer.put(status)
+            buffer.put(firstAddress.addressClass.ordinal.toByte())
+            buffer.putShort(firstAddress.physicalAddress.toShort())
+            buffer.putShort(count.toShort())
+            buffer.putLong(timestamp)
+            buffer.putLong(durationNanos)
+        }
+
+        /**
+         * Make sure the mapped buffer has room for the next record (and the end of log marker).
+         * If not the next part of the file is mapped.
+         */
+        private fun ensureCapacity(recordSize: Int) {
+            if (buffer.remaining() > recordSize) {
+                return
+            }
+            try {
+                buffer.force()
+                mappedPosition += buffer.position()
+                buffer = channel.map(READ_WRITE, mappedPosition, maxOf(mappedChunkSize, recordSize + 1).toLong())
+            } catch (e: IOException) {
+                throw ModbusException("Unable to extend the capture log", e)
+            }
+        }
+
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun close() {
+            if (closed) {
+                return
+            }
+            closed = true
+            try {
+                // The end of log marker is not part of the size so the file is cut just before it.
+                // This marker is only relevant if the process dies before the file is truncated.
+                buffer.put(buffer.position(), STATUS_END_OF_LOG)
+                buffer.force()
+                channel.truncate(size)
+                channel.close()
+            } catch (e: IOException) {
+                throw ModbusException("Unable to close the capture log", e)
+            } finally {
+                modbusDevice.close()
+            }
+        }
+
+        override fun toString(): String = "RecordingModbusDevice($modbusDevice)"
+
+        companion object {
+            const val DEFAULT_MAPPED_CHUNK_SIZE = 1024 * 1024
+        }
+    }
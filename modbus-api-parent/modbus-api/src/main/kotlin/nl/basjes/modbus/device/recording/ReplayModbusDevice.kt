@@ -0,0 +1,234 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.recording
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.DiscreteBlock
+import nl.basjes.modbus.device.api.ModbusBlock
+import nl.basjes.modbus.device.api.ModbusDevice
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.exception.ModbusApiException
+import nl.basjes.modbus.device.exception.ModbusException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode.READ_ONLY
+import java.nio.file.Path
+import java.util.ArrayDeque
+
+/**
+ * A ModbusDevice that serves the responses from a capture log (as written by a RecordingModbusDevice).
+ * Each request is answered with the next recorded response for exactly the same request
+ * (same first address and count). Recorded read errors and exceptions are reproduced.
+ * Writes (also the write part of a read/write) are only accepted if they write exactly the recorded values.
+ * All returned values get the current time as their fetch timestamp.
+ *
+ * @param captureLog The capture log to replay.
+ * @param speedFactor How fast the log is replayed: ORIGINAL_TIMING (1.0) waits until the recorded
+ *                    time of each response, 10.0 replays 10 times as fast and AS_FAST_AS_POSSIBLE does not wait at all.
+ */
+class ReplayModbusDevice
+    @JvmOverloads
+    constructor(
+        captureLog: Path,
+        private val speedFactor: Double = AS_FAST_AS_POSSIBLE,
+    ) : ModbusDevice() {
+        private val log: ByteBuffer
+        private val requests = mutableMapOf<RequestKey, ArrayDeque<CapturedRequest>>()
+        private val writes = mutableMapOf<RequestKey, ArrayDeque<CapturedRequest>>()
+        private val readWrites = mutableMapOf<Pair<RequestKey, RequestKey>, ArrayDeque<CapturedReadWrite>>()
+        private val firstRecordTimestamp: Long
+        private var replayStartNanos: Long? = null
+
+        private data class RequestKey(
+            val firstAddress: Address,
+            val count: Int,
+        )
+
+        private class CapturedReadWrite(
+            val write: CapturedRequest,
+            val read: CapturedRequest,
+        )
+
+        init {
+            require(speedFactor > 0.0) { "The speedFactor must be larger than 0" }
+            log =
+                FileChannel.open(captureLog).use { channel ->
+                    channel.map(READ_ONLY, 0, channel.size())
+                }
+            val magic = ByteArray(CAPTURE_LOG_MAGIC.size)
+            if (log.remaining() < CAPTURE_LOG_HEADER_SIZE ||
+                !log.get(magic).let { magic.contentEquals(CAPTURE_LOG_MAGIC) }
+            ) {
+                throw ModbusApiException("The file $captureLog is not a modbus capture log")
+            }
+            val version = log.get()
+            if (version < 1 || version > CAPTURE_LOG_VERSION) {
+                throw ModbusApiException("The capture log $captureLog has unsupported version $version")
+            }
+            var firstTimestamp: Long? = null
+            while (true) {
+                val request = CapturedRequest.read(log) ?: break
+                if (firstTimestamp == null) {
+                    firstTimestamp = request.timestamp
+                }
+                val key = RequestKey(request.firstAddress, request.count)
+                when (request.status) {
+                    STATUS_WRITE,
+                    STATUS_WRITE_EXCEPTION,
+                    -> writes.computeIfAbsent(key) { ArrayDeque() }.add(request)
+
+                    STATUS_READ_WRITE -> {
+                        val read = CapturedRequest.read(log)
+                        if (read == null || read.isWrite) {
+                            throw ModbusApiException("The capture log $captureLog has a read/write without the read part")
+                        }
+                        readWrites
+                            .computeIfAbsent(key to RequestKey(read.firstAddress, read.count)) { ArrayDeque() }
+                            .add(CapturedReadWrite(request, read))
+                    }
+
+                    else -> requests.computeIfAbsent(key) { ArrayDeque() }.add(request)
+                }
+            }
+            firstRecordTimestamp = firstTimestamp ?: 0
+        }
+
+        /** The number of recorded responses that have not yet been replayed. */
+        val remaining: Int
+            @Synchronized get() =
+                requests.values.sumOf { it.size } + writes.values.sumOf { it.size } + readWrites.values.sumOf { it.size }
+
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun getRegisters(
+            firstRegister: Address,
+            count: Int,
+        ): RegisterBlock = replay(firstRegister, count) as RegisterBlock
+
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun getDiscretes(
+            firstDiscrete: Address,
+            count: Int,
+        ): DiscreteBlock = replay(firstDiscrete, count) as DiscreteBlock
+
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun writeRegisters(
+            firstRegister: Address,
+            values: ShortArray,
+        ) {
+            requireWriteRegisters(firstRegister, values)
+            val recordedWrites = writes[RequestKey(firstRegister, values.size)]
+            val write =
+                recordedWrites?.peek()
+                    ?: throw ModbusException("No recorded write left for ${values.size} registers starting at $firstRegister")
+            requireRecordedValues(write, values)
+            recordedWrites.poll()
+            waitUntilRecordedTime(write)
+            if (write.isException) {
+                throw ModbusException(write.exceptionMessage(log))
+            }
+        }
+
+        @Synchronized
+        @Throws(ModbusException::class)
+        override fun readWriteRegisters(
+            writeFirstRegister: Address,
+            writeValues: ShortArray,
+            readFirstRegister: Address,
+            readCount: Int,
+        ): RegisterBlock {
+            requireReadWriteRegisters(writeFirstRegister, writeValues, readFirstRegister, readCount)
+            val recordedReadWrites = readWrites[RequestKey(writeFirstRegister, writeValues.size) to RequestKey(readFirstRegister, readCount)]
+            val readWrite =
+                recordedReadWrites?.peek()
+                    ?: throw ModbusException(
+                        "No recorded read/write left for writing ${writeValues.size} registers starting at $writeFirstRegister " +
+                            "and reading $readCount registers starting at $readFirstRegister",
+                    )
+            requireRecordedValues(readWrite.write, writeValues)
+            recordedReadWrites.poll()
+            return replay(readWrite.read) as RegisterBlock
+        }
+
+        /**
+         * A write with other values than recorded is rejected (and the recorded write is kept).
+         */
+        private fun requireRecordedValues(
+            write: CapturedRequest,
+            values: ShortArray,
+        ) {
+            if (!write.writtenValues(log).contentEquals(values)) {
+                throw ModbusException(
+                    "The values written to ${write.firstAddress} differ from the recording: " +
+                        "recorded ${write.writtenValues(log).toHexString()} got ${values.toHexString()}",
+                )
+            }
+        }
+
+        private fun ShortArray.toHexString() = joinToString(" ") { "%04X".format(it) }
+
+        private fun replay(
+            firstAddress: Address,
+            count: Int,
+        ): ModbusBlock<*, *, *> =
+            replay(
+                requests[RequestKey(firstAddress, count)]?.poll()
+                    ?: throw ModbusException("No recorded response left for $count values starting at $firstAddress"),
+            )
+
+        private fun replay(request: CapturedRequest): ModbusBlock<*, *, *> {
+            waitUntilRecordedTime(request)
+            if (request.isException) {
+                throw ModbusException(request.exceptionMessage(log))
+            }
+            return request.toModbusBlock(log, System.currentTimeMillis())
+        }
+
+        private fun waitUntilRecordedTime(request: CapturedRequest) {
+            if (speedFactor == AS_FAST_AS_POSSIBLE) {
+                return
+            }
+            val now = System.nanoTime()
+            val replayStart = replayStartNanos ?: now.also { replayStartNanos = it }
+            val recordedOffsetNanos = ((request.timestamp - firstRecordTimestamp) * 1_000_000L) + request.durationNanos
+            val waitNanos = replayStart + (recordedOffsetNanos / speedFactor).toLong() - now
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1_000_000L, (waitNanos % 1_000_000L).toInt())
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    throw ModbusException("Interrupted while replaying", e)
+                }
+            }
+        }
+
+        override fun close() {
+            // Nothing to do here
+        }
+
+        override fun toString(): String = "ReplayModbusDevice(speedFactor=$speedFactor)"
+
+        companion object {
+            /** Do not wait at all: serve all responses immediately. */
+            const val AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY
+
+            /** Serve the responses with the same timing as during the recording. */
+            const val ORIGINAL_TIMING = 1.0
+        }
+    }
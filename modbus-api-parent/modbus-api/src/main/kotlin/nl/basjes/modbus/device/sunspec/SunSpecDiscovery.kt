@@ -0,0 +1,207 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.sunspec
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressClass.HOLDING_REGISTER
+import nl.basjes.modbus.device.api.ModbusDevice
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.exception.ModbusException
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+
+/** The number of registers of a model header (the model id and the model length). */
+const val SUNSPEC_MODEL_HEADER_SIZE = 2
+
+/** The number of registers of the 'SunS' marker. */
+const val SUNSPEC_MARKER_SIZE = 2
+
+/** The model id of the SunSpec Common model which is always the first model. */
+const val SUNSPEC_COMMON_MODEL_ID = 1
+
+/** The list of addresses where the SunSpec model chain can begin. */
+val SUNSPEC_STANDARD_BASE_ADDRESSES: List<Address> =
+    listOf(
+        Address.of(HOLDING_REGISTER, 40000),
+        Address.of(HOLDING_REGISTER, 0),
+        Address.of(HOLDING_REGISTER, 50000),
+    )
+
+/**
+ * Discovers the layout of the SunSpec models of a device with as few modbus requests as possible.
+ *
+ * Instead of reading each model header separately, large windows of registers are read speculatively so a single
+ * request usually returns several model headers (and the Common model). Reading past the end of the register map
+ * of a device may fail in which case only the model header is read.
+ *
+ * If a cache is provided the layout is taken from it when the fingerprint (from the Common model which is part of
+ * the first window) is known which means that discovery of a known type of device costs a single request.
+ *
+ * @param modbusDevice The device to discover.
+ * @param layoutCache The (optional and shareable) cache of already discovered layouts.
+ */
+class SunSpecDiscovery
+@JvmOverloads
+constructor(
+    private val modbusDevice: ModbusDevice,
+    private val layoutCache: SunSpecLayoutCache? = null,
+) {
+    /** The number of modbus requests done by the last discovery. */
+    var requests = 0
+        private set
+
+    private val registers = RegisterBlock(HOLDING_REGISTER)
+
+    private val windowSize: Int
+        get() = modbusDevice.maxRegistersPerModbusRequest
+
+    /**
+     * Read the registers into the local register block.
+     * @return true if successful
+     */
+    private fun read(
+        address: Address,
+        count: Int,
+    ): Boolean {
+        requests++
+        return try {
+            modbusDevice.getRegistersInto(address, count, registers)
+        } catch (e: ModbusException) {
+            LOG.debug("Unable to read {} registers at {}: {}", count, address, e.message)
+            false
+        }
+    }
+
+    private fun hasValues(
+        address: Address,
+        count: Int,
+    ): Boolean = (0 until count).all { registers.getValue(address.increment(it)) != null }
+
+    /**
+     * Make sure the registers are available by (if needed) reading a window starting at the address.
+     * If the window cannot be read only the required registers are read.
+     */
+    private fun ensure(
+        address: Address,
+        count: Int,
+    ): Boolean {
+        if (hasValues(address, count)) {
+            return true
+        }
+        if (windowSize > count && read(address, windowSize) && hasValues(address, count)) {
+            return true
+        }
+        return read(address, count) && hasValues(address, count)
+    }
+
+    private fun intAt(address: Address): Int = registers.getValue(address)!!.toInt() and 0xFFFF
+
+    private fun stringAt(
+        address: Address,
+        count: Int,
+    ): String {
+        val bytes = ByteArray(count * 2)
+        for (index in 0 until count) {
+            val value = registers.getValue(address.increment(index))?.toInt() ?: 0
+            bytes[index * 2] = (value shr 8).toByte()
+            bytes[index * 2 + 1] = value.toByte()
+        }
+        return String(bytes, Charsets.UTF_8).trim { it == '\u0000' || it.isWhitespace() }
+    }
+
+    /**
+     * @return The address of the 'SunS' marker
+     */
+    private fun findBaseAddress(): Address {
+        for (baseAddress in SUNSPEC_STANDARD_BASE_ADDRESSES) {
+            LOG.debug("Looking for the SunSpec marker at {}", baseAddress)
+            if (ensure(baseAddress, SUNSPEC_MARKER_SIZE) &&
+                intAt(baseAddress) == 0x5375 && // 'S' 'u'
+                intAt(baseAddress.increment()) == 0x6E53 // 'n' 'S'
+            ) {
+                return baseAddress
+            }
+        }
+        throw ModbusException("Unable to locate the SunSpec marker at any of $SUNSPEC_STANDARD_BASE_ADDRESSES")
+    }
+
+    /**
+     * The fingerprint of the device: the Manufacturer, Model, Options and Version from the Common model.
+     * The serial number is deliberately not part of it because the layout is the same for all devices of a type.
+     */
+    private fun fingerprint(commonModelHeader: Address): String {
+        val size = intAt(commonModelHeader.increment())
+        val data = commonModelHeader.increment(SUNSPEC_MODEL_HEADER_SIZE)
+        if (intAt(commonModelHeader) != SUNSPEC_COMMON_MODEL_ID || size < 48 || !ensure(data, 48)) {
+            throw ModbusException("The first SunSpec model at $commonModelHeader is not a valid Common model")
+        }
+        return listOf(
+            stringAt(data, 16),
+            stringAt(data.increment(16), 16),
+            stringAt(data.increment(32), 8),
+            stringAt(data.increment(40), 8),
+        ).joinToString(" | ")
+    }
+
+    /**
+     * Discover the layout of the SunSpec models of the device.
+     * @return The layout of the device
+     */
+    @Throws(ModbusException::class)
+    fun discover(): SunSpecLayout {
+        requests = 0
+        registers.clear()
+
+        val baseAddress = findBaseAddress()
+        val firstModelHeader = baseAddress.increment(SUNSPEC_MARKER_SIZE)
+        if (!ensure(firstModelHeader, SUNSPEC_MODEL_HEADER_SIZE)) {
+            throw ModbusException("Unable to read the first SunSpec model header at $firstModelHeader")
+        }
+        val fingerprint = fingerprint(firstModelHeader)
+
+        val cachedLayout = layoutCache?.get(fingerprint)
+        if (cachedLayout != null && cachedLayout.baseAddress == baseAddress) {
+            LOG.debug("Using the cached SunSpec layout for {}", fingerprint)
+            return cachedLayout
+        }
+
+        val models = mutableListOf<SunSpecModel>()
+        var headerAddress = firstModelHeader
+        while (true) {
+            if (!ensure(headerAddress, SUNSPEC_MODEL_HEADER_SIZE)) {
+                throw ModbusException("Unable to read the SunSpec model header at $headerAddress")
+            }
+            val modelId = intAt(headerAddress)
+            // The end marker should be 0xFFFF but apparently some devices use 0 https://github.com/sunspec/models/issues/44
+            if (modelId == 0xFFFF || modelId == 0) {
+                break
+            }
+            val model = SunSpecModel(modelId, headerAddress, intAt(headerAddress.increment()))
+            models.add(model)
+            headerAddress = headerAddress.increment(SUNSPEC_MODEL_HEADER_SIZE + model.size)
+        }
+
+        val layout = SunSpecLayout(baseAddress, models, fingerprint)
+        LOG.debug("Discovered {} using {} requests", layout, requests)
+        layoutCache?.put(layout)
+        return layout
+    }
+
+    companion object {
+        private val LOG: Logger = LogManager.getLogger()
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.sunspec
+
+import nl.basjes.modbus.device.api.Address
+
+/**
+ * The location of a single SunSpec model in the register map of a device.
+ * @param id The SunSpec model id.
+ * @param headerAddress The address of the model header (the id and the length).
+ * @param size The number of registers of data in this model (excluding the header).
+ */
+class SunSpecModel(
+    val id: Int,
+    val headerAddress: Address,
+    val size: Int,
+) {
+    /** The address of the first register of the actual data of this model. */
+    val dataAddress: Address
+        get() = headerAddress.increment(SUNSPEC_MODEL_HEADER_SIZE)
+
+    override fun toString(): String = "SunSpecModel{ Id=$id, Header=$headerAddress, Size=$size }"
+}
+
+/**
+ * The full layout of the SunSpec models of a device.
+ * @param baseAddress The address of the 'SunS' marker.
+ * @param models All models in the order in which they are in the chain (excluding the end marker).
+ * @param fingerprint The manufacturer, model, options and version from the Common model (model 1).
+ *                    Devices with the same fingerprint are assumed to have the same layout.
+ */
+class SunSpecLayout(
+    val baseAddress: Address,
+    val models: List<SunSpecModel>,
+    val fingerprint: String,
+) {
+    /** The ids of all models in the chain. */
+    val modelIds: List<Int>
+        get() = models.map { it.id }
+
+    /** @return The first model with this id (or null if the device does not have it). */
+    fun getModel(id: Int): SunSpecModel? = models.firstOrNull { it.id == id }
+
+    override fun toString(): String =
+        "SunSpecLayout{ Base=$baseAddress, Fingerprint=\"$fingerprint\", Models=$modelIds }"
+}
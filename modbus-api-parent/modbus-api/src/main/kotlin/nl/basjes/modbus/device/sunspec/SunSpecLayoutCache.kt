@@ -0,0 +1,38 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.sunspec
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers the discovered SunSpec layouts by device fingerprint so for all devices of the same type
+ * (same manufacturer, model, options and firmware version) the discovery only needs to be done once.
+ */
+class SunSpecLayoutCache {
+    private val layouts: MutableMap<String, SunSpecLayout> = ConcurrentHashMap()
+
+    operator fun get(fingerprint: String): SunSpecLayout? = layouts[fingerprint]
+
+    fun put(layout: SunSpecLayout) {
+        layouts[layout.fingerprint] = layout
+    }
+
+    val size: Int
+        get() = layouts.size
+
+    fun clear() = layouts.clear()
+}
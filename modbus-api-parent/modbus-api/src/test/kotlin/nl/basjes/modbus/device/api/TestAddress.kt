@@ -33,7 +33,9 @@ import org.junit.jupiter.api.assertThrows
 import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertNotNull
+import kotlin.test.assertNotSame
 import kotlin.test.assertNull
+import kotlin.test.assertSame
 import kotlin.test.assertTrue
 
 internal class TestAddress {
@@ -313,6 +315,24 @@ internal class TestAddress {
             .any { it in 0..count }
     }
 
+    @Test
+    fun testCanonicalInstances() {
+        val address = Address.of(HOLDING_REGISTER, 123)
+        assertSame(address, Address.of(HOLDING_REGISTER, 123))
+        assertSame(address, Address.of("hr:00123"))
+        assertSame(address, Address.of(HOLDING_REGISTER, 120).increment(3))
+        assertSame(address, 40124.asAddressAssumingModicon5())
+        assertNotSame(address, Address.of(INPUT_REGISTER, 123))
+        assertSame(Address.of(COIL, 0xFFFF), Address.of(COIL, 0xFFFE).increment())
+
+        // A directly constructed instance is still equal
+        assertEquals(address, Address(HOLDING_REGISTER, 123))
+
+        assertThrows<IllegalArgumentException> { Address.of(HOLDING_REGISTER, 0x10000) }
+        assertThrows<IllegalArgumentException> { Address.of(HOLDING_REGISTER, 0xFFFF).increment() }
+        assertThrows<IllegalArgumentException> { Address.of(HOLDING_REGISTER, -1) }
+    }
+
     companion object {
         private val LOG: Logger = LogManager.getLogger()
     }
@@ -124,4 +124,71 @@ internal class TestRegisterBlock {
         }
     }
 
+    @Test
+    fun testSetValuesFromRawBytes() {
+        val registerBlock = RegisterBlock(AddressClass.HOLDING_REGISTER)
+        registerBlock.setValue(Address.of("hr:00002"), 1.toShort(), 1L)
+        val existingValue = registerBlock[Address.of("hr:00002")]
+
+        val bytes = byteArrayOf(0x00, 0x01, 0xAB.toByte(), 0xCD.toByte(), 0xFF.toByte(), 0xFF.toByte())
+        registerBlock.setValues(Address.of("hr:00001"), bytes, 42L)
+
+        assertEquals(3, registerBlock.size)
+        assertEquals("0001 ABCD FFFF", registerBlock.toHexString())
+        registerBlock.values.forEach { assertEquals(42L, it.timestamp) }
+        // The existing value instance is reused
+        assertEquals(existingValue, registerBlock[Address.of("hr:00002")])
+
+        assertThrows<IllegalArgumentException> {
+            registerBlock.setValues(Address.of("hr:00001"), byteArrayOf(0x01, 0x02, 0x03), 43L)
+        }
+    }
+
+    @Test
+    fun testBulkRangeValues() {
+        val registerBlock = RegisterBlock(AddressClass.HOLDING_REGISTER)
+        registerBlock.setValue(Address.of("hr:00003"), 3.toShort(), 3L)
+
+        val values = shortArrayOf(0x0099, 0x0001, 0x0002, 0x0003, 0x0004)
+        registerBlock.setValues(Address.of("hr:00002"), 3, values, 10L, 1)
+        assertEquals("0001 0002 0003", registerBlock.toHexString())
+
+        registerBlock.setSoftReadError(Address.of("hr:00003"), 2)
+        assertEquals("0001 xxxx xxxx", registerBlock.toHexString())
+
+        registerBlock.setHardReadError(Address.of("hr:00004"), 3)
+        assertEquals("0001 xxxx XXXX XXXX XXXX", registerBlock.toHexString())
+
+        assertEquals(2, registerBlock.valuesInRange(Address.of("hr:00005"), 10).size)
+
+        assertThrows<IllegalArgumentException> {
+            registerBlock.setValues(Address.of("hr:00002"), 3, values, 10L, 3)
+        }
+        assertThrows<ModbusIllegalAddressClassException> {
+            registerBlock.setSoftReadError(Address.of("ir:00002"), 3)
+        }
+    }
+
+    @Test
+    fun testBulkRangeDiscretes() {
+        val discreteBlock = DiscreteBlock(AddressClass.COIL)
+        discreteBlock.setValues(Address.of("c:00002"), 4, booleanArrayOf(true, false, false, true), 10L)
+        assertEquals("1 0 0 1", discreteBlock.toBitString())
+        discreteBlock.setSoftReadError(Address.of("c:00003"), 2)
+        assertEquals("1 x x 1", discreteBlock.toBitString())
+    }
+
+    @Test
+    fun testPackedDiscretes() {
+        val discreteBlock = DiscreteBlock(AddressClass.COIL)
+        // 0xCD = 1100 1101 and 0x01 = 0000 0001 --> LSB first: 1011 0011 1 (padding bits ignored)
+        discreteBlock.setValues(Address.of("c:00010"), 9, byteArrayOf(0xCD.toByte(), 0x01), 10L)
+        assertEquals(9, discreteBlock.size)
+        assertEquals("1 0 1 1 0 0 1 1 1", discreteBlock.toBitString())
+        discreteBlock.values.forEach { assertEquals(10L, it.timestamp) }
+
+        assertThrows<IllegalArgumentException> {
+            discreteBlock.setValues(Address.of("c:00010"), 9, byteArrayOf(0x01), 11L)
+        }
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.memory
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.api.toDiscreteBlock
+import nl.basjes.modbus.device.api.toRegisterBlock
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+internal class TestSimulatedModbusDevice {
+
+    @Test
+    fun testLoadAndRead() {
+        val device =
+            SimulatedModbusDevice()
+                .load("0001 0002 ---- 0004 xxxx 0006".toRegisterBlock(Address.of("hr:00010")))
+                .load("1 0 - 1".toDiscreteBlock(Address.of("c:00005")))
+
+        assertEquals("0001 0002 ---- 0004", device.getRegisters(Address.of("hr:00010"), 4).toHexString())
+        assertEquals("xxxx xxxx xxxx xxxx xxxx", device.getRegisters(Address.of("hr:00011"), 5).toHexString())
+        assertEquals("0006", device.getRegisters(Address.of("hr:00015"), 3).toHexString())
+        assertEquals("1 0 - 1", device.getDiscretes(Address.of("c:00005"), 4).toBitString())
+        assertEquals(0, device.getRegisters(Address.of("ir:00010"), 4).size)
+
+        val registerBlock = RegisterBlock(Address.of("hr:00010").addressClass)
+        assertTrue(device.getRegistersInto(Address.of("hr:00010"), 2, registerBlock))
+        assertFalse(device.getRegistersInto(Address.of("hr:00013"), 2, registerBlock))
+        assertEquals("0001 0002", registerBlock.toHexString())
+    }
+
+    @Test
+    fun testGenerators() {
+        val device =
+            SimulatedModbusDevice()
+                .setRegisters(Address.of("hr:00000"), shortArrayOf(0x1234, 0x5678))
+                .addGenerator(Address.of("hr:00002"), ValueEncoding.INT32, ValueGenerator.counter(65535.0, 2.0))
+                .addGenerator(Address.of("hr:00004"), ValueEncoding.IEEE754_32, ValueGenerator.constant(1234.567))
+                .addGenerator(Address.of("hr:00006"), ValueEncoding.INT16, ValueGenerator.ramp(0.0, 1000.0, 1000))
+                .addGenerator(Address.of("c:00001"), ValueGenerator.counter())
+
+        assertEquals("1234 5678 0000 FFFF 449A 5225", device.getRegisters(Address.of("hr:00000"), 6).toHexString())
+        // Only reading part of the counter still generates the next value
+        assertEquals("0001", device.getRegisters(Address.of("hr:00003"), 1).toHexString())
+        assertEquals("0001 0003", device.getRegisters(Address.of("hr:00002"), 2).toHexString())
+        // Not reading the counter does not change it
+        assertEquals("5678", device.getRegisters(Address.of("hr:00001"), 1).toHexString())
+
+        val ramp = device.getRegisters(Address.of("hr:00006"), 1).values.first().value!!
+        assertTrue(ramp in 0..999)
+
+        assertEquals("0", device.getDiscretes(Address.of("c:00001"), 1).toBitString())
+        assertEquals("1", device.getDiscretes(Address.of("c:00001"), 1).toBitString())
+    }
+
+    @Test
+    fun testNoise() {
+        val noise = ValueGenerator.noise(100.0, 5.0, 42)
+        repeat(1000) {
+            val value = noise.valueAt(it.toLong())
+            assertTrue(value >= 95.0 && value <= 105.0, "Noise value $value out of range")
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.recording
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.toDiscreteBlock
+import nl.basjes.modbus.device.api.toRegisterBlock
+import nl.basjes.modbus.device.exception.ModbusApiException
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.memory.SimulatedModbusDevice
+import org.junit.jupiter.api.io.TempDir
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+internal class TestRecordAndReplay {
+
+    @TempDir
+    lateinit var tempDir: Path
+
+    private fun record(captureLog: Path, mappedChunkSize: Int = RecordingModbusDevice.DEFAULT_MAPPED_CHUNK_SIZE) {
+        val device =
+            SimulatedModbusDevice()
+                .load("0001 0002 ---- 0004 xxxx 0006".toRegisterBlock(Address.of("hr:00010")))
+                .load("1 0 - 1".toDiscreteBlock(Address.of("c:00005")))
+        RecordingModbusDevice(device, captureLog, mappedChunkSize).use { recorder ->
+            repeat(100) {
+                assertEquals("0001 0002 ---- 0004", recorder.getRegisters(Address.of("hr:00010"), 4).toHexString())
+                assertEquals("xxxx xxxx", recorder.getRegisters(Address.of("hr:00013"), 2).toHexString())
+                assertEquals("1 0 - 1", recorder.getDiscretes(Address.of("c:00005"), 4).toBitString())
+            }
+            assertTrue(recorder.size > 1024)
+        }
+    }
+
+    @Test
+    fun testRecordAndReplay() {
+        val captureLog = tempDir.resolve("capture.mbcl")
+        // A small chunk size forces the log to be remapped several times.
+        record(captureLog, 1024)
+
+        val replay = ReplayModbusDevice(captureLog)
+        assertEquals(300, replay.remaining)
+        repeat(100) {
+            assertEquals("1 0 - 1", replay.getDiscretes(Address.of("c:00005"), 4).toBitString())
+            assertEquals("xxxx xxxx", replay.getRegisters(Address.of("hr:00013"), 2).toHexString())
+            assertEquals("0001 0002 ---- 0004", replay.getRegisters(Address.of("hr:00010"), 4).toHexString())
+        }
+        assertEquals(0, replay.remaining)
+        assertFailsWith<ModbusException> { replay.getRegisters(Address.of("hr:00010"), 4) }
+        // Not recorded at all
+        assertFailsWith<ModbusException> { replay.getRegisters(Address.of("hr:00010"), 3) }
+    }
+
+    @Test
+    fun testRecordAndReplayWrites() {
+        val captureLog = tempDir.resolve("writes.mbcl")
+        val device = SimulatedModbusDevice().load("0000 0000 0000 0000".toRegisterBlock(Address.of("hr:00000")))
+        // A small chunk size forces the log to be remapped several times (also between the parts of a read/write).
+        RecordingModbusDevice(device, captureLog, 1024).use { recorder ->
+            recorder.writeRegisters(Address.of("hr:00002"), shortArrayOf(0x1234, 0x5678))
+            // The typical 0x17 loop: write a command and read the result
+            for (value in 1..100) {
+                assertEquals(
+                    "%04X 5678".format(value),
+                    recorder.readWriteRegisters(Address.of("hr:00002"), shortArrayOf(value.toShort()), Address.of("hr:00002"), 2).toHexString(),
+                )
+            }
+        }
+
+        val replay = ReplayModbusDevice(captureLog)
+        assertEquals(101, replay.remaining)
+        // The write must be exactly the recorded write
+        assertFailsWith<ModbusException> { replay.writeRegisters(Address.of("hr:00002"), shortArrayOf(0x1234)) }
+        assertFailsWith<ModbusException> { replay.writeRegisters(Address.of("hr:00002"), shortArrayOf(0x1234, 0x0000)) }
+        replay.writeRegisters(Address.of("hr:00002"), shortArrayOf(0x1234, 0x5678))
+        for (value in 1..100) {
+            assertEquals(
+                "%04X 5678".format(value),
+                replay.readWriteRegisters(Address.of("hr:00002"), shortArrayOf(value.toShort()), Address.of("hr:00002"), 2).toHexString(),
+            )
+        }
+        assertEquals(0, replay.remaining)
+        assertFailsWith<ModbusException> { replay.writeRegisters(Address.of("hr:00002"), shortArrayOf(0x1234, 0x5678)) }
+        // A read/write is not a separate write and read
+        assertFailsWith<ModbusException> { replay.getRegisters(Address.of("hr:00002"), 2) }
+    }
+
+    @Test
+    fun testRecordedWriteException() {
+        val captureLog = tempDir.resolve("writeException.mbcl")
+        val failing =
+            object : SimulatedModbusDevice() {
+                override fun writeRegisters(firstRegister: Address, values: ShortArray) = throw ModbusException("Read only")
+            }
+        RecordingModbusDevice(failing, captureLog).use { recorder ->
+            assertFailsWith<ModbusException> { recorder.writeRegisters(Address.of("hr:00010"), shortArrayOf(1, 2)) }
+            // The default read/write does a separate write
+            assertFailsWith<ModbusException> {
+                recorder.readWriteRegisters(Address.of("hr:00010"), shortArrayOf(3), Address.of("hr:00010"), 1)
+            }
+        }
+        val replay = ReplayModbusDevice(captureLog)
+        assertEquals("Read only", assertFailsWith<ModbusException> { replay.writeRegisters(Address.of("hr:00010"), shortArrayOf(1, 2)) }.message)
+        assertEquals(
+            "Read only",
+            assertFailsWith<ModbusException> {
+                replay.readWriteRegisters(Address.of("hr:00010"), shortArrayOf(3), Address.of("hr:00010"), 1)
+            }.message,
+        )
+        assertEquals(0, replay.remaining)
+    }
+
+    @Test
+    fun testReplayVersion1() {
+        val captureLog = tempDir.resolve("version1.mbcl")
+        record(captureLog)
+        // A version 1 log (only reads) is a valid version 2 log
+        FileChannel.open(captureLog, StandardOpenOption.WRITE).use { it.write(ByteBuffer.wrap(byteArrayOf(1)), 4) }
+        assertEquals(300, ReplayModbusDevice(captureLog).remaining)
+        FileChannel.open(captureLog, StandardOpenOption.WRITE).use { it.write(ByteBuffer.wrap(byteArrayOf(3)), 4) }
+        assertFailsWith<ModbusApiException> { ReplayModbusDevice(captureLog) }
+    }
+
+    @Test
+    fun testRecordedException() {
+        val captureLog = tempDir.resolve("exception.mbcl")
+        val failing =
+            object : SimulatedModbusDevice() {
+                override fun getRegisters(firstRegister: Address, count: Int) = throw ModbusException("Device is gone")
+            }
+        RecordingModbusDevice(failing, captureLog).use { recorder ->
+            assertFailsWith<ModbusException> { recorder.getRegisters(Address.of("hr:00010"), 4) }
+        }
+        val replay = ReplayModbusDevice(captureLog, ReplayModbusDevice.ORIGINAL_TIMING)
+        val exception = assertFailsWith<ModbusException> { replay.getRegisters(Address.of("hr:00010"), 4) }
+        assertEquals("Device is gone", exception.message)
+    }
+
+    @Test
+    fun testNotACaptureLog() {
+        val notALog = tempDir.resolve("notALog.txt")
+        Files.writeString(notALog, "Something else")
+        assertFailsWith<IllegalArgumentException> { ReplayModbusDevice(notALog, 0.0) }
+        assertFailsWith<ModbusApiException> { ReplayModbusDevice(notALog) }
+    }
+
+    @Test
+    fun testInvalidChunkSize() {
+        val captureLog = tempDir.resolve("invalid.mbcl")
+        assertFailsWith<IllegalArgumentException> { RecordingModbusDevice(SimulatedModbusDevice(), captureLog, 100) }
+        // Rejected before anything was created
+        assertTrue(Files.notExists(captureLog))
+    }
+}
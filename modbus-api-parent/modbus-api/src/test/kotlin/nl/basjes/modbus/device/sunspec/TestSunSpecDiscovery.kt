@@ -0,0 +1,96 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.device.sunspec
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertSame
+
+class TestSunSpecDiscovery {
+
+    private fun String.toRegisters(count: Int): List<Int> {
+        val bytes = toByteArray().copyOf(count * 2)
+        return (0 until count).map { ((bytes[it * 2].toInt() and 0xFF) shl 8) or (bytes[it * 2 + 1].toInt() and 0xFF) }
+    }
+
+    private fun createDevice(
+        base: Int,
+        serial: String,
+    ): MockedModbusDevice {
+        val registers = mutableListOf(0x5375, 0x6E53)
+        // The Common model
+        registers += listOf(1, 66)
+        registers += "Acme".toRegisters(16)
+        registers += "Inverter 1".toRegisters(16)
+        registers += "".toRegisters(8)
+        registers += "1.2.3".toRegisters(8)
+        registers += serial.toRegisters(16)
+        registers += listOf(1, 0x8000)
+        // Some other models
+        for ((id, size) in listOf(103 to 50, 120 to 26, 160 to 148)) {
+            registers += listOf(id, size)
+            registers += List(size) { it }
+        }
+        // End marker
+        registers += listOf(0xFFFF, 0)
+
+        val modbusDevice = MockedModbusDevice()
+        modbusDevice.addRegisters(Address.of("hr:$base"), registers.joinToString(" ") { String.format("%04X", it) })
+        return modbusDevice
+    }
+
+    @Test
+    fun verifyDiscovery() {
+        val discovery = SunSpecDiscovery(createDevice(40000, "SN1"))
+        val layout = discovery.discover()
+        assertEquals(Address.of("hr:40000"), layout.baseAddress)
+        assertEquals(listOf(1, 103, 120, 160), layout.modelIds)
+        assertEquals("Acme | Inverter 1 |  | 1.2.3", layout.fingerprint)
+        assertEquals(Address.of("hr:40152"), layout.getModel(160)?.dataAddress)
+        assertEquals(148, layout.getModel(160)?.size)
+        // The marker and 5 headers in 3 requests
+        assertEquals(3, discovery.requests)
+    }
+
+    @Test
+    fun verifyCachedDiscovery() {
+        val cache = SunSpecLayoutCache()
+        val layout = SunSpecDiscovery(createDevice(40000, "SN1"), cache).discover()
+        assertEquals(1, cache.size)
+
+        // Same type of device (different serial number): only the first window is read.
+        val discovery = SunSpecDiscovery(createDevice(40000, "SN2"), cache)
+        assertSame(layout, discovery.discover())
+        assertEquals(1, discovery.requests)
+    }
+
+    @Test
+    fun verifyOtherBaseAddress() {
+        val layout = SunSpecDiscovery(createDevice(0, "SN1")).discover()
+        assertEquals(Address.of("hr:0"), layout.baseAddress)
+        assertEquals(listOf(1, 103, 120, 160), layout.modelIds)
+    }
+
+    @Test
+    fun verifyNoSunSpec() {
+        assertFailsWith<ModbusException> { SunSpecDiscovery(MockedModbusDevice()).discover() }
+    }
+}
@@ -21,6 +21,9 @@ import nl.basjes.modbus.schema.utils.requireValidIdentifier
 import java.util.TreeMap
 import kotlin.properties.Delegates
 
+/** The priority of a field or block if nothing was specified. */
+const val DEFAULT_PRIORITY = 0
+
 open class Block(
     /**
      * The schema device of which this block is a part
@@ -78,6 +81,12 @@ open class Block(
 
 //    operator fun get(fieldId: String): Field? = fieldMap[fieldId]
 
+    /**
+     * The priority of the fields in this block (unless a field has its own priority).
+     * In a deadline limited update the queries for fields with a higher priority are done first.
+     */
+    var priority: Int = DEFAULT_PRIORITY
+
     /**
      * In some templates it is convenient to have the length of the longest field id.
      */
@@ -106,6 +106,18 @@ class Field(
     var fetchGroupIsDefault: Boolean = fetchGroup.isBlank() || fetchGroup == "<<${block.id} | $id>>"
         private set
 
+    private var explicitPriority: Int? = null
+
+    /**
+     * The priority of this field (by default the priority of the block).
+     * In a deadline limited update the queries for fields with a higher priority are done first.
+     */
+    var priority: Int
+        get() = explicitPriority ?: block.priority
+        set(value) {
+            explicitPriority = value
+        }
+
     var initialized = false
         private set
 
@@ -201,6 +213,21 @@ class Field(
         return initialized
     }
 
+    /**
+     * Initialize this field by sharing the parsed expression and the derived metadata of the already
+     * initialized definition of the same field in another SchemaDevice (see SchemaDefinition).
+     * This is possible because the expressions get the SchemaDevice (that holds the values) passed at evaluation time.
+     * @param definition The initialized field of which the expression is shared.
+     */
+    internal fun initializeFrom(definition: Field) {
+        require(definition.initialized) { "Field $id: The definition field must be initialized" }
+        require(definition.id == id) { "Field $id: The definition field has a different id (${definition.id})" }
+        parsedExpression = definition.parsedExpression
+        returnType = definition.returnType
+        addressClass = definition.addressClass
+        initialized = true
+    }
+
     /**
      * The parsed version of the expression that is actually executed
      */
@@ -291,6 +318,33 @@ class Field(
             return null
         }
 
+    /**
+     * The value as a primitive double (without boxing), intended for reading many values in a tight loop.
+     * @param default The value to return if there is no value
+     */
+    fun getAsDouble(default: Double): Double {
+        val expression = parsedExpression as? NumericalExpression ?: return default
+        return expression.getValueAsDouble(block.schemaDevice, default)
+    }
+
+    /**
+     * The value as a primitive long (without boxing), intended for reading many values in a tight loop.
+     * @param default The value to return if there is no value
+     */
+    fun getAsLong(default: Long): Long {
+        val expression = parsedExpression as? NumericalExpression ?: return default
+        return expression.getValueAsLong(block.schemaDevice, default)
+    }
+
+    /**
+     * The value as a primitive boolean.
+     * @param default The value to return if there is no value
+     */
+    fun getAsBoolean(default: Boolean): Boolean {
+        val expression = parsedExpression as? BooleanExpression ?: return default
+        return expression.getBoolean(block.schemaDevice, default)
+    }
+
     /**
      * The epoch (in milliseconds since 1970-01-01) timestamp of the oldest mutable register used to build this value
      * Returns null on fully immutable values
@@ -314,6 +368,57 @@ class Field(
             return timestamps.min()
         }
 
+    /**
+     * The history of the values of this field (null if not enabled).
+     */
+    var history: FieldHistory? = null
+        private set
+
+    /**
+     * Retain the last values of this field after each update of the schema device.
+     * Only numerical and boolean fields can have a history.
+     * @param capacity The maximum number of values that are retained.
+     * @return The history of this field
+     */
+    fun enableHistory(capacity: Int): FieldHistory {
+        require(returnType != STRING && returnType != STRINGLIST) {
+            "Field $id has returnType $returnType which cannot have a history"
+        }
+        val currentHistory = history
+        if (currentHistory != null && currentHistory.capacity == capacity) {
+            return currentHistory
+        }
+        val newHistory = FieldHistory(capacity)
+        history = newHistory
+        block.schemaDevice.fieldsWithHistory.add(this)
+        return newHistory
+    }
+
+    fun disableHistory() {
+        history = null
+        block.schemaDevice.fieldsWithHistory.remove(this)
+    }
+
+    /**
+     * Record the current value into the history (if enabled and if the value is new).
+     * @return true if a new value was recorded.
+     */
+    fun recordHistory(): Boolean {
+        val history = history ?: return false
+        val timestamp = valueEpochMs ?: return false
+        if (timestamp == history.lastTimestamp) {
+            return false
+        }
+        val value =
+            when (returnType) {
+                LONG    -> longValue?.toDouble()
+                DOUBLE  -> doubleValue
+                BOOLEAN -> booleanValue?.let { if (it) 1.0 else 0.0 }
+                else    -> null
+            } ?: return false
+        return history.record(timestamp, value)
+    }
+
     val requiredFieldNames: List<String>
         get() = parsedExpression?.requiredFields ?: emptyList()
 
@@ -380,40 +485,50 @@ class Field(
     fun isNeeded() = neededCount > 0
 
     val testCompareValue: List<String>
-        get() =
-            when (returnType) {
-                UNKNOWN -> {
-                    TODO("Unknown returnType (Field $id) means we do not know yet")
-                }
+        get() = testCompareValue(block.schemaDevice)
 
-                BOOLEAN -> {
-                    val value = booleanValue
-                    if (value != null) listOf(if(value) "true" else "false") else listOf()
-                }
+    /**
+     * The test compare value of this field calculated using the modbus values of the provided SchemaDevice.
+     * This allows running tests against an isolated set of modbus values.
+     */
+    fun testCompareValue(modbusValuesDevice: SchemaDevice): List<String> {
+        val parsedExpression = parsedExpression
+        return when (returnType) {
+            UNKNOWN -> {
+                TODO("Unknown returnType (Field $id) means we do not know yet")
+            }
 
-                LONG -> {
-                    if (longValue != null) listOf(longValue.toString()) else listOf()
-                }
+            BOOLEAN -> {
+                val value = (parsedExpression as? BooleanExpression)?.getBoolean(modbusValuesDevice)
+                if (value != null) listOf(if(value) "true" else "false") else listOf()
+            }
 
-                DOUBLE -> {
-                    when {
-                        doubleValue == null -> listOf()
-                        doubleValue!!.isNaN() -> listOf("NaN")
-                        doubleValue == Double.POSITIVE_INFINITY -> listOf("+Infinite")
-                        doubleValue == Double.NEGATIVE_INFINITY -> listOf("-Infinite")
-                        else -> listOf(String.format("%.3f", doubleValue))
-                    }
-                }
+            LONG -> {
+                val value = (parsedExpression as? NumericalExpression)?.getValueAsLong(modbusValuesDevice)
+                if (value != null) listOf(value.toString()) else listOf()
+            }
 
-                STRING -> {
-                    if (stringValue == null) listOf() else listOf(stringValue!!)
+            DOUBLE -> {
+                val value = (parsedExpression as? NumericalExpression)?.getValueAsDouble(modbusValuesDevice)
+                when {
+                    value == null -> listOf()
+                    value.isNaN() -> listOf("NaN")
+                    value == Double.POSITIVE_INFINITY -> listOf("+Infinite")
+                    value == Double.NEGATIVE_INFINITY -> listOf("-Infinite")
+                    else -> listOf(String.format("%.3f", value))
                 }
+            }
 
-                STRINGLIST -> {
-                    if (stringListValue == null) listOf() else stringListValue!!
-                }
+            STRING -> {
+                val value = (parsedExpression as? StringExpression)?.getValue(modbusValuesDevice)
+                if (value == null) listOf() else listOf(value)
             }
 
+            STRINGLIST -> {
+                (parsedExpression as? StringListExpression)?.getValueAsStringList(modbusValuesDevice) ?: listOf()
+            }
+        }
+    }
 
     override fun compareTo(other: Field): Int {
         val thisRequiredRegisters = this.requiredAddresses
@@ -510,6 +625,14 @@ class Field(
 
         private var expression: String by Delegates.notNull()
 
+        /**
+         * The already parsed form of the expression (must be equivalent to the expression String).
+         * This avoids parsing the expression at runtime (used by generated code).
+         */
+        fun parsedExpression(parsedExpression: Expression) = apply { this.parsedExpression = parsedExpression }
+
+        private var parsedExpression: Expression? = null
+
         /** Human-readable unit of the field (like 'V' for Volt or '%' for percentage).     */
         fun unit(unit: String?) = apply { this.unit = unit ?: "" }
 
@@ -528,7 +651,7 @@ class Field(
          */
         fun build(): Field {
             val fetchGroup = this.fetchGroup
-            return if (fetchGroup.isNullOrBlank()) {
+            val field = if (fetchGroup.isNullOrBlank()) {
                 Field(
                     block = block,
                     id = id,
@@ -552,6 +675,8 @@ class Field(
                     fetchGroup = fetchGroup,
                 )
             }
+            field.parsedExpression = parsedExpression
+            return field
         }
     }
 }
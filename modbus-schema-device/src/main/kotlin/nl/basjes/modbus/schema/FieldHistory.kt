@@ -0,0 +1,190 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema
+
+/**
+ * A fixed capacity history of the values of a single Field.
+ * The values are stored in primitive arrays used as a ring buffer so recording
+ * a value does not create any objects. When full the oldest value is overwritten.
+ * Boolean values are stored as 1.0 (true) and 0.0 (false).
+ *
+ * @param capacity The maximum number of values that are retained.
+ */
+class FieldHistory(
+    val capacity: Int,
+) {
+    init {
+        require(capacity > 0) { "The capacity of a FieldHistory must be at least 1 (was $capacity)" }
+    }
+
+    private val timestamps = LongArray(capacity)
+    private val values = DoubleArray(capacity)
+
+    // The index where the next value will be written
+    private var next = 0
+
+    /** The number of values currently retained */
+    var size = 0
+        @Synchronized get
+        private set
+
+    /** The timestamp of the most recently recorded value (null if nothing was recorded yet) */
+    val lastTimestamp: Long?
+        @Synchronized get() = if (size == 0) null else timestamps[index(size - 1)]
+
+    /**
+     * Record a new value.
+     * A value with the same (or an older) timestamp as the last recorded value is considered to be
+     * the same value and is ignored.
+     * @param epochMs The timestamp of the value (epoch milliseconds)
+     * @param value The value
+     * @return true if the value was recorded
+     */
+    @Synchronized
+    fun record(
+        epochMs: Long,
+        value: Double,
+    ): Boolean {
+        if (size > 0 && timestamps[index(size - 1)] >= epochMs) {
+            return false
+        }
+        timestamps[next] = epochMs
+        values[next] = value
+        next = (next + 1) % capacity
+        if (size < capacity) {
+            size++
+        }
+        return true
+    }
+
+    @Synchronized
+    fun clear() {
+        next = 0
+        size = 0
+    }
+
+    // Translate the position (0 = oldest retained) into the index in the arrays.
+    private fun index(position: Int) = (next - size + position + capacity) % capacity
+
+    /**
+     * @param count The maximum number of values to return.
+     * @return The last (at most) count values, oldest first.
+     */
+    @Synchronized
+    fun last(count: Int): Values {
+        val actualCount = count.coerceIn(0, size)
+        return copy(size - actualCount, size)
+    }
+
+    /**
+     * @param fromEpochMs The start of the time window (inclusive).
+     * @param toEpochMs The end of the time window (inclusive).
+     * @return All retained values within the time window, oldest first.
+     */
+    @Synchronized
+    fun window(
+        fromEpochMs: Long,
+        toEpochMs: Long,
+    ): Values {
+        val from = firstPositionAtOrAfter(fromEpochMs)
+        val to = positionAfter(toEpochMs)
+        return copy(from, maxOf(from, to))
+    }
+
+    /**
+     * @param fromEpochMs The start of the time window (inclusive).
+     * @param toEpochMs The end of the time window (inclusive).
+     * @return The count, min, max and average of all retained values within the time window (null if there are none).
+     */
+    @Synchronized
+    fun statistics(
+        fromEpochMs: Long = Long.MIN_VALUE,
+        toEpochMs: Long = Long.MAX_VALUE,
+    ): Statistics? {
+        val from = firstPositionAtOrAfter(fromEpochMs)
+        val to = positionAfter(toEpochMs)
+        if (to <= from) {
+            return null
+        }
+        var min = Double.POSITIVE_INFINITY
+        var max = Double.NEGATIVE_INFINITY
+        var sum = 0.0
+        for (position in from until to) {
+            val value = values[index(position)]
+            min = minOf(min, value)
+            max = maxOf(max, value)
+            sum += value
+        }
+        return Statistics(to - from, min, max, sum / (to - from))
+    }
+
+    // Binary search as the values are recorded in time order
+    private fun firstPositionAtOrAfter(epochMs: Long): Int {
+        var low = 0
+        var high = size
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            if (timestamps[index(middle)] < epochMs) {
+                low = middle + 1
+            } else {
+                high = middle
+            }
+        }
+        return low
+    }
+
+    // The end of an inclusive time window (toEpochMs + 1 would overflow for Long.MAX_VALUE)
+    private fun positionAfter(epochMs: Long): Int =
+        if (epochMs == Long.MAX_VALUE) size else firstPositionAtOrAfter(epochMs + 1)
+
+    private fun copy(
+        from: Int,
+        to: Int,
+    ): Values {
+        val count = to - from
+        val resultTimestamps = LongArray(count)
+        val resultValues = DoubleArray(count)
+        for (position in 0 until count) {
+            val index = index(from + position)
+            resultTimestamps[position] = timestamps[index]
+            resultValues[position] = values[index]
+        }
+        return Values(resultTimestamps, resultValues)
+    }
+
+    /**
+     * A copy of a part of the history, oldest first.
+     */
+    class Values(
+        /** The timestamps (epoch milliseconds) of the values */
+        val timestamps: LongArray,
+        /** The values */
+        val values: DoubleArray,
+    ) {
+        val size: Int
+            get() = values.size
+
+        override fun toString(): String = timestamps.indices.joinToString(", ", "[", "]") { "${timestamps[it]}=${values[it]}" }
+    }
+
+    data class Statistics(
+        val count: Int,
+        val min: Double,
+        val max: Double,
+        val average: Double,
+    )
+}
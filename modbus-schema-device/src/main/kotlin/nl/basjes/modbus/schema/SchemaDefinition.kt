@@ -0,0 +1,140 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema
+
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.schema.exceptions.ModbusSchemaParseException
+import nl.basjes.modbus.schema.fetcher.FetchPlan
+import nl.basjes.modbus.schema.test.TestScenario
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+import java.io.File
+import java.io.InputStream
+
+/**
+ * The immutable definition of a schema that is shared by many devices of the same type.
+ *
+ * Loading a schema (parsing, initializing and verifying the tests) is done only once for the definition.
+ * Each call to [createDevice] then creates a new SchemaDevice with its own runtime state
+ * (the retrieved modbus values, which fields are needed and the read errors) for a single physical device.
+ * The parsed (and initialized) expressions, the derived field metadata and the precalculated fetch plans are shared
+ * with all created devices. Each created device gets its own copy of the (mutable) test scenarios.
+ *
+ * So for a fleet of identical devices the load and verification cost scales with the number of device types
+ * instead of the number of devices.
+ */
+class SchemaDefinition(
+    /**
+     * The fully initialized (and verified) schema device from which the definition is taken.
+     * Its parsed expressions are shared by all created devices; its own modbus values are NOT used at runtime.
+     */
+    private val schemaDevice: SchemaDevice,
+) {
+    /**
+     * A human-readable description of this schema.
+     */
+    val description: String = schemaDevice.description
+
+    /**
+     * The maximum number of modbus registers that can be requested PER call.
+     */
+    val maxRegistersPerModbusRequest: Int = schemaDevice.maxRegistersPerModbusRequest
+
+    /**
+     * The definitions of all blocks and fields.
+     */
+    val blocks: List<SchemaBlock>
+
+    /**
+     * The (already verified) test scenarios of this schema.
+     */
+    val tests: List<TestScenario> = schemaDevice.tests.map { it.copy() }
+
+    /**
+     * The fetch plans which are precalculated once for all devices created from this definition.
+     */
+    val fetchPlans: List<FetchPlan>
+
+    init {
+        if (!schemaDevice.initialize()) {
+            throw ModbusSchemaParseException(
+                "The initialize of the Logical Device failed\n" + schemaDevice.initializationProblems(),
+            )
+        }
+        blocks = schemaDevice.blocks.map { it.toSchema() }
+        fetchPlans = schemaDevice.fetchPlans.ifEmpty { calculateFetchPlans(schemaDevice) }
+    }
+
+    private fun calculateFetchPlans(schemaDevice: SchemaDevice): List<FetchPlan> =
+        try {
+            listOf(FetchPlan.calculate(schemaDevice, emptyList())) +
+                schemaDevice.blocks.map { FetchPlan.calculate(schemaDevice, listOf(it.id)) }
+        } catch (e: ModbusException) {
+            LOG.warn("Unable to calculate the fetch plans (falling back to dynamic fetching): {}", e.message)
+            emptyList()
+        } finally {
+            schemaDevice.clearModbusBlocks()
+        }
+
+    /**
+     * Create a new (initialized) SchemaDevice from this definition which can be connected to a single modbus device.
+     * The tests of the schema are NOT verified again.
+     */
+    fun createDevice(): SchemaDevice {
+        val device = SchemaDevice(description, maxRegistersPerModbusRequest)
+        for (schemaBlock in blocks) {
+            val block = Block(device, schemaBlock.id, schemaBlock.description)
+            val definitionBlock = requireNotNull(schemaDevice.getBlock(schemaBlock.id))
+            for (schemaField in schemaBlock.fields) {
+                Field(
+                    block       = block,
+                    id          = schemaField.id,
+                    description = schemaField.description,
+                    expression  = schemaField.expression,
+                    unit        = schemaField.unit,
+                    immutable   = schemaField.immutable,
+                    system      = schemaField.system,
+                    fetchGroup  = schemaField.fetchGroup,
+                ).initializeFrom(requireNotNull(definitionBlock.getField(schemaField.id)))
+            }
+        }
+        tests.forEach { device.addTestScenario(it.copy()) }
+        fetchPlans.forEach { device.addFetchPlan(it) }
+        if (!device.initialize()) {
+            throw ModbusSchemaParseException(
+                "The initialize of the Logical Device failed\n" + device.initializationProblems(),
+            )
+        }
+        return device
+    }
+
+    override fun toString(): String = "SchemaDefinition($description: ${blocks.size} blocks, ${tests.size} tests)"
+
+    companion object {
+        private val LOG: Logger = LogManager.getLogger()
+    }
+}
+
+/**
+ * Load the (shared) schema definition from the yaml definition.
+ * The provided tests are verified once.
+ */
+fun String.toSchemaDefinition(): SchemaDefinition = SchemaDefinition(toSchemaDevice())
+
+fun File.toSchemaDefinition(): SchemaDefinition = SchemaDefinition(toSchemaDevice())
+
+fun InputStream.toSchemaDefinition(): SchemaDefinition = SchemaDefinition(toSchemaDevice())
@@ -16,6 +16,7 @@
  */
 package nl.basjes.modbus.schema
 
+import nl.basjes.modbus.device.api.Address
 import nl.basjes.modbus.device.api.AddressClass
 import nl.basjes.modbus.device.api.AddressClass.Type.DISCRETE
 import nl.basjes.modbus.device.api.AddressClass.Type.REGISTER
@@ -25,7 +26,12 @@ import nl.basjes.modbus.device.api.ModbusBlock
 import nl.basjes.modbus.device.api.ModbusDevice
 import nl.basjes.modbus.device.api.ModbusValue
 import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.exception.ModbusApiException
 import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.schema.export.FieldValueBatch
+import nl.basjes.modbus.schema.fetcher.DEFAULT_ALLOWED_GAP_READ_SIZE
+import nl.basjes.modbus.schema.fetcher.DeviceHealth
+import nl.basjes.modbus.schema.fetcher.FetchPlan
 import nl.basjes.modbus.schema.fetcher.ModbusBlockFetcher
 import nl.basjes.modbus.schema.fetcher.ModbusQuery
 import nl.basjes.modbus.schema.fetcher.OptimizingModbusBlockFetcher
@@ -38,6 +44,7 @@ import java.time.Instant
 import java.time.ZoneOffset
 import java.time.format.DateTimeFormatter
 import java.util.TreeMap
+import java.util.concurrent.CompletableFuture
 
 open class SchemaDevice
 @JvmOverloads
@@ -186,6 +193,13 @@ constructor(
     var modbusDevice: ModbusDevice? = null
     var modbusBlockFetcher: ModbusBlockFetcher? = null
 
+    /**
+     * The health of the connection with the modbus device (null if not connected).
+     * A scheduler can use this to skip devices that are not responding.
+     */
+    val health: DeviceHealth?
+        get() = modbusBlockFetcher?.health
+
     fun connectBase(modbusDevice: ModbusDevice): SchemaDevice {
         clearModbusBlocks()
         this.modbusDevice = modbusDevice
@@ -200,7 +214,7 @@ constructor(
         /**
          * How many registers may needlessly be read to optimize fetching
          */
-        allowedGapReadSize: Int = 100,
+        allowedGapReadSize: Int = DEFAULT_ALLOWED_GAP_READ_SIZE,
     ): SchemaDevice {
         clearModbusBlocks()
         this.modbusDevice = modbusDevice
@@ -208,10 +222,25 @@ constructor(
 
         val optimizingFetcher = OptimizingModbusBlockFetcher(this, modbusDevice)
         optimizingFetcher.allowedGapReadSize = allowedGapReadSize
+        optimizingFetcher.fetchPlans = fetchPlans
         this.modbusBlockFetcher = optimizingFetcher
         return this
     }
 
+    private val mutableFetchPlans: MutableList<FetchPlan> = mutableListOf()
+
+    /**
+     * Precalculated FetchPlans (typically from generated code) that are used when connected.
+     */
+    val fetchPlans: List<FetchPlan> = mutableFetchPlans
+
+    /**
+     * Add a precalculated FetchPlan.
+     */
+    fun addFetchPlan(fetchPlan: FetchPlan) {
+        mutableFetchPlans.add(fetchPlan)
+    }
+
     /**
      * @return A list of all currently known fields
      */
@@ -225,7 +254,51 @@ constructor(
      */
     @JvmOverloads
     fun update(maxAge: Long = 0): List<ModbusQuery>  {
-        return modbusBlockFetcher?.update(maxAge) ?: listOf()
+        val fetched = modbusBlockFetcher?.update(maxAge) ?: listOf()
+        recordHistory()
+        return fetched
+    }
+
+    /**
+     * Update all registers related to the needed fields to be updated with a maximum age of the provided milliseconds
+     * but stop doing new modbus requests once the deadline has passed.
+     * The queries are done in order of the priority of the fields. The queries that did not fit before the deadline
+     * get precedence in the next deadline limited update.
+     * @param maxAge maximum age of the fields in milliseconds
+     * @param deadline The epoch milliseconds after which no new requests must be started.
+     * @return A (possibly empty) list of all fetches that have been done (with duration and status)
+     */
+    fun update(
+        maxAge: Long,
+        deadline: Long,
+    ): List<ModbusQuery> {
+        val fetched = modbusBlockFetcher?.update(maxAge, deadline) ?: listOf()
+        recordHistory()
+        return fetched
+    }
+
+    /**
+     * Write raw values into holding registers (i.e. a setpoint) and update all registers related to the needed fields.
+     * The write is combined with the first needed read of holding registers into a single
+     * Read/Write Multiple Registers (0x17) request so a control loop needs one round trip less per cycle.
+     * @param firstRegister The first holding register that must be written.
+     * @param values The values that must be written.
+     * @param maxAge maximum age of the fields in milliseconds
+     * @return A (possibly empty) list of all fetches that have been done (with duration and status)
+     * @throws ModbusException If the write failed (nothing is updated in that case).
+     */
+    @JvmOverloads
+    @Throws(ModbusException::class)
+    fun writeAndUpdate(
+        firstRegister: Address,
+        values: ShortArray,
+        maxAge: Long = 0,
+    ): List<ModbusQuery> {
+        val modbusBlockFetcher = modbusBlockFetcher
+            ?: throw ModbusApiException("Unable to write $firstRegister: not connected to a modbus device")
+        val fetched = modbusBlockFetcher.writeAndUpdate(firstRegister, values, maxAge)
+        recordHistory()
+        return fetched
     }
 
     /**
@@ -234,7 +307,16 @@ constructor(
      * @return A (possibly empty) list of all fetches that have been done (with duration and status)
      */
     fun update(field: Field): List<ModbusQuery> {
-        return modbusBlockFetcher?.update(field) ?: listOf()
+        val fetched = modbusBlockFetcher?.update(field) ?: listOf()
+        recordHistory()
+        return fetched
+    }
+
+    // The fields that retain a history of their values.
+    internal val fieldsWithHistory: MutableSet<Field> = LinkedHashSet()
+
+    private fun recordHistory() {
+        fieldsWithHistory.forEach { it.recordHistory() }
     }
 
     /**
@@ -284,6 +366,14 @@ constructor(
      */
     fun neededFields() = blocks.flatMap { it.neededFields() }
 
+    /**
+     * Export the current values of all needed fields (typically directly after an update).
+     * @param batch The batch to fill, reuse the same batch for each update cycle to avoid allocations.
+     * @return The provided batch filled with the current values.
+     */
+    @JvmOverloads
+    fun exportNeededFields(batch: FieldValueBatch = FieldValueBatch()): FieldValueBatch = batch.fill(neededFields())
+
     // ------------------------------------------
 
     /**
@@ -345,12 +435,38 @@ constructor(
     @Throws(ModbusException::class)
     fun verifyProvidedTests(): TestScenarioResultsList {
         val allTestResults = TestScenarioResultsList()
-        for (test in tests) {
-            allTestResults.add(test.verify(this))
-        }
+        // Each test uses its own isolated copy of the modbus values so they can run in parallel.
+        allTestResults.addAll(tests.parallelStream().map { it.verify(this) }.toList())
         return allTestResults
     }
 
+    /**
+     * The verification of the provided tests that is running in the background (null if not started).
+     */
+    var backgroundTestVerification: CompletableFuture<TestScenarioResultsList>? = null
+        private set
+
+    /**
+     * Verify the provided tests in the background while this schema device is already usable.
+     * Failing tests are logged.
+     * @return The future of the results
+     */
+    fun verifyProvidedTestsInBackground(): CompletableFuture<TestScenarioResultsList> {
+        val verification =
+            CompletableFuture
+                .supplyAsync { verifyProvidedTests() }
+                .whenComplete { results, throwable ->
+                    if (throwable != null) {
+                        LOG.error("Verifying the Schema tests failed: {}", throwable.message)
+                    } else if (!results.allPassed) {
+                        LOG.error("These Schema tests failed: ${results.failedTests}.")
+                        results.logResults()
+                    }
+                }
+        backgroundTestVerification = verification
+        return verification
+    }
+
     override fun toString(): String = toTable(onlyUseFullFields = false, includeRawDataAndMappings = true)
 
     companion object {
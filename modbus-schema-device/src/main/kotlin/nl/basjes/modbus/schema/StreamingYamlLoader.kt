@@ -0,0 +1,302 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema
+
+import it.krzeminski.snakeyaml.engine.kmp.api.LoadSettings
+import it.krzeminski.snakeyaml.engine.kmp.api.lowlevel.Parse
+import it.krzeminski.snakeyaml.engine.kmp.events.Event
+import it.krzeminski.snakeyaml.engine.kmp.events.ScalarEvent
+import it.krzeminski.snakeyaml.engine.kmp.exceptions.YamlEngineException
+import nl.basjes.modbus.schema.exceptions.ModbusSchemaParseException
+import nl.basjes.modbus.schema.test.ExpectedBlock
+import nl.basjes.modbus.schema.test.TestScenario
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStream
+
+/**
+ * Load the schema device from the yaml definition while it is being parsed.
+ * Instead of first building the complete Schema object graph the Blocks and Fields are created directly from the
+ * stream of yaml events. The raw values of the test scenarios are retained as text and only parsed when the tests are
+ * verified. This reduces the peak memory usage and load time for large schemas (like those with a lot of test data).
+ * @param skipTests If true the test scenarios in the schema are skipped entirely (i.e. not loaded and not verified).
+ * @param verifyTestsInBackground If true the provided tests are verified in the background (failures are logged)
+ *                                instead of before returning (failures cause a ModbusSchemaParseException).
+ */
+@JvmOverloads
+fun InputStream.toSchemaDeviceStreaming(
+    skipTests: Boolean = false,
+    verifyTestsInBackground: Boolean = false,
+): SchemaDevice {
+    val schemaDevice =
+        try {
+            StreamingSchemaLoader(Parse(LoadSettings()).parse(this).iterator(), skipTests).load()
+        } catch (e: YamlEngineException) {
+            throw ModbusSchemaParseException("Unable to parse the schema: ${e.message}", e)
+        }
+    return schemaDevice.initializeAndVerifyTests(verifyTestsInBackground)
+}
+
+/**
+ * Load the schema device from the yaml file while it is being parsed.
+ * @see InputStream.toSchemaDeviceStreaming
+ */
+@JvmOverloads
+fun File.toSchemaDeviceStreaming(
+    skipTests: Boolean = false,
+    verifyTestsInBackground: Boolean = false,
+): SchemaDevice {
+    FileInputStream(this).use { inputStream ->
+        return inputStream.toSchemaDeviceStreaming(skipTests, verifyTestsInBackground)
+    }
+}
+
+private class StreamingSchemaLoader(
+    private val events: Iterator<Event>,
+    private val skipTests: Boolean,
+) {
+    private val schemaDevice = SchemaDevice()
+    private var peeked: Event? = null
+    private var current: Event? = null
+
+    private fun peek(): Event {
+        val event = peeked ?: if (events.hasNext()) events.next() else fail("Unexpected end of the schema")
+        peeked = event
+        return event
+    }
+
+    private fun next(): Event {
+        val event = peek()
+        peeked = null
+        current = event
+        return event
+    }
+
+    private fun fail(message: String): Nothing {
+        val line = current?.startMark?.line
+        throw ModbusSchemaParseException(if (line == null) message else "$message (at line ${line + 1})")
+    }
+
+    private fun expect(id: Event.ID): Event {
+        val event = next()
+        if (event.eventId != id) {
+            fail("Expected $id but found ${event.eventId}")
+        }
+        return event
+    }
+
+    private fun scalar(): String = (expect(Event.ID.Scalar) as ScalarEvent).value
+
+    private fun int(key: String): Int = scalar().toIntOrNull() ?: fail("The value of \"$key\" must be an integer")
+
+    private fun boolean(key: String): Boolean =
+        scalar().toBooleanStrictOrNull() ?: fail("The value of \"$key\" must be true or false")
+
+    /** Read a mapping where the handler must consume the value of each key. */
+    private fun mapping(handler: (String) -> Unit) {
+        expect(Event.ID.MappingStart)
+        while (peek().eventId != Event.ID.MappingEnd) {
+            handler(scalar())
+        }
+        next()
+    }
+
+    /** Read a sequence where the handler must consume each item. */
+    private fun sequence(handler: () -> Unit) {
+        expect(Event.ID.SequenceStart)
+        while (peek().eventId != Event.ID.SequenceEnd) {
+            handler()
+        }
+        next()
+    }
+
+    /** Read either a sequence of scalars or a single scalar. */
+    private fun scalars(): List<String> {
+        if (peek().eventId == Event.ID.Scalar) {
+            return listOf(scalar())
+        }
+        val values = mutableListOf<String>()
+        sequence { values.add(scalar()) }
+        return values
+    }
+
+    /** Skip an entire value (scalar, sequence or mapping) without building anything. */
+    private fun skipValue() {
+        var depth = 0
+        do {
+            when (next().eventId) {
+                Event.ID.MappingStart, Event.ID.SequenceStart -> depth++
+                Event.ID.MappingEnd, Event.ID.SequenceEnd     -> depth--
+                else                                          -> Unit
+            }
+        } while (depth > 0)
+    }
+
+    private fun unknown(key: String): Nothing = fail("Unknown property \"$key\"")
+
+    fun load(): SchemaDevice {
+        expect(Event.ID.StreamStart)
+        expect(Event.ID.DocumentStart)
+        var description: String? = null
+        var schemaFeatureLevel: Int? = null
+        mapping { key ->
+            when (key) {
+                "description"                   -> description = scalar()
+                "schemaFeatureLevel"            -> schemaFeatureLevel = int(key)
+                "maxRegistersPerModbusRequest"  -> schemaDevice.maxRegistersPerModbusRequest = int(key)
+                "blocks"                        -> sequence { block() }
+                "tests"                         -> if (skipTests) skipValue() else sequence { test() }
+                else                            -> unknown(key)
+            }
+        }
+        schemaDevice.description = description ?: fail("The schema has no description")
+        val requiredFeatureLevel = schemaFeatureLevel ?: fail("The schema has no schemaFeatureLevel")
+        require(schemaDevice.schemaFeatureLevel >= requiredFeatureLevel) {
+            "The provided schema requires schema level $requiredFeatureLevel which the currently " +
+                "used runtime does not support (max = ${schemaDevice.schemaFeatureLevel})"
+        }
+        return schemaDevice
+    }
+
+    private fun block() {
+        var id: String? = null
+        var description: String? = null
+        var block: Block? = null
+        // Only needed if the fields are specified before the id and description of the block.
+        val pendingFields = mutableListOf<SchemaField>()
+        mapping { key ->
+            when (key) {
+                "id"          -> id = scalar()
+                "description" -> description = scalar()
+                "fields"      -> {
+                    val blockId = id
+                    if (blockId != null && description != null) {
+                        block = Block(schemaDevice, blockId, description)
+                    }
+                    sequence {
+                        val field = field()
+                        val currentBlock = block
+                        if (currentBlock == null) {
+                            pendingFields.add(field)
+                        } else {
+                            field.addTo(currentBlock)
+                        }
+                    }
+                }
+                else          -> unknown(key)
+            }
+        }
+        val finalBlock = block ?: Block(schemaDevice, id ?: fail("Found a block without an id"), description)
+        pendingFields.forEach { it.addTo(finalBlock) }
+    }
+
+    private fun field(): SchemaField {
+        var id: String? = null
+        var description = ""
+        var immutable = false
+        var system = false
+        var expression: String? = null
+        var unit = ""
+        var fetchGroup = ""
+        mapping { key ->
+            when (key) {
+                "id"          -> id = scalar()
+                "description" -> description = scalar()
+                "immutable"   -> immutable = boolean(key)
+                "system"      -> system = boolean(key)
+                "expression"  -> expression = scalar()
+                "unit"        -> unit = scalar()
+                "fetchGroup"  -> fetchGroup = scalar()
+                else          -> unknown(key)
+            }
+        }
+        val fieldId = id ?: fail("Found a field without an id")
+        return SchemaField(
+            id          = fieldId,
+            description = description,
+            immutable   = immutable,
+            system      = system,
+            expression  = expression ?: fail("The field \"$fieldId\" has no expression"),
+            unit        = unit,
+            fetchGroup  = fetchGroup,
+        )
+    }
+
+    private fun SchemaField.addTo(block: Block) {
+        Field(
+            block           = block,
+            id              = id,
+            description     = description,
+            expression      = expression,
+            unit            = unit,
+            immutable       = immutable,
+            system          = system,
+        )
+    }
+
+    private fun test() {
+        var id: String? = null
+        var description: String? = null
+        val input = mutableListOf<Pair<String, String>>()
+        val expectedBlocks = mutableListOf<ExpectedBlock>()
+        mapping { key ->
+            when (key) {
+                "id"          -> id = scalar()
+                "description" -> description = scalar()
+                "input"       -> sequence { input.add(testInput()) }
+                "blocks"      -> sequence { expectedBlocks.add(testBlock()) }
+                else          -> unknown(key)
+            }
+        }
+        val testScenario = TestScenario(id ?: fail("Found a test without an id"), description)
+        // The raw values are only parsed when the test is actually run.
+        input.forEach { (firstAddress, rawValues) -> testScenario.addModbusBlock(firstAddress, rawValues) }
+        expectedBlocks.forEach { testScenario.addExpectedBlock(it) }
+        schemaDevice.addTestScenario(testScenario)
+    }
+
+    private fun testInput(): Pair<String, String> {
+        var firstAddress: String? = null
+        var rawValues: String? = null
+        mapping { key ->
+            when (key) {
+                "firstAddress" -> firstAddress = scalar()
+                "rawValues"    -> rawValues = scalar()
+                else           -> unknown(key)
+            }
+        }
+        return Pair(
+            firstAddress ?: fail("Found a test input without a firstAddress"),
+            rawValues ?: fail("Found a test input without rawValues"),
+        )
+    }
+
+    private fun testBlock(): ExpectedBlock {
+        var id: String? = null
+        val expected = mutableMapOf<String, List<String>>()
+        mapping { key ->
+            when (key) {
+                "id"       -> id = scalar()
+                "expected" -> mapping { fieldId -> expected[fieldId] = scalars() }
+                else       -> unknown(key)
+            }
+        }
+        val expectedBlock = ExpectedBlock(id ?: fail("Found a test block without an id"))
+        expected.forEach { (fieldId, values) -> expectedBlock.addExpectation(fieldId, values) }
+        return expectedBlock
+    }
+}
@@ -50,7 +50,13 @@ val yamlConfiguration =
 
 val yaml: Yaml = Yaml(configuration = yamlConfiguration)
 
-fun String.toSchemaDevice(): SchemaDevice {
+/**
+ * Load the schema device from the yaml definition.
+ * @param verifyTestsInBackground If true the provided tests are verified in the background (failures are logged)
+ *                                instead of before returning (failures cause a ModbusSchemaParseException).
+ */
+@JvmOverloads
+fun String.toSchemaDevice(verifyTestsInBackground: Boolean = false): SchemaDevice {
     val parsedSchema = yaml.decodeFromString(serializer(), this)
     val schemaDevice = SchemaDevice(parsedSchema.description, parsedSchema.maxRegistersPerModbusRequest)
     require(schemaDevice.schemaFeatureLevel >= parsedSchema.schemaFeatureLevel) {
@@ -103,11 +109,25 @@ fun String.toSchemaDevice(): SchemaDevice {
         }
     }
 
-    if (!schemaDevice.initialize()) {
-        throw ModbusSchemaParseException("The initialize of the Logical Device failed\n" + schemaDevice.initializationProblems())
+    return schemaDevice.initializeAndVerifyTests(verifyTestsInBackground)
+}
+
+/**
+ * Initialize the loaded schema device and verify the provided tests.
+ * @param verifyTestsInBackground If true the provided tests are verified in the background (failures are logged)
+ *                                instead of before returning (failures cause a ModbusSchemaParseException).
+ */
+internal fun SchemaDevice.initializeAndVerifyTests(verifyTestsInBackground: Boolean): SchemaDevice {
+    if (!initialize()) {
+        throw ModbusSchemaParseException("The initialize of the Logical Device failed\n" + initializationProblems())
+    }
+
+    if (verifyTestsInBackground) {
+        verifyProvidedTestsInBackground()
+        return this
     }
 
-    val results = schemaDevice.verifyProvidedTests()
+    val results = verifyProvidedTests()
     if (!results.allPassed) {
         throw ModbusSchemaParseException(
             results.joinToString(separator = "\n") {
@@ -120,22 +140,24 @@ fun String.toSchemaDevice(): SchemaDevice {
         )
     }
 
-    return schemaDevice
+    return this
 }
 
 // ------------------------------------------
 
-fun File.toSchemaDevice(): SchemaDevice {
+@JvmOverloads
+fun File.toSchemaDevice(verifyTestsInBackground: Boolean = false): SchemaDevice {
     FileInputStream(this).use { inputStream ->
-        return inputStream.toSchemaDevice()
+        return inputStream.toSchemaDevice(verifyTestsInBackground)
     }
 }
 
 // ------------------------------------------
 
-fun InputStream.toSchemaDevice(): SchemaDevice {
+@JvmOverloads
+fun InputStream.toSchemaDevice(verifyTestsInBackground: Boolean = false): SchemaDevice {
     val content = this.bufferedReader().use(BufferedReader::readText)
-    return content.toSchemaDevice()
+    return content.toSchemaDevice(verifyTestsInBackground)
 }
 
 // ------------------------------------------
@@ -0,0 +1,265 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.detect
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressClass
+import nl.basjes.modbus.device.api.AddressClass.Type.DISCRETE
+import nl.basjes.modbus.device.api.AddressClass.Type.REGISTER
+import nl.basjes.modbus.device.api.DiscreteBlock
+import nl.basjes.modbus.device.api.DiscreteValue
+import nl.basjes.modbus.device.api.ModbusBlock
+import nl.basjes.modbus.device.api.ModbusDevice
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.api.RegisterValue
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+import java.util.TreeMap
+
+/**
+ * Determines which of a set of candidate schemas matches a connected (unknown) device
+ * with as few modbus requests as possible.
+ *
+ * For each candidate the identity is derived from the identity fields (like the manufacturer and model)
+ * combined with the values these registers have in ALL the test scenarios of that candidate.
+ * The probes are the register ranges of these fields. At each step the probe that splits the remaining candidates
+ * best (i.e. the next node in the decision tree) is read and all candidates that expect different values
+ * (or expect values where the device returns a read error) are eliminated.
+ * Finally, the remaining candidates are verified by reading all their other identity probes.
+ * So a single candidate is only returned if the device really matches its identity.
+ *
+ * The identity fields must be specified explicitly: many schemas have immutable fields that are specific to
+ * a single device (like a serial number or a firmware version) which must not be used to identify the schema.
+ * A candidate without test scenarios has no known identity values and is therefore never eliminated.
+ *
+ * @param candidates The (initialized) candidate schema devices.
+ * @param identityFields The ids ("FieldId" or "BlockId.FieldId") of the fields that identify a schema.
+ */
+class SchemaDetector(
+    candidates: List<SchemaDevice>,
+    identityFields: Set<String>,
+) {
+    private class Probe(
+        val start: Address,
+        val count: Int,
+    ) {
+        val addresses: List<Address> = (0 until count).map { start.increment(it) }
+
+        override fun equals(other: Any?) = other is Probe && start == other.start && count == other.count
+
+        override fun hashCode() = start.hashCode() * 31 + count
+
+        override fun toString() = "${start.toCleanFormat()}#$count"
+    }
+
+    private class Candidate(
+        val schemaDevice: SchemaDevice,
+        /** The value each identity address has in all test scenarios of this candidate */
+        val signature: Map<Address, Any>,
+    ) {
+        /** The expected values within the probe (null means the candidate has no opinion about this probe). */
+        fun expected(probe: Probe): List<Any?>? {
+            val values = probe.addresses.map { signature[it] }
+            return if (values.all { it == null }) null else values
+        }
+    }
+
+    private val candidates: List<Candidate>
+
+    private val probes: List<Probe>
+
+    init {
+        require(identityFields.isNotEmpty()) { "At least one identity field is needed" }
+        fun Field.isIdentity() = identityFields.contains(id) || identityFields.contains("${block.id}.$id")
+
+        val allProbes = LinkedHashSet<Probe>()
+        this.candidates =
+            candidates.map { schemaDevice ->
+                require(schemaDevice.initialize()) { "The candidate \"${schemaDevice.description}\" cannot be initialized" }
+                val identityAddresses =
+                    schemaDevice.fields
+                        .filter { it.isIdentity() && it.requiredAddresses.isNotEmpty() }
+                        .map { field ->
+                            val addresses = field.requiredAddresses.sorted()
+                            allProbes.add(Probe(addresses.first(), addresses.first().distance(addresses.last())!! + 1))
+                            addresses
+                        }.flatten()
+                        .toSet()
+                Candidate(schemaDevice, signatureOf(schemaDevice, identityAddresses))
+            }
+        this.probes = allProbes.toList()
+    }
+
+    /**
+     * The values of the addresses that are the same in all test scenarios of the schema device.
+     */
+    private fun signatureOf(
+        schemaDevice: SchemaDevice,
+        addresses: Set<Address>,
+    ): Map<Address, Any> {
+        val tests = schemaDevice.tests
+        if (tests.isEmpty()) {
+            return emptyMap()
+        }
+        val signature = mutableMapOf<Address, Any>()
+        for (address in addresses) {
+            val values =
+                tests.map { test ->
+                    // A test can have multiple input ranges of the same address class
+                    test.modbusBlocks
+                        .filter { it.addressClass == address.addressClass }
+                        .firstNotNullOfOrNull { it.getValue(address) }
+                }.distinct()
+            val value = values.singleOrNull() ?: continue
+            signature[address] = value
+        }
+        return signature
+    }
+
+    /**
+     * The expected number of remaining candidates after reading the probe.
+     * Candidates without an expectation for the probe always remain.
+     */
+    private fun score(
+        probe: Probe,
+        remaining: List<Candidate>,
+    ): Double {
+        val groups = remaining.groupBy { it.expected(probe) }
+        val undecided = groups[null]?.size ?: 0
+        val decided = remaining.size - undecided
+        if (decided == 0 || (groups.size == 1)) {
+            return Double.MAX_VALUE // Does not discriminate at all
+        }
+        return undecided + groups.filterKeys { it != null }.values.sumOf { it.size.toDouble() * it.size } / decided
+    }
+
+    /**
+     * Determine which of the candidates match the device.
+     * @param modbusDevice The connected device
+     * @return The result of the detection
+     */
+    fun detect(modbusDevice: ModbusDevice): DetectionResult {
+        val probedValues: MutableMap<AddressClass, ModbusBlock<*, *, *>> = TreeMap()
+        var remaining = candidates
+        val unusedProbes =
+            probes
+                .filter {
+                    when (it.start.addressClass.type) {
+                        REGISTER -> it.count <= modbusDevice.maxRegistersPerModbusRequest
+                        DISCRETE -> it.count <= modbusDevice.maxDiscretesPerModbusRequest
+                    }
+                }.toMutableList()
+        var requests = 0
+
+        // Read the probe and keep only the candidates that match the result.
+        fun probeAndFilter(probe: Probe) {
+            unusedProbes.remove(probe)
+            val block =
+                probedValues.computeIfAbsent(probe.start.addressClass) {
+                    when (it.type) {
+                        DISCRETE -> DiscreteBlock(it)
+                        REGISTER -> RegisterBlock(it)
+                    }
+                }
+            requests++
+            val success =
+                try {
+                    when (block) {
+                        is RegisterBlock -> modbusDevice.getRegistersInto(probe.start, probe.count, block)
+                        is DiscreteBlock -> modbusDevice.getDiscretesInto(probe.start, probe.count, block)
+                    }
+                } catch (e: ModbusException) {
+                    LOG.debug("Probe {} failed: {}", probe, e.message)
+                    false
+                }
+            val actual = if (success) probe.addresses.map { block.getValue(it) } else null
+
+            remaining =
+                remaining.filter { candidate ->
+                    val expected = candidate.expected(probe) ?: return@filter true
+                    actual != null &&
+                        expected.indices.all { expected[it] == null || expected[it] == actual[it] }
+                }
+            LOG.debug("Probe {} leaves {} candidates", probe, remaining.size)
+        }
+
+        // First find the candidates that match with the least number of requests
+        while (remaining.size > 1) {
+            val probe = unusedProbes.minByOrNull { score(it, remaining) } ?: break
+            if (score(probe, remaining) == Double.MAX_VALUE) {
+                break // Nothing left that can discriminate between the remaining candidates.
+            }
+            probeAndFilter(probe)
+        }
+
+        // Then verify all identity values of the remaining candidates (also if only one candidate remains).
+        while (remaining.isNotEmpty()) {
+            val probe = unusedProbes.firstOrNull { unusedProbe -> remaining.any { it.expected(unusedProbe) != null } } ?: break
+            probeAndFilter(probe)
+        }
+        return DetectionResult(remaining.map { it.schemaDevice }, requests, probedValues)
+    }
+
+    companion object {
+        private val LOG: Logger = LogManager.getLogger()
+    }
+}
+
+/**
+ * The result of a schema detection.
+ * @param matches All candidates that match the device (more than one if these could not be distinguished).
+ * @param requests The number of modbus requests that were needed.
+ */
+class DetectionResult(
+    val matches: List<SchemaDevice>,
+    val requests: Int,
+    private val probedValues: Map<AddressClass, ModbusBlock<*, *, *>>,
+) {
+    /** The only matching schema device (null if there are none or multiple matches). */
+    val schemaDevice: SchemaDevice?
+        get() = matches.singleOrNull()
+
+    /**
+     * Put the values that were read during the detection into the (connected) schema device
+     * so these do not need to be read again.
+     * @param schemaDevice The schema device (after it has been connected).
+     */
+    fun populate(schemaDevice: SchemaDevice) {
+        val usedAddresses = schemaDevice.fields.flatMap { it.requiredAddresses }.toSet()
+        val immutableAddresses = schemaDevice.fields.filter { it.isImmutable }.flatMap { it.requiredAddresses }.toSet()
+        for ((addressClass, probedBlock) in probedValues) {
+            val targetBlock = schemaDevice.getModbusBlock(addressClass)
+            for (probedValue in probedBlock.values) {
+                val address = probedValue.address
+                if (!probedValue.hasValue() || !usedAddresses.contains(address)) {
+                    continue
+                }
+                val targetValue =
+                    when (targetBlock) {
+                        is RegisterBlock -> targetBlock[address].setValue(probedValue as RegisterValue)
+                        is DiscreteBlock -> targetBlock[address].setValue(probedValue as DiscreteValue)
+                    }
+                targetValue.immutable = immutableAddresses.contains(address)
+            }
+        }
+    }
+
+    override fun toString(): String = "DetectionResult(${matches.map { it.description }} using $requests requests)"
+}
@@ -0,0 +1,288 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.export
+
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.ReturnType
+import java.nio.ByteBuffer
+import java.util.BitSet
+
+/**
+ * The values (and value timestamps) of all exported fields of a single ReturnType.
+ * The arrays are reused (and only grown when needed) for each batch.
+ */
+sealed class FieldColumn(
+    val returnType: ReturnType,
+) {
+    private val mutableFields = ArrayList<Field>()
+
+    /** The fields in this column, the index in this list is the index of the value. */
+    val fields: List<Field> = mutableFields
+
+    val size: Int
+        get() = mutableFields.size
+
+    /** The bit is set for each index where the value is null (i.e. not available). */
+    val nulls = BitSet()
+
+    /** The valueEpochMs of each field (NO_TIMESTAMP if not available, which is normal for immutable fields). */
+    var timestamps = LongArray(INITIAL_CAPACITY)
+        private set
+
+    fun isNull(index: Int) = nulls[index]
+
+    fun timestamp(index: Int): Long? = timestamps[index].takeIf { it != NO_TIMESTAMP }
+
+    internal fun clear() {
+        mutableFields.clear()
+        nulls.clear()
+    }
+
+    internal fun add(field: Field) {
+        val index = mutableFields.size
+        if (index == timestamps.size) {
+            timestamps = timestamps.copyOf(index * 2)
+            grow(index * 2)
+        }
+        mutableFields.add(field)
+        timestamps[index] = field.valueEpochMs ?: NO_TIMESTAMP
+        if (!store(index, field)) {
+            nulls.set(index)
+        }
+    }
+
+    /** Grow the value storage to the new capacity */
+    protected abstract fun grow(capacity: Int)
+
+    /**
+     * Store the current value of the field at the index.
+     * @return false if the value is null
+     */
+    protected abstract fun store(
+        index: Int,
+        field: Field,
+    ): Boolean
+
+    /** The number of bytes needed to encode the values */
+    internal abstract fun encodedValuesSize(): Int
+
+    internal abstract fun encodeValues(buffer: ByteBuffer)
+
+    companion object {
+        const val NO_TIMESTAMP = Long.MIN_VALUE
+        private const val INITIAL_CAPACITY = 16
+    }
+}
+
+class LongColumn : FieldColumn(ReturnType.LONG) {
+    var values = LongArray(timestamps.size)
+        private set
+
+    operator fun get(index: Int): Long? = if (isNull(index)) null else values[index]
+
+    override fun grow(capacity: Int) {
+        values = values.copyOf(capacity)
+    }
+
+    override fun store(
+        index: Int,
+        field: Field,
+    ): Boolean {
+        val value = field.getAsLong(NULL_SENTINEL)
+        // Only if the sentinel is returned a (rare) second check is needed to see if it really is a null.
+        if (value == NULL_SENTINEL && field.longValue == null) {
+            return false
+        }
+        values[index] = value
+        return true
+    }
+
+    private companion object {
+        const val NULL_SENTINEL = Long.MIN_VALUE
+    }
+
+    override fun encodedValuesSize() = size * Long.SIZE_BYTES
+
+    override fun encodeValues(buffer: ByteBuffer) {
+        for (index in 0 until size) {
+            buffer.putLong(values[index])
+        }
+    }
+}
+
+class DoubleColumn : FieldColumn(ReturnType.DOUBLE) {
+    var values = DoubleArray(timestamps.size)
+        private set
+
+    operator fun get(index: Int): Double? = if (isNull(index)) null else values[index]
+
+    override fun grow(capacity: Int) {
+        values = values.copyOf(capacity)
+    }
+
+    override fun store(
+        index: Int,
+        field: Field,
+    ): Boolean {
+        val value = field.getAsDouble(Double.NaN)
+        // Only if NaN is returned a (rare) second check is needed to see if it really is a null.
+        if (value.isNaN() && field.doubleValue == null) {
+            return false
+        }
+        values[index] = value
+        return true
+    }
+
+    override fun encodedValuesSize() = size * Double.SIZE_BYTES
+
+    override fun encodeValues(buffer: ByteBuffer) {
+        for (index in 0 until size) {
+            buffer.putDouble(values[index])
+        }
+    }
+}
+
+class BooleanColumn : FieldColumn(ReturnType.BOOLEAN) {
+    /** The bit is set for each index where the value is true. */
+    val values = BitSet()
+
+    operator fun get(index: Int): Boolean? = if (isNull(index)) null else values[index]
+
+    override fun grow(capacity: Int) {
+        // A BitSet grows by itself
+    }
+
+    override fun store(
+        index: Int,
+        field: Field,
+    ): Boolean {
+        // A value that does not depend on the default is a real value.
+        val value = field.getAsBoolean(false)
+        if (!value && field.getAsBoolean(true)) {
+            return false
+        }
+        values[index] = value
+        return true
+    }
+
+    override fun encodedValuesSize() = bitmapSize(size)
+
+    override fun encodeValues(buffer: ByteBuffer) = encodeBitmap(values, size, buffer)
+}
+
+class StringColumn : FieldColumn(ReturnType.STRING) {
+    var values = arrayOfNulls<String>(timestamps.size)
+        private set
+
+    // The UTF-8 encoded values, only created while encoding.
+    private var encodedValues = arrayOfNulls<ByteArray>(timestamps.size)
+
+    operator fun get(index: Int): String? = values[index]
+
+    override fun grow(capacity: Int) {
+        values = values.copyOf(capacity)
+        encodedValues = encodedValues.copyOf(capacity)
+    }
+
+    override fun store(
+        index: Int,
+        field: Field,
+    ): Boolean {
+        values[index] = field.stringValue
+        return values[index] != null
+    }
+
+    override fun encodedValuesSize(): Int {
+        var encodedSize = 0
+        for (index in 0 until size) {
+            val bytes = (values[index] ?: "").toByteArray(Charsets.UTF_8)
+            encodedValues[index] = bytes
+            encodedSize += Int.SIZE_BYTES + bytes.size
+        }
+        return encodedSize
+    }
+
+    override fun encodeValues(buffer: ByteBuffer) {
+        for (index in 0 until size) {
+            val bytes = encodedValues[index] ?: (values[index] ?: "").toByteArray(Charsets.UTF_8)
+            buffer.putInt(bytes.size)
+            buffer.put(bytes)
+            encodedValues[index] = null
+        }
+    }
+}
+
+class StringListColumn : FieldColumn(ReturnType.STRINGLIST) {
+    var values = arrayOfNulls<List<String>>(timestamps.size)
+        private set
+
+    operator fun get(index: Int): List<String>? = values[index]
+
+    override fun grow(capacity: Int) {
+        values = values.copyOf(capacity)
+    }
+
+    override fun store(
+        index: Int,
+        field: Field,
+    ): Boolean {
+        values[index] = field.stringListValue
+        return values[index] != null
+    }
+
+    override fun encodedValuesSize(): Int {
+        var encodedSize = 0
+        for (index in 0 until size) {
+            val list = values[index] ?: emptyList()
+            encodedSize += Int.SIZE_BYTES
+            list.forEach { encodedSize += Int.SIZE_BYTES + it.toByteArray(Charsets.UTF_8).size }
+        }
+        return encodedSize
+    }
+
+    override fun encodeValues(buffer: ByteBuffer) {
+        for (index in 0 until size) {
+            val list = values[index] ?: emptyList()
+            buffer.putInt(list.size)
+            for (value in list) {
+                val bytes = value.toByteArray(Charsets.UTF_8)
+                buffer.putInt(bytes.size)
+                buffer.put(bytes)
+            }
+        }
+    }
+}
+
+internal fun bitmapSize(count: Int) = (count + 7) / 8
+
+/** Write the first count bits of the bitset (LSB first) */
+internal fun encodeBitmap(
+    bitSet: BitSet,
+    count: Int,
+    buffer: ByteBuffer,
+) {
+    for (byteIndex in 0 until bitmapSize(count)) {
+        var byte = 0
+        for (bit in 0 until 8) {
+            val index = (byteIndex * 8) + bit
+            if (index < count && bitSet[index]) {
+                byte = byte or (1 shl bit)
+            }
+        }
+        buffer.put(byte.toByte())
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.export
+
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.ReturnType
+import nl.basjes.modbus.schema.ReturnType.BOOLEAN
+import nl.basjes.modbus.schema.ReturnType.DOUBLE
+import nl.basjes.modbus.schema.ReturnType.LONG
+import nl.basjes.modbus.schema.ReturnType.STRING
+import nl.basjes.modbus.schema.ReturnType.STRINGLIST
+import nl.basjes.modbus.schema.ReturnType.UNKNOWN
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * The values of a set of fields at a single moment, stored column wise (one column per ReturnType)
+ * in primitive arrays. A batch is intended to be reused for every update cycle so exporting the
+ * values does not need to box and allocate each value separately.
+ *
+ * The compact binary encoding (all numbers are big endian) is:
+ * - 1 byte: The format version
+ * - 8 bytes: The epoch milliseconds at which the batch was filled
+ * - For each column (BOOLEAN, LONG, DOUBLE, STRING, STRINGLIST):
+ *   - 1 byte: The ordinal of the ReturnType
+ *   - 4 bytes: The number of values
+ *   - Only if the field ids are included: for each value the block id and field id (both as string)
+ *   - The null bitmap (1 bit per value, LSB first)
+ *   - For each value the value timestamp (8 bytes, Long.MIN_VALUE if not available)
+ *   - The values: LONG/DOUBLE 8 bytes each, BOOLEAN as a bitmap, STRING as string,
+ *     STRINGLIST as 4 bytes count followed by the strings.
+ * - A string is encoded as 4 bytes length followed by the UTF-8 bytes.
+ */
+class FieldValueBatch {
+    /** The epoch milliseconds at which this batch was last filled */
+    var epochMs: Long = 0
+        private set
+
+    val booleans = BooleanColumn()
+    val longs = LongColumn()
+    val doubles = DoubleColumn()
+    val strings = StringColumn()
+    val stringLists = StringListColumn()
+
+    val columns: List<FieldColumn> = listOf(booleans, longs, doubles, strings, stringLists)
+
+    /** The total number of values in this batch */
+    val size: Int
+        get() = columns.sumOf { it.size }
+
+    fun column(returnType: ReturnType): FieldColumn? =
+        when (returnType) {
+            BOOLEAN    -> booleans
+            LONG       -> longs
+            DOUBLE     -> doubles
+            STRING     -> strings
+            STRINGLIST -> stringLists
+            UNKNOWN    -> null
+        }
+
+    /**
+     * Replace the content of this batch with the current values of the provided fields.
+     * Fields with an UNKNOWN return type are skipped.
+     * @param fields The fields to export
+     * @return This batch
+     */
+    fun fill(fields: Iterable<Field>): FieldValueBatch {
+        epochMs = System.currentTimeMillis()
+        columns.forEach { it.clear() }
+        for (field in fields) {
+            column(field.returnType)?.add(field)
+        }
+        return this
+    }
+
+    // ------------------------------------------
+
+    private var encodeBuffer: ByteBuffer = ByteBuffer.allocate(0)
+
+    /**
+     * @param includeFieldIds If the block and field ids of each value must be included.
+     * @return The number of bytes needed to encode this batch
+     */
+    @JvmOverloads
+    fun encodedSize(includeFieldIds: Boolean = true): Int {
+        var encodedSize = 1 + Long.SIZE_BYTES
+        for (column in columns) {
+            encodedSize += 1 + Int.SIZE_BYTES
+            if (includeFieldIds) {
+                column.fields.forEach { encodedSize += encodedSize(it.block.id) + encodedSize(it.id) }
+            }
+            encodedSize += bitmapSize(column.size) + (column.size * Long.SIZE_BYTES) + column.encodedValuesSize()
+        }
+        return encodedSize
+    }
+
+    /**
+     * Write the compact binary encoding of this batch into the buffer.
+     * @param buffer The buffer to write into, must have at least encodedSize bytes remaining.
+     * @param includeFieldIds If the block and field ids of each value must be included.
+     */
+    @JvmOverloads
+    fun encode(
+        buffer: ByteBuffer,
+        includeFieldIds: Boolean = true,
+    ) {
+        buffer.put(ENCODING_VERSION)
+        buffer.putLong(epochMs)
+        for (column in columns) {
+            buffer.put(column.returnType.ordinal.toByte())
+            buffer.putInt(column.size)
+            if (includeFieldIds) {
+                column.fields.forEach {
+                    encodeString(it.block.id, buffer)
+                    encodeString(it.id, buffer)
+                }
+            }
+            encodeBitmap(column.nulls, column.size, buffer)
+            for (index in 0 until column.size) {
+                buffer.putLong(column.timestamps[index])
+            }
+            column.encodeValues(buffer)
+        }
+    }
+
+    /**
+     * Write the compact binary encoding of this batch to the stream.
+     * The internal buffer used for this is reused for the next batch.
+     * @param outputStream The stream to write to.
+     * @param includeFieldIds If the block and field ids of each value must be included.
+     */
+    @JvmOverloads
+    fun encode(
+        outputStream: OutputStream,
+        includeFieldIds: Boolean = true,
+    ) {
+        val encodedSize = encodedSize(includeFieldIds)
+        if (encodeBuffer.capacity() < encodedSize) {
+            encodeBuffer = ByteBuffer.allocate(maxOf(encodedSize, encodeBuffer.capacity() * 2))
+        }
+        encodeBuffer.clear()
+        encode(encodeBuffer, includeFieldIds)
+        outputStream.write(encodeBuffer.array(), 0, encodeBuffer.position())
+    }
+
+    override fun toString(): String =
+        columns
+            .filter { it.size > 0 }
+            .joinToString("\n", "FieldValueBatch @ $epochMs\n") { column ->
+                column.fields.indices.joinToString("\n") { index ->
+                    val field = column.fields[index]
+                    val value =
+                        when (column) {
+                            is BooleanColumn    -> column[index]
+                            is LongColumn       -> column[index]
+                            is DoubleColumn     -> column[index]
+                            is StringColumn     -> column[index]
+                            is StringListColumn -> column[index]
+                        }
+                    "${field.block.id}.${field.id} (${column.returnType}) = $value @ ${column.timestamp(index)}"
+                }
+            }
+
+    companion object {
+        const val ENCODING_VERSION: Byte = 1
+
+        private fun encodedSize(value: String) = Int.SIZE_BYTES + value.toByteArray(Charsets.UTF_8).size
+
+        private fun encodeString(
+            value: String,
+            buffer: ByteBuffer,
+        ) {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            buffer.putInt(bytes.size)
+            buffer.put(bytes)
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.export
+
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.ReturnType.DOUBLE
+import nl.basjes.modbus.schema.ReturnType.LONG
+import nl.basjes.modbus.schema.SchemaDevice
+import nl.basjes.modbus.schema.exceptions.ModbusSchemaMissingFieldException
+import java.util.BitSet
+
+/**
+ * The values of the same numerical field for a fleet of devices (typically all created from the same
+ * SchemaDefinition), stored in a primitive array where the index is the index of the device.
+ *
+ * The fields are looked up once so each call to [evaluate] is a single pass over all devices
+ * without any lookups, boxing or allocations. The result is intended to be reused for every update cycle
+ * and makes fleet level aggregates (like the total power of all inverters) cheap to calculate.
+ *
+ * @param devices The devices in the fleet.
+ * @param blockId The id of the block of the field.
+ * @param fieldId The id of the field (must be a LONG or DOUBLE field).
+ */
+class FleetFieldValues(
+    devices: List<SchemaDevice>,
+    val blockId: String,
+    val fieldId: String,
+) {
+    private val fields: Array<Field> =
+        devices
+            .map {
+                it.getBlock(blockId)?.getField(fieldId)
+                    ?: throw ModbusSchemaMissingFieldException("The field $blockId.$fieldId does not exist in ${it.description}")
+            }.toTypedArray()
+
+    init {
+        fields.forEach {
+            require(it.returnType == LONG || it.returnType == DOUBLE) {
+                "The field $blockId.$fieldId must be numerical (is ${it.returnType})"
+            }
+        }
+    }
+
+    /** The number of devices */
+    val size: Int = fields.size
+
+    /** The value for each device (only valid if the device is not in the nulls). */
+    val values = DoubleArray(size)
+
+    /** The bit is set for each device where the value is null (i.e. not available). */
+    val nulls = BitSet(size)
+
+    fun isNull(index: Int) = nulls[index]
+
+    operator fun get(index: Int): Double? = if (isNull(index)) null else values[index]
+
+    /**
+     * Evaluate the field for all devices using the currently retrieved modbus values of each device.
+     * A value that is NaN is treated as null.
+     * @return This instance
+     */
+    fun evaluate(): FleetFieldValues {
+        nulls.clear()
+        for (index in 0 until size) {
+            val value = fields[index].getAsDouble(Double.NaN)
+            values[index] = value
+            if (value.isNaN()) {
+                nulls.set(index)
+            }
+        }
+        return this
+    }
+
+    /** The number of devices that have a value. */
+    val count: Int
+        get() = size - nulls.cardinality()
+
+    /** The sum of all available values (0 if none). */
+    fun sum(): Double {
+        var sum = 0.0
+        for (index in 0 until size) {
+            if (!nulls[index]) {
+                sum += values[index]
+            }
+        }
+        return sum
+    }
+
+    /** The average of all available values (null if none). */
+    fun average(): Double? = if (count == 0) null else sum() / count
+
+    /** The minimum of all available values (null if none). */
+    fun min(): Double? = reduce { a, b -> if (b < a) b else a }
+
+    /** The maximum of all available values (null if none). */
+    fun max(): Double? = reduce { a, b -> if (b > a) b else a }
+
+    private inline fun reduce(operation: (Double, Double) -> Double): Double? {
+        var index = nulls.nextClearBit(0)
+        if (index >= size) {
+            return null
+        }
+        var result = values[index]
+        while (++index < size) {
+            if (!nulls[index]) {
+                result = operation(result, values[index])
+            }
+        }
+        return result
+    }
+
+    override fun toString(): String =
+        (0 until size).joinToString(", ", "FleetFieldValues($blockId.$fieldId) = [ ", " ]") { "${get(it)}" }
+}
@@ -27,6 +27,14 @@ interface BooleanExpression : Expression {
      */
     fun getBoolean(schemaDevice: SchemaDevice): Boolean?
 
+    /**
+     * Primitive variant of getBoolean.
+     * @param default The value to return if there is no value
+     * @return The boolean value or the default in case of problems
+     */
+    fun getBoolean(schemaDevice: SchemaDevice, default: Boolean): Boolean =
+        getBoolean(schemaDevice) ?: default
+
     override val returnType: ReturnType
         get() = BOOLEAN
 
@@ -43,6 +43,8 @@ class DoubleConstant(
 
     override fun getValueAsDouble(schemaDevice: SchemaDevice): Double = value
 
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double = value
+
     override fun getGuarantee(): ValueGuarantee =
         when {
             value >= 0 -> ValueGuarantee.POSITIVE
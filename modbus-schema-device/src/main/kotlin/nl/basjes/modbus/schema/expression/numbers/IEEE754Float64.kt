@@ -67,4 +67,12 @@ class IEEE754Float64(
         }
         return byteArray.getByteArray(schemaDevice)?.let { ByteConversions.bytesToDouble(it) }
     }
+
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double {
+        val bytes = byteArray.getByteArray(schemaDevice) ?: return default
+        if (isNotImplemented(bytes)) {
+            return default // Not implemented
+        }
+        return ByteConversions.bytesToDouble(bytes)
+    }
 }
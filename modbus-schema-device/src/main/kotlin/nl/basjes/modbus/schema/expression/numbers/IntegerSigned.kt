@@ -56,5 +56,36 @@ abstract class IntegerSigned(
 
     override fun getModbusValues(schemaDevice: SchemaDevice) = registersExpression.getModbusValues(schemaDevice)
 
-    abstract override fun getValueAsLong(schemaDevice: SchemaDevice): Long?
+    /**
+     * Convert the (implemented) bytes into the value.
+     */
+    protected abstract fun toLong(bytes: ByteArray): Long
+
+    /**
+     * @return false if the bytes cannot be represented in a Long
+     */
+    protected open fun fitsInLong(bytes: ByteArray): Boolean = true
+
+    private fun getValidBytes(schemaDevice: SchemaDevice): ByteArray? {
+        val bytes = registersExpression.getByteArray(schemaDevice) ?: return null
+        if (isNotImplemented(bytes) || !fitsInLong(bytes)) {
+            return null
+        }
+        return bytes
+    }
+
+    override fun getValueAsLong(schemaDevice: SchemaDevice): Long? {
+        val bytes = getValidBytes(schemaDevice) ?: return null
+        return toLong(bytes)
+    }
+
+    override fun getValueAsLong(schemaDevice: SchemaDevice, default: Long): Long {
+        val bytes = getValidBytes(schemaDevice) ?: return default
+        return toLong(bytes)
+    }
+
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double {
+        val bytes = getValidBytes(schemaDevice) ?: return default
+        return toLong(bytes).toDouble()
+    }
 }
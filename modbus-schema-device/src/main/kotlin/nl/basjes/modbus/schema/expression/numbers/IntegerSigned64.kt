@@ -16,21 +16,16 @@
  */
 package nl.basjes.modbus.schema.expression.numbers
 
-import nl.basjes.modbus.schema.SchemaDevice
 import nl.basjes.modbus.schema.expression.LONG_BYTES
 import nl.basjes.modbus.schema.expression.registers.RegistersExpression
 import nl.basjes.modbus.schema.utils.ByteConversions
 
 class IntegerSigned64(
-    private val registersExpression: RegistersExpression,
+    registersExpression: RegistersExpression,
     notImplemented: List<String>,
 ) : IntegerSigned("int64", LONG_BYTES, registersExpression, notImplemented) {
 
-    override fun getValueAsLong(schemaDevice: SchemaDevice): Long? {
-        val bytes = registersExpression.getByteArray(schemaDevice) ?: return null
-        if (isNotImplemented(bytes)) {
-            return null // Not implemented
-        }
+    override fun toLong(bytes: ByteArray): Long {
         return ByteConversions.bytesToLong(bytes)
     }
 }
@@ -16,21 +16,16 @@
  */
 package nl.basjes.modbus.schema.expression.numbers
 
-import nl.basjes.modbus.schema.SchemaDevice
 import nl.basjes.modbus.schema.expression.SHORT_BYTES
 import nl.basjes.modbus.schema.expression.registers.RegistersExpression
 import nl.basjes.modbus.schema.utils.ByteConversions
 
 class IntegerUnsigned16(
-    private val registersExpression: RegistersExpression,
+    registersExpression: RegistersExpression,
     notImplemented: List<String>,
 ) : IntegerUnsigned("uint16", SHORT_BYTES, registersExpression, notImplemented) {
 
-    override fun getValueAsLong(schemaDevice: SchemaDevice): Long? {
-        val bytes = registersExpression.getByteArray(schemaDevice) ?: return null
-        if (isNotImplemented(bytes)) {
-            return null // Not implemented
-        }
+    override fun toLong(bytes: ByteArray): Long {
         val longBytes =
             byteArrayOf(
                 0x00.toByte(),
@@ -16,26 +16,21 @@
  */
 package nl.basjes.modbus.schema.expression.numbers
 
-import nl.basjes.modbus.schema.SchemaDevice
 import nl.basjes.modbus.schema.expression.LONG_BYTES
 import nl.basjes.modbus.schema.expression.registers.RegistersExpression
 import nl.basjes.modbus.schema.utils.ByteConversions
 
 class IntegerUnsigned64(
-    private val registersExpression: RegistersExpression,
+    registersExpression: RegistersExpression,
     notImplemented: List<String>,
 ) : IntegerUnsigned("uint64", LONG_BYTES, registersExpression, notImplemented) {
 
-    override fun getValueAsLong(schemaDevice: SchemaDevice): Long? {
-        // TODO: Java does not have UNsigned 64 bit long ...
-        val bytes = registersExpression.getByteArray(schemaDevice) ?: return null
-        if (isNotImplemented(bytes)) {
-            return null // Not implemented
-        }
-        if ((bytes[0].toInt() and 0x80.toByte().toInt()) == 0x80.toByte().toInt()) {
-            // The highest bit was set --> So we have a numerical overflow because Java cannot handle UNSIGNED 64-bit numbers.
-            return null
-        }
+    // TODO: Java does not have UNsigned 64 bit long ...
+    // If the highest bit was set we have a numerical overflow because Java cannot handle UNSIGNED 64-bit numbers.
+    override fun fitsInLong(bytes: ByteArray): Boolean =
+        (bytes[0].toInt() and 0x80.toByte().toInt()) != 0x80.toByte().toInt()
+
+    override fun toLong(bytes: ByteArray): Long {
         return ByteConversions.bytesToLong(bytes)
     }
 }
@@ -36,6 +36,10 @@ open class LongConstant(
 
     override fun getValueAsLong(schemaDevice: SchemaDevice): Long = value
 
+    override fun getValueAsLong(schemaDevice: SchemaDevice, default: Long): Long = value
+
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double = value.toDouble()
+
     override fun getGuarantee(): ValueGuarantee =
         when {
             value >= 0 -> ValueGuarantee.POSITIVE
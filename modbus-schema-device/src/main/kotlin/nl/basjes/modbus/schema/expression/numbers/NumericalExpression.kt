@@ -33,6 +33,22 @@ interface NumericalExpression : Expression {
      */
     fun getValueAsLong(schemaDevice: SchemaDevice): Long? = null
 
+    /**
+     * Primitive variant of getValueAsDouble which does not box the value.
+     * @param default The value to return if there is no value
+     * @return The Double value or the default if there is no value
+     */
+    fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double =
+        getValueAsDouble(schemaDevice) ?: default
+
+    /**
+     * Primitive variant of getValueAsLong which does not box the value.
+     * @param default The value to return if there is no value
+     * @return The Long value or the default if there is no value
+     */
+    fun getValueAsLong(schemaDevice: SchemaDevice, default: Long): Long =
+        getValueAsLong(schemaDevice) ?: default
+
     /**
      * @return Can we guarantee anything about the return value?
      */
@@ -87,4 +87,12 @@ class NumericalField(
 
     @Throws(ModbusException::class)
     override fun getValueAsLong(schemaDevice: SchemaDevice): Long? = fieldExpression.getValueAsLong(schemaDevice)
+
+    @Throws(ModbusException::class)
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double =
+        fieldExpression.getValueAsDouble(schemaDevice, default)
+
+    @Throws(ModbusException::class)
+    override fun getValueAsLong(schemaDevice: SchemaDevice, default: Long): Long =
+        fieldExpression.getValueAsLong(schemaDevice, default)
 }
@@ -90,6 +90,9 @@ class Add(
         return left + right
     }
 
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double =
+        combineValidatedDoubles(schemaDevice, left, right, default) { left, right -> left + right }
+
     override val returnType: ReturnType
         get() =
             if (left.returnType == ReturnType.LONG && right.returnType == ReturnType.LONG) {
@@ -131,6 +134,9 @@ class Subtract(
         return left - right
     }
 
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double =
+        combineValidatedDoubles(schemaDevice, left, right, default) { left, right -> left - right }
+
     override val returnType: ReturnType
         get() =
             if (left.returnType == ReturnType.LONG && right.returnType == ReturnType.LONG) {
@@ -174,6 +180,9 @@ class Multiply(
         return left * right
     }
 
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double =
+        combineValidatedDoubles(schemaDevice, left, right, default) { left, right -> left * right }
+
     override val returnType: ReturnType
         get() =
             if (left.returnType == ReturnType.LONG && right.returnType == ReturnType.LONG) {
@@ -205,6 +214,9 @@ class Divide(
         return dividend / divisor
     }
 
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double =
+        combineValidatedDoubles(schemaDevice, dividend, divisor, default) { dividend, divisor -> dividend / divisor }
+
     override fun getGuarantee(): ValueGuarantee {
         val leftGuarantee = left.getGuarantee()
         val rightGuarantee = right.getGuarantee()
@@ -251,6 +263,9 @@ class Power(
         return base.pow(exponent)
     }
 
+    override fun getValueAsDouble(schemaDevice: SchemaDevice, default: Double): Double =
+        combineValidatedDoubles(schemaDevice, base, exponent, default) { base, exponent -> base.pow(exponent) }
+
     override fun getGuarantee(): ValueGuarantee {
         val leftGuarantee = left.getGuarantee()
         val rightGuarantee = right.getGuarantee()
@@ -282,3 +297,24 @@ private fun getValidatedDouble(
     }
     return value
 }
+
+/**
+ * The primitive variant of combining two validated doubles: uses NaN to mark a missing value to avoid boxing.
+ */
+private inline fun combineValidatedDoubles(
+    schemaDevice: SchemaDevice,
+    left: NumericalExpression,
+    right: NumericalExpression,
+    default: Double,
+    operation: (Double, Double) -> Double,
+): Double {
+    val leftValue = left.getValueAsDouble(schemaDevice, Double.NaN)
+    if (!leftValue.isFinite()) {
+        return default
+    }
+    val rightValue = right.getValueAsDouble(schemaDevice, Double.NaN)
+    if (!rightValue.isFinite()) {
+        return default
+    }
+    return operation(leftValue, rightValue)
+}
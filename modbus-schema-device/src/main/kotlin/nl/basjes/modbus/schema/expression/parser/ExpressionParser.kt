@@ -103,9 +103,14 @@ import nl.basjes.modbus.schema.expression.strings.StringFromBoolean
 import nl.basjes.modbus.schema.expression.strings.StringFromNumber
 import nl.basjes.modbus.schema.expression.strings.UTF8String
 import org.antlr.v4.runtime.ANTLRErrorListener
+import org.antlr.v4.runtime.BailErrorStrategy
 import org.antlr.v4.runtime.CharStreams
 import org.antlr.v4.runtime.CommonTokenStream
 import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.atn.PredictionMode
+import org.antlr.v4.runtime.misc.ParseCancellationException
+import java.util.Collections
 import java.util.TreeMap
 
 // Sonar calls this a Monster Class
@@ -366,6 +371,28 @@ class ExpressionParser : FieldExpressionsParserBaseVisitor<Expression?>() {
     }
 
     companion object {
+        /**
+         * The maximum number of parse trees that are retained.
+         */
+        const val PARSE_CACHE_SIZE = 10000
+
+        // The parse trees are never modified after parsing and visiting them is a read only operation.
+        // So they can be shared between all fields that use the same expression: each visit produces
+        // a fresh (mutable) Expression instance that is bound to a single field.
+        private val parseTreeCache: MutableMap<String, ParserRuleContext> =
+            Collections.synchronizedMap(
+                object : LinkedHashMap<String, ParserRuleContext>(1024, 0.75f, true) {
+                    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, ParserRuleContext>?) =
+                        size > PARSE_CACHE_SIZE
+                },
+            )
+
+        /**
+         * Remove all cached parse trees.
+         */
+        @JvmStatic
+        fun clearParseCache() = parseTreeCache.clear()
+
         @JvmStatic
         fun parse(expression: String): Expression {
             val errorListener: ANTLRErrorListener =
@@ -378,19 +405,46 @@ class ExpressionParser : FieldExpressionsParserBaseVisitor<Expression?>() {
             lexer.addErrorListener(errorListener)
 
             val tokens = CommonTokenStream(lexer)
-            val parser = FieldExpressionsParser(tokens)
+            tokens.fill()
 
-            parser.removeErrorListeners()
-            parser.addErrorListener(errorListener)
-            parser.errorHandler = ModbusParserErrorStrategy()
+            // The key is the list of tokens which makes it independent of irrelevant whitespace.
+            val cacheKey =
+                tokens.tokens
+                    .filter { it.channel == Token.DEFAULT_CHANNEL }
+                    .joinToString("\u0000") { "${it.type}:${it.text}" }
+
+            val expressionContext: ParserRuleContext =
+                parseTreeCache[cacheKey] ?: parse(tokens, errorListener).also { parseTreeCache[cacheKey] = it }
 
-            val expressionContext: ParserRuleContext = parser.expression()
             val result = ExpressionParser().visit(expressionContext)
             requireNotNull(result) {
                 "An unexpected problem occurred while parsing the expression: $expression"
             }
             return result
         }
+
+        /**
+         * Parse using the two stage strategy: first the fast SLL prediction without error recovery and only
+         * if that fails (which is only needed for ambiguous input or a real syntax error) use the full LL prediction.
+         */
+        private fun parse(
+            tokens: CommonTokenStream,
+            errorListener: ANTLRErrorListener,
+        ): ParserRuleContext {
+            val parser = FieldExpressionsParser(tokens)
+            parser.removeErrorListeners()
+            parser.errorHandler = BailErrorStrategy()
+            parser.interpreter.predictionMode = PredictionMode.SLL
+            try {
+                return parser.expression()
+            } catch (_: ParseCancellationException) {
+                tokens.seek(0)
+                parser.reset()
+                parser.addErrorListener(errorListener)
+                parser.errorHandler = ModbusParserErrorStrategy()
+                parser.interpreter.predictionMode = PredictionMode.LL
+                return parser.expression()
+            }
+        }
     }
 }
-
@@ -0,0 +1,155 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.fetcher
+
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+
+/**
+ * Tracks the health of the connection with a single modbus device as a circuit breaker.
+ *
+ * - CLOSED: All is well, all requests are done.
+ * - OPEN: The device failed too many consecutive requests. No requests are done until the backoff time has passed.
+ * - HALF_OPEN: The backoff time has passed, a single trial request is allowed.
+ *   If that succeeds the circuit is CLOSED again, else it is OPEN again with a doubled backoff time.
+ *
+ * Only communication failures (like timeouts) count as failures; a read error response from the device
+ * means the device is alive.
+ *
+ * @param failureThreshold The number of consecutive failures that opens the circuit.
+ * @param initialBackoff The number of milliseconds the circuit stays open the first time.
+ * @param maxBackoff The maximum number of milliseconds the circuit stays open.
+ */
+class DeviceHealth
+@JvmOverloads
+constructor(
+    val failureThreshold: Int = DEFAULT_FAILURE_THRESHOLD,
+    val initialBackoff: Long = DEFAULT_INITIAL_BACKOFF,
+    val maxBackoff: Long = DEFAULT_MAX_BACKOFF,
+) {
+    init {
+        require(failureThreshold >= 1) { "The failureThreshold must be at least 1" }
+        require(initialBackoff in 1..maxBackoff) { "The initialBackoff must be between 1 and the maxBackoff" }
+    }
+
+    enum class State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    // Allows the tests to control the time.
+    internal var clock: () -> Long = System::currentTimeMillis
+
+    /** The number of consecutive failed requests. */
+    var consecutiveFailures: Int = 0
+        private set
+
+    /** The total number of failed requests. */
+    var totalFailures: Long = 0
+        private set
+
+    /** The number of requests that were skipped because the circuit was open. */
+    var skippedRequests: Long = 0
+        private set
+
+    /** The current backoff time in milliseconds (0 if the circuit is closed). */
+    var backoff: Long = 0
+        private set
+
+    /** The epoch milliseconds until which the circuit is open. */
+    var openUntil: Long = 0
+        private set
+
+    private var open = false
+
+    val state: State
+        @Synchronized get() =
+            when {
+                !open                -> State.CLOSED
+                clock() < openUntil  -> State.OPEN
+                else                 -> State.HALF_OPEN
+            }
+
+    /** If requests can be done to the device right now (i.e. the circuit is not OPEN). */
+    val isAvailable: Boolean
+        get() = state != State.OPEN
+
+    /**
+     * Check if a request may be done. If not it is counted as skipped.
+     * @return true if the request may be done.
+     */
+    @Synchronized
+    fun allowRequest(): Boolean {
+        if (state == State.OPEN) {
+            skippedRequests++
+            return false
+        }
+        return true
+    }
+
+    /** The device responded. */
+    @Synchronized
+    fun recordSuccess() {
+        if (open) {
+            LOG.info("The device responds again, closing the circuit.")
+        }
+        consecutiveFailures = 0
+        backoff = 0
+        open = false
+    }
+
+    /** The device did not respond (correctly). */
+    @Synchronized
+    fun recordFailure() {
+        consecutiveFailures++
+        totalFailures++
+        when {
+            open -> {
+                // The trial request failed
+                backoff = (backoff * 2).coerceAtMost(maxBackoff)
+                openUntil = clock() + backoff
+            }
+            consecutiveFailures >= failureThreshold -> {
+                open = true
+                backoff = initialBackoff
+                openUntil = clock() + backoff
+                LOG.warn("The device failed {} consecutive requests, opening the circuit.", consecutiveFailures)
+            }
+        }
+    }
+
+    /** Forget all history and close the circuit. */
+    @Synchronized
+    fun reset() {
+        consecutiveFailures = 0
+        backoff = 0
+        open = false
+        openUntil = 0
+    }
+
+    override fun toString(): String =
+        "DeviceHealth(state=$state, consecutiveFailures=$consecutiveFailures, totalFailures=$totalFailures, " +
+            "skippedRequests=$skippedRequests, backoff=$backoff)"
+
+    companion object {
+        const val DEFAULT_FAILURE_THRESHOLD = 3
+        const val DEFAULT_INITIAL_BACKOFF = 1000L
+        const val DEFAULT_MAX_BACKOFF = 60000L
+        private val LOG: Logger = LogManager.getLogger()
+    }
+}
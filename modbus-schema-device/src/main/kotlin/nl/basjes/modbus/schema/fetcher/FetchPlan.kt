@@ -0,0 +1,181 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.fetcher
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressClass
+import nl.basjes.modbus.device.exception.ModbusApiException
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+
+/**
+ * A precalculated set of modbus queries for the situation where all fields of a set of blocks are needed.
+ * This is the same set of queries as the OptimizingModbusBlockFetcher would calculate (if there are no read errors)
+ * so a fetcher can use it directly instead of calculating and merging the queries on every update.
+ *
+ * @param maxRegistersPerModbusRequest The maxRegistersPerModbusRequest the plan was calculated for.
+ * @param allowedGapReadSize The allowedGapReadSize the plan was calculated for.
+ * @param blockIds The blocks of which all fields are needed (empty means all blocks).
+ * @param queries The queries to do.
+ */
+class FetchPlan(
+    val maxRegistersPerModbusRequest: Int,
+    val allowedGapReadSize: Int,
+    val blockIds: List<String>,
+    val queries: List<Query>,
+) {
+    /**
+     * A single modbus query which consists of one or more parts.
+     */
+    class Query(
+        val start: Address,
+        val count: Int,
+        val parts: List<Part>,
+    ) {
+        override fun toString(): String = "Query { $start # $count } $parts"
+    }
+
+    /**
+     * A part of a query: the addresses of a single fetch group or a hole (addresses that are read but not used).
+     */
+    class Part(
+        val start: Address,
+        val count: Int,
+        val isHole: Boolean,
+    ) {
+        override fun toString(): String = "${if (isHole) "Hole" else "Part"} { $start # $count }"
+    }
+
+    /**
+     * @return true if the fields are exactly all fields of the blocks of this plan.
+     */
+    fun isFor(
+        schemaDevice: SchemaDevice,
+        fields: List<Field>,
+    ): Boolean {
+        if (blockIds.isEmpty()) {
+            return fields.size == schemaDevice.blocks.sumOf { it.fields.size }
+        }
+        if (fields.size != blockIds.sumOf { schemaDevice.getBlock(it)?.fields?.size ?: 0 }) {
+            return false
+        }
+        return fields.all { blockIds.contains(it.block.id) }
+    }
+
+    /**
+     * A compact textual table of all numbers of this plan which can be embedded in generated code.
+     * The format is a space separated list of numbers:
+     * maxRegistersPerModbusRequest allowedGapReadSize followed by for each query:
+     * addressClass(ordinal) start count numberOfParts and for each part: start count isHole(0/1)
+     */
+    fun toTable(): String {
+        val numbers = mutableListOf(maxRegistersPerModbusRequest, allowedGapReadSize)
+        for (query in queries) {
+            numbers.add(query.start.addressClass.ordinal)
+            numbers.add(query.start.physicalAddress)
+            numbers.add(query.count)
+            numbers.add(query.parts.size)
+            for (part in query.parts) {
+                numbers.add(part.start.physicalAddress)
+                numbers.add(part.count)
+                numbers.add(if (part.isHole) 1 else 0)
+            }
+        }
+        return numbers.joinToString(" ")
+    }
+
+    override fun toString(): String =
+        "FetchPlan(blocks=${blockIds.ifEmpty { "ALL" }}, " +
+            "maxRegistersPerModbusRequest=$maxRegistersPerModbusRequest, allowedGapReadSize=$allowedGapReadSize):\n" +
+            queries.joinToString("\n")
+
+    companion object {
+        /**
+         * Rebuild the FetchPlan from the output of toTable()
+         */
+        @JvmStatic
+        fun fromTable(
+            blockIds: List<String>,
+            table: String,
+        ): FetchPlan {
+            val numbers = table.trim().split(' ').map { it.toInt() }
+            if (numbers.size < 2) {
+                throw ModbusApiException("Invalid FetchPlan table: \"$table\"")
+            }
+            var index = 2
+            val queries = mutableListOf<Query>()
+            try {
+                while (index < numbers.size) {
+                    val addressClass = AddressClass.entries[numbers[index++]]
+                    val start = Address.of(addressClass, numbers[index++])
+                    val count = numbers[index++]
+                    val parts =
+                        (0 until numbers[index++]).map {
+                            Part(Address.of(addressClass, numbers[index++]), numbers[index++], numbers[index++] == 1)
+                        }
+                    queries.add(Query(start, count, parts))
+                }
+            } catch (e: IndexOutOfBoundsException) {
+                throw ModbusApiException("Invalid FetchPlan table: \"$table\"", e)
+            }
+            return FetchPlan(numbers[0], numbers[1], blockIds, queries)
+        }
+
+        /**
+         * Calculate the FetchPlan for needing all fields of the specified blocks.
+         * This uses the modbus blocks of the schema device so this must be done BEFORE connecting it to a device
+         * (i.e. at build time).
+         * @param schemaDevice The (initialized) schema device
+         * @param blockIds The blocks of which all fields are needed (empty means all blocks).
+         * @param maxRegistersPerModbusRequest The maximum number of registers per request
+         * @param allowedGapReadSize How many registers may needlessly be read to optimize fetching
+         */
+        @JvmStatic
+        fun calculate(
+            schemaDevice: SchemaDevice,
+            blockIds: List<String>,
+            maxRegistersPerModbusRequest: Int = schemaDevice.maxRegistersPerModbusRequest,
+            allowedGapReadSize: Int = DEFAULT_ALLOWED_GAP_READ_SIZE,
+        ): FetchPlan {
+            val planningDevice = MockedModbusDevice()
+            planningDevice.maxRegistersPerModbusRequest = maxRegistersPerModbusRequest
+            val fetcher = OptimizingModbusBlockFetcher(schemaDevice, planningDevice)
+            fetcher.allowedGapReadSize = allowedGapReadSize
+
+            val blocks =
+                if (blockIds.isEmpty()) {
+                    schemaDevice.blocks
+                } else {
+                    blockIds.map { schemaDevice.getBlock(it) ?: throw ModbusApiException("Unknown block \"$it\"") }
+                }
+            val queries =
+                fetcher
+                    .calculateModbusQueries(blocks.flatMap { it.fields }, 0)
+                    .map { modbusQuery ->
+                        val parts =
+                            if (modbusQuery is MergedModbusQuery) {
+                                modbusQuery.modbusQueries.map { Part(it.start, it.count, it is HoleModbusQuery) }
+                            } else {
+                                listOf(Part(modbusQuery.start, modbusQuery.count, false))
+                            }
+                        Query(modbusQuery.start, modbusQuery.count, parts)
+                    }
+            return FetchPlan(maxRegistersPerModbusRequest, allowedGapReadSize, blockIds, queries)
+        }
+    }
+}
@@ -17,15 +17,18 @@
 package nl.basjes.modbus.schema.fetcher
 
 import nl.basjes.modbus.device.api.Address
-import nl.basjes.modbus.device.api.AddressClass.Type.DISCRETE
-import nl.basjes.modbus.device.api.AddressClass.Type.REGISTER
+import nl.basjes.modbus.device.api.AddressClass.HOLDING_REGISTER
+import nl.basjes.modbus.device.api.AddressRange
 import nl.basjes.modbus.device.api.DiscreteBlock
+import nl.basjes.modbus.device.api.MODBUS_MAX_REGISTERS_PER_READ_WRITE
+import nl.basjes.modbus.device.api.MODBUS_MAX_REGISTERS_PER_REQUEST
 import nl.basjes.modbus.device.api.ModbusBlock
 import nl.basjes.modbus.device.api.ModbusDevice
-import nl.basjes.modbus.device.api.ModbusValue
 import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.api.RegisterValue
 import nl.basjes.modbus.device.exception.ModbusApiException
 import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.exception.NotYetImplementedException
 import nl.basjes.modbus.schema.Field
 import nl.basjes.modbus.schema.SchemaDevice
 import nl.basjes.modbus.schema.fetcher.ModbusQuery.Status
@@ -42,7 +45,7 @@ open class ModbusBlockFetcher(
     protected val modbusDevice: ModbusDevice,
 ) {
 
-     private fun calculateFetchGroupToAddressesMapping(): Map<String, Set<Address>> {
+    protected fun calculateFetchGroupToAddressesMapping(): Map<String, Set<Address>> {
         val fetchGroupToAddresses: MutableMap<String, MutableSet<Address>> = TreeMap()
 
         // We register all fields in the schemaDevice with the right fetch group as dictated in the Field.
@@ -96,10 +99,7 @@ open class ModbusBlockFetcher(
             // Here this is not the case because we are ignoring the 'need'.
             val allFields = listOf(field, *field.requiredFields.toTypedArray()).sorted().distinct().toList()
 
-            return calculateModbusQueries(allFields, maxAge)
-                .map { fetch(it) }
-                .flatten()
-                .toList()
+            return fetchAll(calculateModbusQueries(allFields, maxAge))
         }
     }
 
@@ -111,42 +111,77 @@ open class ModbusBlockFetcher(
     @JvmOverloads
     fun update(maxAge: Long = 0): List<ModbusQuery> {
         synchronized(this) {
+            return fetchAll(calculateModbusQueries(maxAge))
+        }
+    }
+
+    // The fields of the queries that were not done in the previous deadline limited update.
+    private val deferredFields: MutableSet<Field> = mutableSetOf()
+
+    /**
+     * Update all registers related to the needed fields to be updated with a maximum age of the provided milliseconds
+     * but stop doing new modbus requests once the deadline has passed.
+     * The queries are done in this order:
+     * - The highest priority (of any of the fields in the query) first.
+     * - The queries that were skipped by the previous deadline limited update.
+     * - The least recently updated first.
+     * @param maxAge maximum age of the fields in milliseconds
+     * @param deadline The epoch milliseconds after which no new requests must be started.
+     * @return A (possibly empty) list of all fetches that have been done (with duration and status)
+     */
+    fun update(
+        maxAge: Long,
+        deadline: Long,
+    ): List<ModbusQuery> {
+        synchronized(this) {
+            val modbusQueries = prioritize(calculateModbusQueries(maxAge))
+            deferredFields.clear()
             val fetched = mutableListOf<ModbusQuery>()
-            for (modbusQuery in calculateModbusQueries(maxAge)) {
+            for ((index, modbusQuery) in modbusQueries.withIndex()) {
+                if (System.currentTimeMillis() >= deadline) {
+                    modbusQueries.subList(index, modbusQueries.size).forEach { deferredFields.addAll(it.fields) }
+                    break
+                }
                 fetched.addAll(fetch(modbusQuery))
             }
             return fetched
         }
     }
 
-    private fun ModbusDevice.getDiscretes(modbusQuery: ModbusQuery): DiscreteBlock {
-        val start = TimeSource.Monotonic.markNow()
-        try {
-            val discreteBlock = this.getDiscretes(modbusQuery.start, modbusQuery.count)
-            modbusQuery.status = Status.SUCCESS
-            if (discreteBlock.values.any { it.isReadError() }) {
-                modbusQuery.status = Status.ERROR
-            }
-            return discreteBlock
-        } catch (modbusException: ModbusException) {
-            modbusQuery.status = Status.ERROR
-            throw modbusException
-        }
-        finally {
-            val stop = TimeSource.Monotonic.markNow()
-            modbusQuery.duration = stop - start
+    private fun prioritize(modbusQueries: List<ModbusQuery>): List<ModbusQuery> {
+        class Ranked(
+            val modbusQuery: ModbusQuery,
+        ) {
+            val priority = modbusQuery.fields.maxOfOrNull { it.priority } ?: Int.MIN_VALUE
+            val deferred = modbusQuery.fields.any { deferredFields.contains(it) }
+            val lastUpdate =
+                schemaDevice
+                    .getModbusBlock(modbusQuery.start.addressClass)
+                    .valuesInRange(modbusQuery.start, modbusQuery.count)
+                    .minOfOrNull { it.timestamp ?: Long.MIN_VALUE } ?: Long.MIN_VALUE
         }
+        return modbusQueries
+            .map { Ranked(it) }
+            .sortedWith(
+                compareByDescending<Ranked> { it.priority }
+                    .thenByDescending { it.deferred }
+                    .thenBy { it.lastUpdate },
+            ).map { it.modbusQuery }
     }
 
-    private fun ModbusDevice.getRegisters(modbusQuery: ModbusQuery): RegisterBlock {
+    /**
+     * Execute the query and directly store the successfully retrieved values into the modbus block of the schema device.
+     * In case of a read error nothing is stored and only the status of the query is set.
+     */
+    private fun ModbusDevice.executeQuery(modbusQuery: ModbusQuery) {
         val start = TimeSource.Monotonic.markNow()
         try {
-            val registerBlock = this.getRegisters(modbusQuery.start, modbusQuery.count)
-            modbusQuery.status = Status.SUCCESS
-            if (registerBlock.values.any { it.isReadError() }) {
-                modbusQuery.status = Status.ERROR
-            }
-            return registerBlock
+            val success =
+                when (val targetModbusBlock = schemaDevice.getModbusBlock(modbusQuery.start.addressClass)) {
+                    is DiscreteBlock -> this.getDiscretesInto(modbusQuery.start, modbusQuery.count, targetModbusBlock)
+                    is RegisterBlock -> this.getRegistersInto(modbusQuery.start, modbusQuery.count, targetModbusBlock)
+                }
+            modbusQuery.status = if (success) Status.SUCCESS else Status.ERROR
         } catch (modbusException: ModbusException) {
             modbusQuery.status = Status.ERROR
             throw modbusException
@@ -157,80 +192,204 @@ open class ModbusBlockFetcher(
         }
     }
 
-    private fun ModbusDevice.executeQuery(modbusQuery: ModbusQuery): ModbusBlock<out ModbusBlock<*,*,*>,out ModbusValue<*,*>,*> =
-        when(modbusQuery.type) {
-            DISCRETE -> getDiscretes(modbusQuery)
-            REGISTER -> getRegisters(modbusQuery)
-        }
+    /**
+     * The health of the connection with the modbus device.
+     * Once the device stopped responding all queries are skipped until the backoff time has passed.
+     */
+    var health = DeviceHealth()
 
-    private fun ModbusBlock<out ModbusBlock<*,*,*>,out ModbusValue<*,*>,*>.mergeFetched(fetchedModbusBlock: ModbusBlock<*,out ModbusValue<*,*>,*> ) {
-        when (this) {
-            is DiscreteBlock if fetchedModbusBlock is DiscreteBlock -> merge(fetchedModbusBlock)
-            is RegisterBlock if fetchedModbusBlock is RegisterBlock -> merge(fetchedModbusBlock)
-            else -> throw ModbusApiException("Type mismatch existingModbusBlock (${javaClass.name}) and fetchedModbusBlock (${fetchedModbusBlock.javaClass.name})")
+    /**
+     * Only a failure of the device counts for the health.
+     * Using the API in an invalid way or something the driver does not implement (like reading discretes)
+     * says nothing about the device and must not make all other requests fail.
+     */
+    private fun recordFailure(modbusException: ModbusException) {
+        if (modbusException !is ModbusApiException && modbusException !is NotYetImplementedException) {
+            health.recordFailure()
         }
     }
 
     internal fun fetch(modbusQuery: ModbusQuery): List<ModbusQuery> {
         val fetchedQueries = mutableListOf<ModbusQuery>()
+        if (!health.allowRequest()) {
+            return fetchedQueries // Fast fail: the device is not responding.
+        }
+        try {
+            modbusDevice.executeQuery(modbusQuery)
+            health.recordSuccess()
+            fetchedQueries.add(modbusQuery)
+            handleFetchedQuery(modbusQuery, fetchedQueries)
+        } catch (me: ModbusException) {
+            recordFailure(me)
+            LOG.error("Got ModbusException on {} --> {}", modbusQuery, me)
+        }
+        return fetchedQueries
+    }
+
+    /**
+     * Fetch all the queries. If the modbus device supports it this is done with a single batched request.
+     */
+    internal fun fetchAll(modbusQueries: List<ModbusQuery>): List<ModbusQuery> {
+        if (modbusQueries.size <= 1 || !modbusDevice.supportsBatchedReads) {
+            return modbusQueries.flatMap { fetch(it) }
+        }
+        val fetchedQueries = mutableListOf<ModbusQuery>()
+        if (!health.allowRequest()) {
+            return fetchedQueries // Fast fail: the device is not responding.
+        }
+        val start = TimeSource.Monotonic.markNow()
+        val modbusBlocks =
+            try {
+                modbusDevice.getBatch(modbusQueries.map { AddressRange(it.start, it.count) })
+            } catch (me: ModbusException) {
+                recordFailure(me)
+                modbusQueries.forEach { it.status = Status.ERROR }
+                LOG.error("Got ModbusException on batch {} --> {}", modbusQueries, me)
+                return fetchedQueries
+            }
+        health.recordSuccess()
+        val duration = TimeSource.Monotonic.markNow() - start
+        if (modbusBlocks.size != modbusQueries.size) {
+            throw ModbusApiException("Requested ${modbusQueries.size} ranges but got ${modbusBlocks.size} blocks")
+        }
+        for ((modbusQuery, modbusBlock) in modbusQueries.zip(modbusBlocks)) {
+            modbusQuery.duration = duration
+            storeFetchedBlock(modbusQuery, modbusBlock, fetchedQueries)
+        }
+        return fetchedQueries
+    }
+
+    /**
+     * Store the separately retrieved values of the query into the modbus block of the schema device.
+     * @param fetchedQueries The query and all retries are added to this list.
+     */
+    private fun storeFetchedBlock(
+        modbusQuery: ModbusQuery,
+        modbusBlock: ModbusBlock<*, *, *>,
+        fetchedQueries: MutableList<ModbusQuery>,
+    ) {
         try {
-            val fetchedModbusBlock = modbusDevice.executeQuery(modbusQuery)
+            if (modbusBlock.values.any { it.isReadError() }) {
+                modbusQuery.status = Status.ERROR
+            } else {
+                when (val targetModbusBlock = schemaDevice.getModbusBlock(modbusQuery.start.addressClass)) {
+                    is DiscreteBlock -> targetModbusBlock.merge(modbusBlock as DiscreteBlock)
+                    is RegisterBlock -> targetModbusBlock.merge(modbusBlock as RegisterBlock)
+                }
+                modbusQuery.status = Status.SUCCESS
+            }
             fetchedQueries.add(modbusQuery)
+            handleFetchedQuery(modbusQuery, fetchedQueries)
+        } catch (me: ModbusException) {
+            LOG.error("Got ModbusException on {} --> {}", modbusQuery, me)
+        }
+    }
 
-            when(modbusQuery.status) {
-                Status.NOT_FETCHED ->
-                    throw ModbusApiException("This should not happen. After fetching a modbus query it is still not fetched??")
+    /**
+     * Write the values into the holding registers and then update all registers related to the needed fields.
+     * The write is combined with the first needed read of holding registers into a single
+     * Read/Write Multiple Registers request which saves a round trip.
+     * @param firstRegister The first holding register that must be written.
+     * @param values The values that must be written.
+     * @param maxAge maximum age of the fields in milliseconds
+     * @return A (possibly empty) list of all fetches that have been done (with duration and status)
+     * @throws ModbusException If the write failed (nothing is updated in that case).
+     */
+    @Throws(ModbusException::class)
+    fun writeAndUpdate(
+        firstRegister: Address,
+        values: ShortArray,
+        maxAge: Long = 0,
+    ): List<ModbusQuery> {
+        synchronized(this) {
+            if (!health.allowRequest()) {
+                throw ModbusException("Unable to write $firstRegister: the modbus device is not available")
+            }
+            val modbusQueries = calculateModbusQueries(maxAge)
+            val combinedQuery =
+                if (values.size <= MODBUS_MAX_REGISTERS_PER_READ_WRITE) {
+                    modbusQueries.firstOrNull {
+                        it.start.addressClass == HOLDING_REGISTER && it.count <= MODBUS_MAX_REGISTERS_PER_REQUEST
+                    }
+                } else {
+                    null
+                }
 
-                Status.SUCCESS -> {
-                    // Store the result
-                    schemaDevice
-                        .getModbusBlock(fetchedModbusBlock.addressClass)
-                        .mergeFetched(fetchedModbusBlock)
+            val fetchedQueries = mutableListOf<ModbusQuery>()
+            val start = TimeSource.Monotonic.markNow()
+            val readBlock =
+                try {
+                    if (combinedQuery == null) {
+                        modbusDevice.writeRegisters(firstRegister, values)
+                        null
+                    } else {
+                        modbusDevice.readWriteRegisters(firstRegister, values, combinedQuery.start, combinedQuery.count)
+                    }
+                } catch (me: ModbusException) {
+                    recordFailure(me)
+                    throw me
                 }
+            health.recordSuccess()
+
+            // The device has accepted the written values so these are the best known values until the next read.
+            val now = System.currentTimeMillis()
+            schemaDevice
+                .getModbusBlock(HOLDING_REGISTER)
+                .valuesInRange(firstRegister, values.size)
+                .forEach { (it as RegisterValue).setValue(values[firstRegister.distance(it.address)!!], now) }
+
+            if (combinedQuery != null && readBlock != null) {
+                combinedQuery.duration = TimeSource.Monotonic.markNow() - start
+                storeFetchedBlock(combinedQuery, readBlock, fetchedQueries)
+            }
+            fetchedQueries.addAll(fetchAll(modbusQueries.filter { it !== combinedQuery }))
+            return fetchedQueries
+        }
+    }
 
-                Status.ERROR -> {
-                    when (modbusQuery) {
-                        is HoleModbusQuery -> {
-                            // If this was a 'hole' query we store them as soft errors
-                            // This will avoid them until we explicitly ask for a field in them
-                            schemaDevice
-                                .getModbusBlock(fetchedModbusBlock.addressClass)
-                                .mergeFetched(fetchedModbusBlock)
-                        }
+    /**
+     * Handle the status of the fetched query (i.e. store and/or retry the read errors).
+     * @param fetchedQueries All retries are added to this list.
+     */
+    private fun handleFetchedQuery(
+        modbusQuery: ModbusQuery,
+        fetchedQueries: MutableList<ModbusQuery>,
+    ) {
+        when(modbusQuery.status) {
+            Status.NOT_FETCHED ->
+                throw ModbusApiException("This should not happen. After fetching a modbus query it is still not fetched??")
+
+            Status.SUCCESS -> {
+                // The result has already been stored
+            }
 
-                        is MergedModbusQuery -> {
-                            // If we have a merged fetch then we can retry on the individuals.
-                            val retries = retryFetchOfFailedMergedModbusQuery(modbusQuery)
-                            if (retries.isEmpty()) {
-                                // No retries were done so we simply store the error result
-
-                                // If this was a 'hole' query we store them as soft errors
-                                // This will avoid them until we explicitly ask for a field in them
-                                fetchedModbusBlock.values.forEach{ it.setHardReadError() }
-                                schemaDevice
-                                    .getModbusBlock(fetchedModbusBlock.addressClass)
-                                    .mergeFetched(fetchedModbusBlock)
-                            } else {
-                                fetchedQueries.addAll(retries)
-                            }
-                            return fetchedQueries
-                        }
+            Status.ERROR -> {
+                val targetModbusBlock = schemaDevice.getModbusBlock(modbusQuery.start.addressClass)
+                when (modbusQuery) {
+                    is HoleModbusQuery -> {
+                        // If this was a 'hole' query we store them as soft errors
+                        // This will avoid them until we explicitly ask for a field in them
+                        targetModbusBlock.setSoftReadError(modbusQuery.start, modbusQuery.count)
+                    }
 
-                        else -> {
-                            // If we DO NOT have a merged fetch then it is simply an error situation.
-//                    println("-----READ ERROR getting $modbusQuery ; Fields are marked as DEAD")
-                            fetchedModbusBlock.values.forEach { it.setHardReadError() }
-                            schemaDevice
-                                .getModbusBlock(fetchedModbusBlock.addressClass)
-                                .mergeFetched(fetchedModbusBlock)
+                    is MergedModbusQuery -> {
+                        // If we have a merged fetch then we can retry on the individuals.
+                        val retries = retryFetchOfFailedMergedModbusQuery(modbusQuery)
+                        if (retries.isEmpty()) {
+                            // No retries were done so we simply store the error result
+                            targetModbusBlock.setHardReadError(modbusQuery.start, modbusQuery.count)
+                        } else {
+                            fetchedQueries.addAll(retries)
                         }
                     }
+
+                    else -> {
+                        // If we DO NOT have a merged fetch then it is simply an error situation.
+                        targetModbusBlock.setHardReadError(modbusQuery.start, modbusQuery.count)
+                    }
                 }
             }
-        } catch (me: ModbusException) {
-            LOG.error("Got ModbusException on {} --> {}", modbusQuery, me)
         }
-        return fetchedQueries
     }
 
     internal open fun retryFetchOfFailedMergedModbusQuery(modbusQuery: MergedModbusQuery): List<ModbusQuery> {
@@ -310,7 +469,7 @@ open class ModbusBlockFetcher(
     /**
      * Determine from the list of provided Fields which of these need to be updated given the max age.
      */
-    private fun allFieldsThatMustBeUpdated(
+    protected fun allFieldsThatMustBeUpdated(
         fields: List<Field>,
         maxAge: Long,
     ): List<Field> {
@@ -21,6 +21,12 @@ import nl.basjes.modbus.device.api.AddressClass
 import nl.basjes.modbus.device.api.ModbusDevice
 import nl.basjes.modbus.schema.Field
 import nl.basjes.modbus.schema.SchemaDevice
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+import java.time.Instant
+import java.util.IdentityHashMap
+
+const val DEFAULT_ALLOWED_GAP_READ_SIZE = 100
 
 class OptimizingModbusBlockFetcher(
     schemaDevice: SchemaDevice,
@@ -36,10 +42,33 @@ class OptimizingModbusBlockFetcher(
             field = value
         }
 
+    /**
+     * Precalculated (i.e. at build time) plans that are used instead of calculating the queries
+     * if the needed fields are exactly the fields of the plan.
+     */
+    var fetchPlans: List<FetchPlan> = emptyList()
+        set(value) {
+            field = value
+            boundFetchPlans.clear()
+        }
+
+    // The fields of each part of each query of a FetchPlan (null if the plan does not match the schema).
+    private class BoundFetchPlan(
+        val fieldModificationTimestamp: Instant,
+        val partFields: List<List<List<Field>>>?,
+    )
+
+    private val boundFetchPlans: MutableMap<FetchPlan, BoundFetchPlan> = IdentityHashMap()
+
     /**
      * Reduce the full set of modbus queries to a lower number by combining requests that are close enough together.
      */
     override fun calculateModbusQueries(fields: List<Field>, maxAge: Long): List<ModbusQuery> {
+        val plannedModbusQueries = plannedModbusQueries(fields, maxAge)
+        if (plannedModbusQueries != null) {
+            return plannedModbusQueries
+        }
+
         // This is the most fine-grained list of Modbus Queries.
         val rawModbusQueryList = super.calculateModbusQueries(fields, maxAge)
 
@@ -62,6 +91,96 @@ class OptimizingModbusBlockFetcher(
         )
     }
 
+    /**
+     * Use the matching FetchPlan (if any) to create the queries.
+     * @return The list of queries or null if no FetchPlan can be used.
+     */
+    private fun plannedModbusQueries(fields: List<Field>, maxAge: Long): List<ModbusQuery>? {
+        if (fetchPlans.isEmpty()) {
+            return null
+        }
+        val fetchPlan =
+            fetchPlans.firstOrNull {
+                it.maxRegistersPerModbusRequest == modbusDevice.maxRegistersPerModbusRequest &&
+                    it.allowedGapReadSize == allowedGapReadSize &&
+                    it.isFor(schemaDevice, fields)
+            } ?: return null
+
+        var boundFetchPlan = boundFetchPlans[fetchPlan]
+        if (boundFetchPlan == null || boundFetchPlan.fieldModificationTimestamp != schemaDevice.lastFieldModificationTimestamp) {
+            boundFetchPlan = bind(fetchPlan)
+            boundFetchPlans[fetchPlan] = boundFetchPlan
+        }
+        val partFields = boundFetchPlan.partFields ?: return null
+
+        val fieldsThatMustBeUpdated = allFieldsThatMustBeUpdated(fields, maxAge).toSet()
+        val modbusQueries = mutableListOf<ModbusQuery>()
+        for ((queryIndex, query) in fetchPlan.queries.withIndex()) {
+            val queryFields = partFields[queryIndex]
+            if (queryFields.none { part -> part.any { it in fieldsThatMustBeUpdated } }) {
+                continue // Everything in this query is still valid
+            }
+            if (schemaDevice.getModbusBlock(query.start.addressClass).valuesInRange(query.start, query.count).any { it.isReadError() }) {
+                // The plan assumes there are no read errors, so we need the dynamic calculation.
+                return null
+            }
+            val mergedModbusQuery = MergedModbusQuery(query.start, query.count)
+            for ((partIndex, part) in query.parts.withIndex()) {
+                if (part.isHole) {
+                    mergedModbusQuery.add(HoleModbusQuery(part.start, part.count))
+                } else {
+                    val partQuery = ModbusQuery(part.start, part.count)
+                    queryFields[partIndex].forEach { partQuery.addField(it) }
+                    mergedModbusQuery.add(partQuery)
+                }
+            }
+            modbusQueries.add(mergedModbusQuery)
+        }
+        return modbusQueries
+    }
+
+    /**
+     * Determine the fields of each part of the FetchPlan.
+     */
+    private fun bind(fetchPlan: FetchPlan): BoundFetchPlan {
+        val fieldModificationTimestamp = schemaDevice.lastFieldModificationTimestamp
+
+        // This also ensures the modbus values are marked with the right fetch group and immutability.
+        calculateFetchGroupToAddressesMapping()
+
+        val partLocations = mutableMapOf<Address, Pair<Int, Int>>()
+        val partFields = fetchPlan.queries.map { query -> query.parts.map { mutableListOf<Field>() } }
+        for ((queryIndex, query) in fetchPlan.queries.withIndex()) {
+            for ((partIndex, part) in query.parts.withIndex()) {
+                if (!part.isHole) {
+                    partLocations[part.start] = queryIndex to partIndex
+                }
+            }
+        }
+        val blocks = if (fetchPlan.blockIds.isEmpty()) schemaDevice.blocks else fetchPlan.blockIds.mapNotNull { schemaDevice.getBlock(it) }
+        for (field in blocks.flatMap { it.fields }) {
+            if (field.requiredAddresses.isEmpty()) {
+                continue
+            }
+            val firstAddress = field.requiredAddresses.min()
+            // The field must be within one of the parts
+            val location =
+                partLocations
+                    .filter { (start, location) ->
+                        val distance = start.distance(firstAddress)
+                        distance != null && distance >= 0 &&
+                            distance < fetchPlan.queries[location.first].parts[location.second].count
+                    }.values
+                    .firstOrNull()
+            if (location == null) {
+                LOG.warn("The FetchPlan does not match the schema (field {}): falling back to dynamic fetching.", field.id)
+                return BoundFetchPlan(fieldModificationTimestamp, null)
+            }
+            partFields[location.first][location.second].add(field)
+        }
+        return BoundFetchPlan(fieldModificationTimestamp, partFields)
+    }
+
     /**
      * The provided MergedModbusQuery failed.
      * Often this is a query of dozens of fields and 1 or 2 failed.
@@ -236,6 +355,9 @@ class OptimizingModbusBlockFetcher(
         return result
     }
 
+    companion object {
+        private val LOG: Logger = LogManager.getLogger()
+    }
 }
 
 fun List<Address>.overlaps(
@@ -0,0 +1,104 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.store
+
+import nl.basjes.modbus.device.api.RegisterValue
+import nl.basjes.modbus.device.api.asAddress
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Stores the immutable register values of each device in a separate text file in the provided directory.
+ * The first line of the file is a header with the device key, each next line contains the address and
+ * the hex value of a single register (like "hr:40003 4142").
+ * The file name is the device key where every character other than letters, digits, '.' and '-' is
+ * replaced by '_' and the hex value of its UTF-8 bytes (so "10.0.0.1:502" becomes "10.0.0.1_3A502").
+ * This way different device keys can never share the same file.
+ * Unreadable or corrupt files are ignored (treated as absent) because they can always be read from the device again.
+ * @param directory The directory in which the files are stored (created if needed).
+ */
+class FileImmutableValueStore(
+    val directory: File,
+) : ImmutableValueStore {
+
+    private fun fileOf(deviceKey: String) =
+        File(
+            directory,
+            deviceKey.replace(UNSAFE_CHARACTERS) { unsafe ->
+                unsafe.value.toByteArray(Charsets.UTF_8).joinToString("") { "_%02X".format(it) }
+            } + ".registers",
+        )
+
+    private fun headerOf(deviceKey: String) = "# The immutable register values of $deviceKey"
+
+    override fun load(deviceKey: String): List<RegisterValue>? {
+        val file = fileOf(deviceKey)
+        if (!file.isFile) {
+            return null
+        }
+        return try {
+            val lines = file.readLines()
+            if (lines.firstOrNull() != headerOf(deviceKey)) {
+                LOG.warn("Ignoring the immutable values file {} because it is not for device \"{}\"", file, deviceKey)
+                return null
+            }
+            lines
+                .drop(1)
+                .map { it.trim() }
+                .filter { it.isNotEmpty() && !it.startsWith("#") }
+                .map { line ->
+                    val (address, value) = line.split(' ', limit = 2)
+                    RegisterValue(address.asAddress()).setValue(value.trim().toInt(16).toShort(), 0L)
+                }
+        } catch (e: Exception) {
+            LOG.warn("Ignoring the unusable immutable values file {}: {}", file, e.message)
+            null
+        }
+    }
+
+    override fun save(
+        deviceKey: String,
+        values: List<RegisterValue>,
+    ) {
+        val file = fileOf(deviceKey)
+        try {
+            Files.createDirectories(directory.toPath())
+            val tempFile = File(directory, file.name + ".tmp")
+            tempFile.writeText(
+                values.joinToString("\n", headerOf(deviceKey) + "\n", "\n") {
+                    "${it.address.toCleanFormat()} ${it.toSingleValueString()}"
+                },
+            )
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            LOG.warn("Unable to store the immutable values in {}: {}", file, e.message)
+        }
+    }
+
+    override fun remove(deviceKey: String) {
+        fileOf(deviceKey).delete()
+    }
+
+    companion object {
+        private val LOG: Logger = LogManager.getLogger()
+        private val UNSAFE_CHARACTERS = Regex("[^A-Za-z0-9.-]")
+    }
+}
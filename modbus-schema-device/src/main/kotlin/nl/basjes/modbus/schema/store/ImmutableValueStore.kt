@@ -0,0 +1,47 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.store
+
+import nl.basjes.modbus.device.api.RegisterValue
+
+/**
+ * A persistent store for the values of the immutable registers (nameplate, serial numbers, model strings, ...)
+ * of a device so these do not need to be read again after a restart or reconnect.
+ */
+interface ImmutableValueStore {
+    /**
+     * @param deviceKey The identity of the device (for example the host and unit id).
+     * @return The stored register values of the device or null if there are none.
+     */
+    fun load(deviceKey: String): List<RegisterValue>?
+
+    /**
+     * Store (replace) the register values of the device.
+     * @param deviceKey The identity of the device (for example the host and unit id).
+     * @param values The register values to store (all must have a value).
+     */
+    fun save(
+        deviceKey: String,
+        values: List<RegisterValue>,
+    )
+
+    /**
+     * Remove the stored register values of the device.
+     * @param deviceKey The identity of the device (for example the host and unit id).
+     */
+    fun remove(deviceKey: String)
+}
@@ -0,0 +1,121 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.store
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressClass
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.api.RegisterValue
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+
+/**
+ * Keeps the values of the immutable registers of a single (connected) device in a persistent store.
+ *
+ * Typical usage:
+ * - After connecting call [restore] which puts the stored immutable values back into the schema device
+ *   so these are not read from the device again.
+ * - After the values have been retrieved (i.e. after an update) call [save].
+ *
+ * @param schemaDevice The schema device (connected to the modbus device).
+ * @param store Where the values are stored.
+ * @param deviceKey The identity of the device (for example the host and unit id).
+ * @param fingerprint An immutable field (like the serial number) that is always read from the device to validate
+ *                    that the stored values belong to this device. If null the stored values are always trusted.
+ */
+class PersistentImmutableValues
+@JvmOverloads
+constructor(
+    val schemaDevice: SchemaDevice,
+    val store: ImmutableValueStore,
+    val deviceKey: String,
+    val fingerprint: Field? = null,
+) {
+    /** All register addresses that are used by immutable fields. */
+    private fun immutableAddresses(): Set<Address> =
+        schemaDevice
+            .fields
+            .filter { it.isImmutable }
+            .flatMap { it.requiredAddresses }
+            .filter { it.addressClass.type == AddressClass.Type.REGISTER }
+            .toSet()
+
+    /**
+     * Put the stored immutable register values into the schema device.
+     * If a fingerprint field is specified its registers are read from the device first and
+     * the stored values are only used if these are the same as the stored values.
+     * @return true if the stored values have been restored.
+     */
+    fun restore(): Boolean {
+        val storedValues = store.load(deviceKey) ?: return false
+        val immutableAddresses = immutableAddresses()
+        val usableValues = storedValues.filter { it.hasValue() && immutableAddresses.contains(it.address) }
+
+        val fingerprintField = fingerprint
+        if (fingerprintField != null) {
+            val fingerprintAddresses = fingerprintField.requiredAddresses
+            val storedFingerprint = usableValues.filter { fingerprintAddresses.contains(it.address) }
+            if (storedFingerprint.size != fingerprintAddresses.size) {
+                LOG.info("The stored immutable values of {} do not contain the fingerprint.", deviceKey)
+                return false
+            }
+
+            schemaDevice.update(fingerprintField)
+            val mismatch =
+                storedFingerprint.any {
+                    registerBlock(it.address.addressClass)[it.address].value != it.value
+                }
+            if (mismatch) {
+                LOG.info("The stored immutable values of {} belong to a different device.", deviceKey)
+                return false
+            }
+        }
+
+        val now = System.currentTimeMillis()
+        for (storedValue in usableValues) {
+            val registerValue = registerBlock(storedValue.address.addressClass)[storedValue.address]
+            registerValue.setValue(storedValue.value!!, now)
+            registerValue.immutable = true
+        }
+        return true
+    }
+
+    /**
+     * Store all currently available values of the immutable registers.
+     * @return true if something was stored.
+     */
+    fun save(): Boolean {
+        val values: List<RegisterValue> =
+            immutableAddresses()
+                .sorted()
+                .map { registerBlock(it.addressClass)[it] }
+                .filter { it.hasValue() }
+        if (values.isEmpty()) {
+            return false
+        }
+        store.save(deviceKey, values)
+        return true
+    }
+
+    private fun registerBlock(addressClass: AddressClass) = schemaDevice.getModbusBlock(addressClass) as RegisterBlock
+
+    companion object {
+        private val LOG: Logger = LogManager.getLogger()
+    }
+}
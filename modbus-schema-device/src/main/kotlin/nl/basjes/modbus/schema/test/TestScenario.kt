@@ -16,9 +16,13 @@
  */
 package nl.basjes.modbus.schema.test
 
+import nl.basjes.modbus.device.api.AddressClass
 import nl.basjes.modbus.device.api.DiscreteBlock
 import nl.basjes.modbus.device.api.ModbusBlock
 import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.api.asAddress
+import nl.basjes.modbus.device.api.toDiscreteBlock
+import nl.basjes.modbus.device.api.toRegisterBlock
 import nl.basjes.modbus.device.memory.MockedModbusDevice
  import nl.basjes.modbus.schema.ReturnType
 import nl.basjes.modbus.schema.SchemaDevice
@@ -43,7 +47,29 @@ class TestScenario(
     val description: String? = null,
 ) {
 
-    val modbusBlocks  : MutableList<ModbusBlock<*,*,*>> = mutableListOf()
+    private val parsedModbusBlocks: MutableList<ModbusBlock<*,*,*>> = mutableListOf()
+
+    // The raw test values (first address and the values) exactly as they were in the schema.
+    // These are only converted into ModbusBlocks when they are really needed (i.e. when verifying the test).
+    private val unparsedModbusBlocks: MutableList<Pair<String, String>> = mutableListOf()
+
+    val modbusBlocks: MutableList<ModbusBlock<*,*,*>>
+        get() {
+            synchronized(unparsedModbusBlocks) {
+                for ((firstAddress, rawValues) in unparsedModbusBlocks) {
+                    val address = firstAddress.asAddress()
+                    parsedModbusBlocks.add(
+                        when (address.addressClass.type) {
+                            AddressClass.Type.DISCRETE -> rawValues.toDiscreteBlock(address)
+                            AddressClass.Type.REGISTER -> rawValues.toRegisterBlock(address)
+                        },
+                    )
+                }
+                unparsedModbusBlocks.clear()
+            }
+            return parsedModbusBlocks
+        }
+
     val expectedBlocks: MutableList<ExpectedBlock> = mutableListOf()
 
     fun modbusDevice(): MockedModbusDevice {
@@ -62,20 +88,37 @@ class TestScenario(
         modbusBlocks.add(modbusBlock)
     }
 
+    /**
+     * Add the raw test values as they are written in the schema.
+     * These are only parsed when the modbusBlocks are needed.
+     * @param firstAddress The address of the first value
+     * @param rawValues The raw values (hex registers or discretes)
+     */
+    fun addModbusBlock(
+        firstAddress: String,
+        rawValues: String,
+    ) {
+        synchronized(unparsedModbusBlocks) {
+            unparsedModbusBlocks.add(firstAddress to rawValues)
+        }
+    }
+
     fun addExpectedBlock(block: ExpectedBlock) {
         expectedBlocks.add(block)
     }
 
     /**
      * Verify if the schema matches this test scenario.
-     * NOTE: The previously cached modbus values in the provided SchemaDevice are WIPED!
+     * The test modbus values are loaded into an isolated set of modbus blocks so the provided
+     * SchemaDevice is not modified and multiple scenarios can be verified in parallel.
      * @return The results object
      */
     fun verify(schemaDevice: SchemaDevice): TestScenarioResults {
         val testResults: MutableMap<String, MutableMap<String, TestResult>> = mutableMapOf()
 
-        // First we set all the TEST registers in the schema device
-        loadTestModbusValues(schemaDevice)
+        // First we put all the TEST registers in an isolated holder of the modbus values
+        val testModbusValues = SchemaDevice()
+        loadTestModbusValues(testModbusValues)
 
         // Then for each block as defined in the test scenario
         for (expectedBlock in expectedBlocks) {
@@ -92,13 +135,11 @@ class TestScenario(
                     "For block '${block.id}' an expected value was specified for a non existent field '$fieldId'"
                 }
 
-                val actualValue = field.testCompareValue
+                val actualValue = field.testCompareValue(testModbusValues)
                 blockTestResult[fieldId] =
                     TestResult(expectedValue, actualValue, expectedValue == actualValue)
             }
         }
-        // Finally ensure no test registers remain in the schema device
-        schemaDevice.clearModbusBlocks()
         return TestScenarioResults(name, schemaDevice, testResults)
     }
 
@@ -132,6 +173,23 @@ class TestScenario(
         }
     }
 
+    /**
+     * @return A deep copy of this test scenario so changing the copy (like recreateExpectedValues) does not affect the original.
+     */
+    fun copy(): TestScenario {
+        val copy = TestScenario(name, description)
+        synchronized(unparsedModbusBlocks) {
+            copy.unparsedModbusBlocks.addAll(unparsedModbusBlocks)
+            parsedModbusBlocks.forEach { copy.parsedModbusBlocks.add(it.clone()) }
+        }
+        for (expectedBlock in expectedBlocks) {
+            val copiedBlock = ExpectedBlock(expectedBlock.blockId)
+            expectedBlock.expected.forEach { (fieldId, value) -> copiedBlock.addExpectation(fieldId, value) }
+            copy.addExpectedBlock(copiedBlock)
+        }
+        return copy
+    }
+
     override fun toString(): String = "TestScenario: '$name' => $description)"
 }
 
@@ -16,6 +16,7 @@
  */
 package nl.basjes.modbus.schema
 
+import nl.basjes.modbus.schema.expression.numbers.LongConstant
 import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
@@ -79,5 +80,18 @@ class TestBuilder {
         field.fetchGroup = "" // Making it blank resets it
         assertEquals("<<BlockOne | FieldOne>>", field.fetchGroup)
         assertTrue(field.fetchGroupIsDefault)
+
+        // A provided parsed expression is used instead of parsing the expression
+        val parsedExpression = LongConstant(43)
+        val preParsedField = Field
+            .builder()
+            .block(block)
+            .id("FieldTwo")
+            .expression("43")
+            .parsedExpression(parsedExpression)
+            .build()
+        assertTrue(preParsedField.initialize())
+        assertSame(parsedExpression, preParsedField.parsedExpression)
+        assertEquals(43L, preParsedField.longValue)
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class TestFieldHistory {
+    @Test
+    fun testRingBuffer() {
+        val history = FieldHistory(4)
+        assertNull(history.lastTimestamp)
+        assertNull(history.statistics())
+        assertEquals(0, history.last(10).size)
+
+        for (i in 1L..6L) {
+            assertTrue(history.record(i * 1000, i * 10.0))
+        }
+        // Same or older timestamp is ignored
+        assertFalse(history.record(6000, 99.0))
+        assertFalse(history.record(1000, 99.0))
+
+        assertEquals(4, history.size)
+        assertEquals(6000, history.lastTimestamp)
+        assertContentEquals(longArrayOf(3000, 4000, 5000, 6000), history.last(10).timestamps)
+        assertContentEquals(doubleArrayOf(50.0, 60.0), history.last(2).values)
+        assertContentEquals(doubleArrayOf(40.0, 50.0), history.window(3500, 5000).values)
+        assertEquals(0, history.window(7000, 8000).size)
+        // Open ended: everything since
+        assertContentEquals(doubleArrayOf(40.0, 50.0, 60.0), history.window(3500, Long.MAX_VALUE).values)
+        assertContentEquals(longArrayOf(3000, 4000, 5000, 6000), history.window(Long.MIN_VALUE, Long.MAX_VALUE).timestamps)
+        assertEquals(FieldHistory.Statistics(2, 50.0, 60.0, 55.0), history.statistics(4500, Long.MAX_VALUE))
+        assertEquals(FieldHistory.Statistics(4, 30.0, 60.0, 45.0), history.statistics())
+        assertEquals(FieldHistory.Statistics(2, 40.0, 50.0, 45.0), history.statistics(4000, 5999))
+
+        history.clear()
+        assertEquals(0, history.size)
+        assertFailsWith<IllegalArgumentException> { FieldHistory(0) }
+    }
+
+    @Test
+    fun testFieldHistory() {
+        val schemaDevice = SchemaDevice()
+        val block = Block(schemaDevice, "Block")
+        val counter = Field(block, "Counter", expression = "int16(hr:0)")
+        val name = Field(block, "Name", expression = "utf8(hr:1 # 2)")
+        assertTrue(schemaDevice.initialize())
+
+        val modbusDevice = MockedModbusDevice.of(Address.of("hr:0"), "0001 4142 4344")
+        schemaDevice.connect(modbusDevice)
+
+        assertFailsWith<IllegalArgumentException> { name.enableHistory(10) }
+        val history = counter.enableHistory(10)
+
+        for (value in 1..5) {
+            modbusDevice.addRegisters(Address.of("hr:0"), "%04X".format(value))
+            schemaDevice.updateAll()
+            Thread.sleep(2)
+        }
+        // Updating without new values does not add to the history
+        schemaDevice.update()
+
+        assertEquals(5, history.size)
+        assertContentEquals(doubleArrayOf(1.0, 2.0, 3.0, 4.0, 5.0), history.last(5).values)
+        assertEquals(3.0, history.statistics()?.average)
+
+        counter.disableHistory()
+        assertNull(counter.history)
+    }
+}
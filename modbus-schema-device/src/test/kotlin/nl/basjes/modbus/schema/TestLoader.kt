@@ -187,6 +187,50 @@ class TestLoader {
     }
 
 
+    @Test
+    fun testBadTestResultInBackground() {
+        val schema =
+            """
+            description: 'A device'
+            schemaFeatureLevel: 2
+            blocks:
+            - id: 'Main'
+              description:  'The only block of registers'
+              fields:
+              - id: 'MyFloat'
+                description:  'A Float 32'
+                expression: 'ieee754_32(hr:00000 # 2)'
+                unit: 'Foo'
+
+            tests:
+            - id: 'Good values'
+              input:
+              - firstAddress: 'hr:0'
+                rawValues: '449A 5225'
+              blocks:
+              - id: 'Main'
+                expected:
+                  MyFloat            : [ 1234.567 ]
+            - id: 'Bad values'
+              input:
+              - firstAddress: 'hr:0'
+                rawValues: '449A 5225'
+              blocks:
+              - id: 'Main'
+                expected:
+                  MyFloat            : [ 111.111 ]
+            """.trimIndent()
+
+        // The device is usable even though a test will fail
+        val device = schema.toSchemaDevice(verifyTestsInBackground = true)
+        val verification = device.backgroundTestVerification
+        assertNotNull(verification)
+
+        val results = verification.get()
+        assertEquals(listOf("Good values", "Bad values"), results.map { it.testName })
+        assertEquals(listOf("Bad values"), results.failedTests)
+    }
+
     @Test
     fun reformatTest() {
         val input =
@@ -0,0 +1,105 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import java.io.File
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class TestSchemaDefinition {
+
+    private val schema =
+        """
+        description: 'A device'
+        schemaFeatureLevel: 2
+        blocks:
+        - id: 'Main'
+          description:  'The only block of registers'
+          fields:
+          - id: 'Value'
+            expression: 'int16(hr:0)'
+          - id: 'Double'
+            expression: 'Value * 2'
+        tests:
+        - id: 'Normal values'
+          input:
+          - firstAddress: 'hr:0'
+            rawValues: '0001'
+          blocks:
+          - id: 'Main'
+            expected:
+              Value  : [ '1' ]
+              Double : [ '2' ]
+        """.trimIndent()
+
+    private fun modbusDevice(value: String): MockedModbusDevice {
+        val modbusDevice = MockedModbusDevice()
+        modbusDevice.addRegisters(Address.of("hr:0"), value)
+        return modbusDevice
+    }
+
+    @Test
+    fun verifyIndependentRuntimeState() {
+        val schemaDefinition = schema.toSchemaDefinition()
+        assertEquals(1, schemaDefinition.fetchPlans.filter { it.blockIds.isEmpty() }.size)
+
+        val device1 = schemaDefinition.createDevice()
+        val device2 = schemaDefinition.createDevice()
+        assertNotSame(device1["Main"]["Value"], device2["Main"]["Value"])
+        assertEquals(schemaDefinition.fetchPlans, device1.fetchPlans)
+
+        // The parsed expressions are shared
+        assertSame(device1["Main"]["Value"]?.parsedExpression, device2["Main"]["Value"]?.parsedExpression)
+        assertSame(device1["Main"]["Double"]?.parsedExpression, device2["Main"]["Double"]?.parsedExpression)
+        assertEquals(ReturnType.LONG, device2["Main"]["Double"]?.returnType)
+
+        // The test scenarios are NOT shared
+        assertNotSame(device1.tests[0], device2.tests[0])
+        assertNotSame(schemaDefinition.tests[0], device1.tests[0])
+        assertNotSame(device1.tests[0].expectedBlocks[0], device2.tests[0].expectedBlocks[0])
+        device1.tests[0].expectedBlocks.clear()
+        assertEquals(1, device2.tests[0].expectedBlocks.size)
+        assertEquals(1, schemaDefinition.tests[0].expectedBlocks.size)
+        assertTrue(device2.verifyProvidedTests().allPassed)
+        assertTrue(schemaDefinition.createDevice().verifyProvidedTests().allPassed)
+
+        device1.connect(modbusDevice("0001"))
+        device2.connect(modbusDevice("0015"))
+
+        device1.updateAll()
+        assertEquals(2L, device1["Main"]["Double"]?.longValue)
+        assertEquals(null, device2["Main"]["Double"]?.longValue)
+
+        device2.updateAll()
+        assertEquals(2L, device1["Main"]["Double"]?.longValue)
+        assertEquals(42L, device2["Main"]["Double"]?.longValue)
+    }
+
+    @Test
+    fun verifySameSchemaAsSource() {
+        val schemaFile = File("src/test/resources/TestSchemas/SunSpec2025.yaml")
+        val schemaDefinition = schemaFile.toSchemaDefinition()
+        val schemaDevice = schemaDefinition.createDevice()
+        assertEquals(schemaFile.toSchemaDevice().toYaml(), schemaDevice.toYaml())
+        assertTrue(schemaDevice.verifyProvidedTests().allPassed)
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema
+
+import nl.basjes.modbus.schema.exceptions.ModbusSchemaParseException
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.MethodSource
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStream
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class TestStreamingYamlLoader {
+
+    private fun String.openAsStream(): InputStream =
+        ClassLoader.getSystemClassLoader().getResourceAsStream(this) ?: FileInputStream(this)
+
+    @ParameterizedTest(name = "Using schema rules {0}")
+    @MethodSource("nl.basjes.modbus.schema.TestSchemaSpecification#allReferenceTestYamlFiles")
+    fun `Streaming loader matches the normal loader`(schemaFile: String) {
+        val expected = schemaFile.openAsStream().use { it.toSchemaDevice() }
+        val actual = schemaFile.openAsStream().use { it.toSchemaDeviceStreaming() }
+        assertEquals(expected.toYaml(), actual.toYaml())
+    }
+
+    @Test
+    fun `Streaming loader with a large schema`() {
+        val schemaFile = File("src/test/resources/TestSchemas/SunSpec2025.yaml")
+        assertEquals(schemaFile.toSchemaDevice().toYaml(), schemaFile.toSchemaDeviceStreaming().toYaml())
+    }
+
+    @Test
+    fun `Skipping the tests`() {
+        val schemaFile = File("src/test/resources/TestSchemas/SunSpec2025.yaml")
+        val schemaDevice = schemaFile.toSchemaDeviceStreaming(skipTests = true)
+        assertTrue(schemaDevice.tests.isEmpty())
+        assertEquals(schemaFile.toSchemaDevice().blocks.size, schemaDevice.blocks.size)
+    }
+
+    @Test
+    fun `Fields before the block id`() {
+        val schema =
+            """
+            schemaFeatureLevel: 2
+            blocks:
+            - fields:
+              - expression: 'ieee754_32(hr:00000 # 2)'
+                id: 'MyFloat'
+                unit: 'Foo'
+              id: 'Main'
+              description:  'The only block of registers'
+            tests:
+            - id: 'Normal values'
+              input:
+              - rawValues: '449A 5225'
+                firstAddress: 'hr:0'
+              blocks:
+              - id: 'Main'
+                expected:
+                  MyFloat: '1234.567'
+            description: 'A device'
+            """.trimIndent()
+
+        val schemaDevice = schema.byteInputStream().toSchemaDeviceStreaming()
+        assertEquals("A device", schemaDevice.description)
+        assertEquals("Foo", schemaDevice["Main"]["MyFloat"]?.unit)
+        assertEquals(1, schemaDevice.tests.size)
+        assertTrue(schemaDevice.verifyProvidedTests().allPassed)
+    }
+
+    @Test
+    fun `Unknown property`() {
+        val schema =
+            """
+            description: 'A device'
+            schemaFeatureLevel: 2
+            blocks:
+            - id: 'Main'
+              fields:
+              - id: 'MyFloat'
+                expression: 'ieee754_32(hr:00000 # 2)'
+                colour: 'Blue'
+            """.trimIndent()
+
+        val exception = assertFailsWith<ModbusSchemaParseException> { schema.byteInputStream().toSchemaDeviceStreaming() }
+        assertTrue(exception.message!!.contains("colour"), exception.message)
+    }
+
+    @Test
+    fun `Failing test in schema`() {
+        val schema =
+            """
+            description: 'A device'
+            schemaFeatureLevel: 2
+            blocks:
+            - id: 'Main'
+              fields:
+              - id: 'MyFloat'
+                expression: 'ieee754_32(hr:00000 # 2)'
+            tests:
+            - id: 'Normal values'
+              input:
+              - firstAddress: 'hr:0'
+                rawValues: '449A 5225'
+              blocks:
+              - id: 'Main'
+                expected:
+                  MyFloat: [ '111.111' ]
+            """.trimIndent()
+
+        assertFailsWith<ModbusSchemaParseException> { schema.byteInputStream().toSchemaDeviceStreaming() }
+        // Without the tests the schema itself is fine
+        schema.byteInputStream().toSchemaDeviceStreaming(skipTests = true)
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.detect
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.SchemaDevice
+import nl.basjes.modbus.schema.get
+import nl.basjes.modbus.schema.toSchemaDevice
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class TestSchemaDetector {
+
+    // Always 4 registers (padded with 0x00)
+    private fun String.toHex() =
+        toByteArray().copyOf(8).joinToString("") { String.format("%02X", it) }.chunked(4).joinToString(" ")
+
+    private fun schema(
+        name: String,
+        manufacturer: String,
+        model: String,
+        splitInput: Boolean = false,
+    ): SchemaDevice =
+        """
+        description: '$name'
+        schemaFeatureLevel: 2
+        blocks:
+        - id: 'Device'
+          fields:
+          - id: 'Manufacturer'
+            immutable: true
+            expression: 'utf8(hr:0 # 4)'
+          - id: 'Model'
+            immutable: true
+            expression: 'utf8(hr:4 # 4)'
+          - id: 'SerialNumber'
+            immutable: true
+            expression: 'uint16(hr:8)'
+          - id: 'Power'
+            expression: 'int16(hr:10)'
+        tests:
+        - id: 'Normal'
+          input:
+          ${input(manufacturer, model, splitInput)}
+          blocks:
+          - id: 'Device'
+            expected:
+              Manufacturer: [ '$manufacturer' ]
+              Model:        [ '$model' ]
+              SerialNumber: [ '4660' ]
+              Power:        [ '66' ]
+        """.trimIndent().toSchemaDevice()
+
+    // The test input as a single range or as separate ranges (indented to fit in the schema)
+    private fun input(
+        manufacturer: String,
+        model: String,
+        splitInput: Boolean,
+    ): String {
+        val ranges =
+            if (splitInput) {
+                listOf("hr:0" to manufacturer.toHex(), "hr:4" to "${model.toHex()} 1234 0000 0042")
+            } else {
+                listOf("hr:0" to "${manufacturer.toHex()} ${model.toHex()} 1234 0000 0042")
+            }
+        return ranges.joinToString("\n          ") { (firstAddress, rawValues) ->
+            "- firstAddress: '$firstAddress'\n            rawValues: '$rawValues'"
+        }
+    }
+
+    private val alpha = schema("Alpha", "ACME", "Alpha")
+    private val beta  = schema("Beta",  "ACME", "Beta")
+    private val gamma = schema("Gamma", "Other", "Gamma")
+
+    private val identityFields = setOf("Device.Manufacturer", "Model")
+
+    private fun device(
+        manufacturer: String,
+        model: String,
+        serialNumber: String = "1234",
+    ) = MockedModbusDevice.of(
+        Address.of("hr:0"),
+        "${manufacturer.toHex()} ${model.toHex()} $serialNumber 0000 0007",
+    )
+
+    @Test
+    fun verifyDetection() {
+        val detector = SchemaDetector(listOf(alpha, beta, gamma), identityFields)
+
+        val modbusDevice = device("ACME", "Beta")
+        val result = detector.detect(modbusDevice)
+        assertSame(beta, result.schemaDevice)
+        // The model register range alone is enough to distinguish all of them, the manufacturer is then verified.
+        assertEquals(2, result.requests)
+
+        // The probed values are reused
+        beta.connect(modbusDevice, 0)
+        result.populate(beta)
+        val queries = beta.updateAll()
+        assertEquals(listOf("hr:00008#1", "hr:00010#1"), queries.map { "${it.start.toCleanFormat()}#${it.count}" })
+        assertEquals("Beta", beta["Device"]["Model"]?.stringValue)
+        assertEquals(7L, beta["Device"]["Power"]?.longValue)
+    }
+
+    @Test
+    fun verifyNoMatch() {
+        val result = SchemaDetector(listOf(alpha, beta, gamma), identityFields).detect(device("ACME", "Delta"))
+        assertTrue(result.matches.isEmpty())
+    }
+
+    @Test
+    fun verifyOtherSerialNumber() {
+        // The serial number of the device is not the one in the test scenario
+        val result = SchemaDetector(listOf(alpha, beta, gamma), identityFields).detect(device("ACME", "Beta", "4321"))
+        assertSame(beta, result.schemaDevice)
+
+        // Using the (device specific) serial number as identity would NOT find it
+        val withSerial = SchemaDetector(listOf(alpha, beta, gamma), identityFields + "SerialNumber")
+        assertTrue(withSerial.detect(device("ACME", "Beta", "4321")).matches.isEmpty())
+    }
+
+    @Test
+    fun verifySingleCandidate() {
+        val detector = SchemaDetector(listOf(beta), identityFields)
+        // Even with a single candidate the device must match
+        assertTrue(detector.detect(device("Other", "Beta")).matches.isEmpty())
+        assertTrue(detector.detect(device("ACME", "Gamma")).matches.isEmpty())
+
+        val result = detector.detect(device("ACME", "Beta"))
+        assertSame(beta, result.schemaDevice)
+        assertEquals(2, result.requests)
+    }
+
+    @Test
+    fun verifyIdentityInSecondInputRange() {
+        val splitAlpha = schema("Alpha", "ACME", "Alpha", splitInput = true)
+        val splitBeta  = schema("Beta",  "ACME", "Beta",  splitInput = true)
+        val detector = SchemaDetector(listOf(splitAlpha, splitBeta), identityFields)
+        assertEquals(listOf(splitBeta), detector.detect(device("ACME", "Beta")).matches)
+        assertEquals(listOf(splitAlpha), detector.detect(device("ACME", "Alpha")).matches)
+        assertTrue(detector.detect(device("ACME", "Delta")).matches.isEmpty())
+    }
+
+    @Test
+    fun verifyIdentityFieldsAreRequired() {
+        assertFailsWith<IllegalArgumentException> { SchemaDetector(listOf(alpha, beta, gamma), emptySet()) }
+    }
+
+    @Test
+    fun verifyIdentityFields() {
+        // Only using the manufacturer: the two ACME devices cannot be distinguished
+        val result = SchemaDetector(listOf(alpha, beta, gamma), setOf("Device.Manufacturer")).detect(device("ACME", "Beta"))
+        assertEquals(listOf(alpha, beta), result.matches)
+        assertEquals(1, result.requests)
+    }
+}
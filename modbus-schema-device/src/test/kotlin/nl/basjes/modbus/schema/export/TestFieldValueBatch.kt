@@ -0,0 +1,167 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.export
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Block
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class TestFieldValueBatch {
+    @Test
+    fun testExport() {
+        val schemaDevice = SchemaDevice()
+        val block = Block(schemaDevice, "Block")
+        Field(block, "Long", expression = "int16(hr:0)")
+        Field(block, "Double", expression = "int16(hr:0) * 0.5")
+        Field(block, "Missing", expression = "int16(hr:9)")
+        Field(block, "Boolean", expression = "boolean(c:0)")
+        Field(block, "Text", expression = "utf8(hr:1 # 2)")
+        Field(block, "Constant", expression = "42")
+        assertTrue(schemaDevice.initialize())
+
+        schemaDevice.connect(MockedModbusDevice.of(Address.of("hr:0"), "0003 4142 4344").addDiscretes(Address.of("c:0"), "1"))
+        schemaDevice.needAll()
+        schemaDevice.update()
+
+        val batch = FieldValueBatch()
+        assertSame(batch, schemaDevice.exportNeededFields(batch))
+        assertEquals(6, batch.size)
+
+        assertEquals(listOf("Long", "Missing", "Constant"), batch.longs.fields.map { it.id })
+        assertEquals(3L, batch.longs[0])
+        assertNull(batch.longs[1])
+        assertEquals(42L, batch.longs[2])
+        assertNotNull(batch.longs.timestamp(0))
+        assertNull(batch.longs.timestamp(2))
+        assertEquals(1.5, batch.doubles[0])
+        assertEquals(true, batch.booleans[0])
+        assertEquals("ABCD", batch.strings[0])
+        assertEquals(0, batch.stringLists.size)
+
+        // Reuse the batch
+        schemaDevice.exportNeededFields(batch)
+        assertEquals(6, batch.size)
+
+        val withIds = ByteBuffer.allocate(batch.encodedSize())
+        batch.encode(withIds)
+        assertEquals(withIds.capacity(), withIds.position())
+
+        val withoutIds = ByteArrayOutputStream()
+        batch.encode(withoutIds, false)
+        assertEquals(batch.encodedSize(false), withoutIds.size())
+        assertTrue(withoutIds.size() < withIds.capacity())
+    }
+
+    private fun assertBatchMatchesFields(batch: FieldValueBatch) {
+        for (column in batch.columns) {
+            column.fields.forEachIndexed { index, field ->
+                val expected: Any? =
+                    when (column) {
+                        is LongColumn -> field.longValue
+                        is DoubleColumn -> field.doubleValue
+                        is BooleanColumn -> field.booleanValue
+                        is StringColumn -> field.stringValue
+                        is StringListColumn -> field.stringListValue
+                    }
+                val actual: Any? =
+                    when (column) {
+                        is LongColumn -> column[index]
+                        is DoubleColumn -> column[index]
+                        is BooleanColumn -> column[index]
+                        is StringColumn -> column[index]
+                        is StringListColumn -> column[index]
+                    }
+                assertEquals(expected, actual, "Value of ${field.id}")
+                assertEquals(expected == null, column.isNull(index), "Null of ${field.id}")
+                assertEquals(field.valueEpochMs, column.timestamp(index), "Timestamp of ${field.id}")
+            }
+        }
+    }
+
+    @Test
+    fun testValuesMatchFields() {
+        val schemaDevice = SchemaDevice()
+        val block = Block(schemaDevice, "Block")
+        // More fields than the initial capacity of the columns
+        for (i in 0 until 20) {
+            Field(block, "Long$i", expression = "int16(hr:$i)")
+            Field(block, "Double$i", expression = "int16(hr:$i) * 0.25")
+            Field(block, "Boolean$i", expression = "boolean(c:$i)")
+        }
+        assertTrue(schemaDevice.initialize())
+
+        // Only the first half of the values exist
+        val device =
+            MockedModbusDevice
+                .of(Address.of("hr:0"), "0001 FFFF 7FFF 8000 0000 0010 0020 0030 0040 0050")
+                .addDiscretes(Address.of("c:0"), "1 0 1 1 0 0 1 0 1 1")
+        schemaDevice.connect(device)
+        schemaDevice.needAll()
+        schemaDevice.update()
+
+        val batch = schemaDevice.exportNeededFields()
+        assertEquals(60, batch.size)
+        assertEquals(10, batch.longs.nulls.cardinality())
+        assertEquals(10, batch.doubles.nulls.cardinality())
+        assertEquals(10, batch.booleans.nulls.cardinality())
+        assertEquals(-1L, batch.longs[1])
+        assertEquals(-8192.0, batch.doubles[3])
+        assertEquals(false, batch.booleans[1])
+        assertBatchMatchesFields(batch)
+
+        // Now all values exist and the existing ones changed: nothing of the previous batch may remain.
+        device
+            .addRegisters(Address.of("hr:0"), "0002 0003 0004 0005 0006 0007 0008 0009 000A 000B")
+            .addRegisters(Address.of("hr:10"), "000C 000D 000E 000F 0010 0011 0012 0013 0014 0015")
+            .addDiscretes(Address.of("c:0"), "0 1 0 0 1 1 0 1 0 0 1 1 1 1 1 1 1 1 1 1")
+        // A value read in the same millisecond is not older than maxAge=0 so make sure time has passed
+        Thread.sleep(2)
+        schemaDevice.update()
+
+        assertSame(batch, schemaDevice.exportNeededFields(batch))
+        assertEquals(60, batch.size)
+        assertTrue(batch.longs.nulls.isEmpty)
+        assertTrue(batch.doubles.nulls.isEmpty)
+        assertTrue(batch.booleans.nulls.isEmpty)
+        assertEquals(3L, batch.longs[1])
+        assertEquals(21L, batch.longs[19])
+        assertEquals(true, batch.booleans[1])
+        assertFalse(batch.booleans.isNull(19))
+        assertBatchMatchesFields(batch)
+
+        // Reuse with fewer fields
+        batch.fill(listOf(block.getField("Long5")!!, block.getField("Boolean0")!!))
+        assertEquals(2, batch.size)
+        assertEquals(1, batch.longs.size)
+        assertEquals(0, batch.doubles.size)
+        assertEquals(1, batch.booleans.size)
+        assertEquals(7L, batch.longs[0])
+        assertEquals(false, batch.booleans[0])
+        assertBatchMatchesFields(batch)
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.export
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.toSchemaDefinition
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class TestFleetFieldValues {
+    private val schemaDefinition =
+        """
+        description: 'An inverter'
+        schemaFeatureLevel: 2
+        blocks:
+        - id: 'Inverter'
+          fields:
+          - id: 'W'
+            expression: 'int16(hr:0) * 10^W_SF'
+          - id: 'W_SF'
+            system: true
+            expression: 'int16(hr:1)'
+          - id: 'Name'
+            expression: 'utf8(hr:2 # 2)'
+        """.trimIndent().toSchemaDefinition()
+
+    @Test
+    fun testFleet() {
+        val registers = listOf("0064 0000 4142 4344", "0003 0002 4142 4344", "FFFF 0001 4142 4344", null)
+        val devices =
+            registers.map { values ->
+                val modbusDevice = MockedModbusDevice()
+                if (values != null) {
+                    modbusDevice.addRegisters(Address.of("hr:0"), values)
+                }
+                schemaDefinition.createDevice().connect(modbusDevice)
+            }
+        devices.forEach { it.updateAll() }
+
+        val power = FleetFieldValues(devices, "Inverter", "W")
+        assertEquals(4, power.size)
+        assertSame(power, power.evaluate())
+
+        assertEquals(100.0, power[0])
+        assertEquals(300.0, power[1])
+        assertEquals(-10.0, power[2])
+        assertNull(power[3])
+
+        assertEquals(3, power.count)
+        assertEquals(390.0, power.sum())
+        assertEquals(130.0, power.average())
+        assertEquals(-10.0, power.min())
+        assertEquals(300.0, power.max())
+    }
+
+    @Test
+    fun testNoValues() {
+        val devices = listOf(schemaDefinition.createDevice(), schemaDefinition.createDevice())
+        val power = FleetFieldValues(devices, "Inverter", "W").evaluate()
+        assertEquals(0, power.count)
+        assertEquals(0.0, power.sum())
+        assertNull(power.average())
+        assertNull(power.min())
+        assertNull(power.max())
+    }
+
+    @Test
+    fun testBadField() {
+        val devices = listOf(schemaDefinition.createDevice())
+        assertFailsWith<IllegalArgumentException> { FleetFieldValues(devices, "Inverter", "Name") }
+        assertFailsWith<RuntimeException> { FleetFieldValues(devices, "Inverter", "Missing") }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.expression
+
+import nl.basjes.modbus.schema.exceptions.ModbusSchemaParseException
+import nl.basjes.modbus.schema.expression.parser.ExpressionParser
+import nl.basjes.modbus.schema.expression.parser.ExpressionParser.Companion.parse
+import org.junit.jupiter.api.assertThrows
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+
+internal class TestExpressionParseCache {
+
+    @Test
+    fun verifyCachedParseTreesGiveFreshExpressions() {
+        ExpressionParser.clearParseCache()
+        val first = parse("int16(hr:1) * 10 ^ Scale")
+        val second = parse("int16( hr:1 )*10^Scale")
+        assertEquals(first.toString(), second.toString())
+        assertNotSame(first, second, "Each parse must return a new Expression because these are bound to a Field")
+        assertNotSame(first.subExpressions[0], second.subExpressions[0])
+
+        // A string with spaces is different from a string without spaces
+        assertEquals("concat('a b')", parse("concat('a b')").toString())
+        assertEquals("concat('ab')", parse("concat('ab')").toString())
+    }
+
+    @Test
+    fun verifySyntaxErrorsAreNotCached() {
+        repeat(2) {
+            assertThrows<ModbusSchemaParseException> { parse("int16(hr:1) * * 10") }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.expression
+
+import nl.basjes.modbus.device.api.AddressClass.DISCRETE_INPUT
+import nl.basjes.modbus.device.api.AddressClass.HOLDING_REGISTER
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Block
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.ReturnType
+import nl.basjes.modbus.schema.SchemaDevice
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class TestPrimitiveValues {
+
+    private val expressions =
+        listOf(
+            "int16(hr:0)",
+            "uint16(hr:1)",
+            "int32(hr:2 # 2)",
+            "uint32(hr:2 # 2)",
+            "int64(hr:8 # 4)",
+            "uint64(hr:8 # 4)",        // Overflow: no value
+            "int16(hr:4 ; 0xFFFF)",    // Not implemented: no value
+            "ieee754_32(hr:6 # 2)",
+            "ieee754_64(hr:8 # 4)",
+            "int16(hr:1) * 10",
+            "int16(hr:1) / 10",
+            "int16(hr:1) + 0.5",
+            "int16(hr:1) - 3",
+            "2 ^ int16(hr:5)",
+            "uint16(hr:1) / Field6",   // Division by a not implemented value
+            "Referenced",
+            "42",
+            "4.2",
+            "hexstring(hr:12 # 2)",    // Not numerical: no value
+        )
+
+    private fun buildSchemaDevice(): SchemaDevice {
+        val modbusDevice = MockedModbusDevice()
+        modbusDevice.addDiscretes(DISCRETE_INPUT, 0, "1 0")
+        modbusDevice.addRegisters(HOLDING_REGISTER, 0, "FFFE 0010 0001 0002 FFFF 0003 4049 0FDB 8000 0000 0000 0001 0102 0304")
+
+        val schemaDevice = SchemaDevice("Device")
+        val block = Block(schemaDevice, "Block")
+        Field(block = block, id = "Referenced", expression = "int16(hr:1) * 3")
+        Field(block = block, id = "Bit0", expression = "boolean(di:0)")
+        Field(block = block, id = "Bit1", expression = "boolean(di:1)")
+        for ((index, expression) in expressions.withIndex()) {
+            Field(block = block, id = "Field$index", expression = expression)
+        }
+        schemaDevice.initialize()
+        schemaDevice.connectBase(modbusDevice)
+        schemaDevice.updateAll()
+        return schemaDevice
+    }
+
+    @Test
+    fun verifyPrimitivesMatchBoxedValues() {
+        val schemaDevice = buildSchemaDevice()
+        val block = schemaDevice.getBlock("Block")!!
+        for (index in expressions.indices) {
+            val field = block.getField("Field$index")!!
+            val description = "Field$index: ${expressions[index]}"
+            assertEquals(field.doubleValue ?: -1.0, field.getAsDouble(-1.0), description)
+            if (field.returnType == ReturnType.LONG) {
+                assertEquals(field.longValue ?: -1L, field.getAsLong(-1L), description)
+            }
+        }
+        assertEquals(-2.0, block.getField("Field0")!!.getAsDouble(-1.0))
+        assertEquals(-1.0, block.getField("Field5")!!.getAsDouble(-1.0))
+        assertEquals(-1L, block.getField("Field6")!!.getAsLong(-1L))
+        assertEquals(1.6, block.getField("Field10")!!.getAsDouble(-1.0))
+        assertEquals(-1.0, block.getField("Field14")!!.getAsDouble(-1.0))
+        assertEquals(48L, block.getField("Field15")!!.getAsLong(-1L))
+
+        assertEquals(true, block.getField("Bit0")!!.getAsBoolean(false))
+        assertEquals(false, block.getField("Bit1")!!.getAsBoolean(true))
+        assertEquals(true, block.getField("Field0")!!.getAsBoolean(true))
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.fetcher
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.AddressRange
+import nl.basjes.modbus.device.api.ModbusBlock
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Block
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class TestBatchedFetch {
+
+    private class BatchingModbusDevice : MockedModbusDevice() {
+        val batches = mutableListOf<List<AddressRange>>()
+
+        override val supportsBatchedReads: Boolean
+            get() = true
+
+        override fun getBatch(ranges: List<AddressRange>): List<ModbusBlock<*, *, *>> {
+            batches.add(ranges)
+            return super.getBatch(ranges)
+        }
+    }
+
+    @Test
+    fun verifySingleBatchRequest() {
+        val schemaDevice = SchemaDevice("Batch test device")
+        val block = Block(schemaDevice, "Block", "Block")
+        val first  = Field(block, "First",  expression = "int16(hr:0)")
+        val second = Field(block, "Second", expression = "int16(hr:1000)")
+        val third  = Field(block, "Third",  expression = "int16(hr:2000)")
+        val coil   = Field(block, "Coil",   expression = "boolean(c:10)")
+        assertTrue(schemaDevice.initialize())
+
+        val modbusDevice = BatchingModbusDevice()
+        modbusDevice.addRegisters(Address.of("hr:0"), "0001")
+        modbusDevice.addRegisters(Address.of("hr:1000"), "0002")
+        // Nothing at hr:2000 so that is a read error.
+        modbusDevice.addDiscretes(Address.of("c:10"), "1")
+        schemaDevice.connect(modbusDevice, 0)
+        schemaDevice.needAll()
+
+        val fetched = schemaDevice.update()
+        assertEquals(4, fetched.size)
+        assertEquals(1, modbusDevice.batches.size)
+        assertEquals(4, modbusDevice.batches[0].size)
+
+        assertEquals(1L, first.longValue)
+        assertEquals(2L, second.longValue)
+        assertNull(third.longValue)
+        assertEquals(true, coil.booleanValue)
+    }
+}
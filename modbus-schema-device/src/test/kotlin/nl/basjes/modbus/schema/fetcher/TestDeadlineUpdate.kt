@@ -0,0 +1,99 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.fetcher
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Block
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class TestDeadlineUpdate {
+
+    // Every request takes 100ms
+    private class SlowModbusDevice : MockedModbusDevice() {
+        override fun getRegistersInto(
+            firstRegister: Address,
+            count: Int,
+            registerBlock: RegisterBlock,
+        ): Boolean {
+            Thread.sleep(REQUEST_TIME)
+            return super.getRegistersInto(firstRegister, count, registerBlock)
+        }
+    }
+
+    private fun createSchemaDevice(): SchemaDevice {
+        val schemaDevice = SchemaDevice("Deadline test device")
+        val normal = Block(schemaDevice, "Normal", "Normal")
+        Field(normal, "A", expression = "int16(hr:0)")
+        Field(normal, "C", expression = "int16(hr:200)")
+        val critical = Block(schemaDevice, "Critical", "Critical")
+        critical.priority = 10
+        Field(critical, "B", expression = "int16(hr:100)")
+        assertTrue(schemaDevice.initialize())
+
+        val modbusDevice = SlowModbusDevice()
+        modbusDevice.addRegisters(Address.of("hr:0"), "0001")
+        modbusDevice.addRegisters(Address.of("hr:100"), "0002")
+        modbusDevice.addRegisters(Address.of("hr:200"), "0003")
+        schemaDevice.connect(modbusDevice, 0)
+        schemaDevice.needAll()
+        return schemaDevice
+    }
+
+    private fun List<ModbusQuery>.describe() = map { it.start.toCleanFormat() }
+
+    @Test
+    fun verifyPriorityAndDeferredOrder() {
+        val schemaDevice = createSchemaDevice()
+
+        // Only 2 requests fit: The critical one and then the oldest (never read yet) in address order.
+        var queries = schemaDevice.update(0, System.currentTimeMillis() + REQUEST_TIME + REQUEST_TIME / 2)
+        assertEquals(listOf("hr:00100", "hr:00000"), queries.describe())
+
+        // The skipped one goes before the others in the next cycle.
+        queries = schemaDevice.update(0, System.currentTimeMillis() + REQUEST_TIME + REQUEST_TIME / 2)
+        assertEquals(listOf("hr:00100", "hr:00200"), queries.describe())
+
+        // Without a real deadline everything is fetched
+        // (a value read in the same millisecond is not older than maxAge=0 so make sure time has passed)
+        Thread.sleep(2)
+        queries = schemaDevice.update(0, Long.MAX_VALUE)
+        assertEquals(3, queries.size)
+        assertEquals(2L, schemaDevice.getBlock("Critical")?.getField("B")?.longValue)
+    }
+
+    @Test
+    fun verifyFieldPriority() {
+        val schemaDevice = createSchemaDevice()
+        schemaDevice.getBlock("Normal")?.getField("C")?.priority = 20
+
+        // A passed deadline: nothing is done
+        assertEquals(0, schemaDevice.update(0, 0).size)
+
+        val queries = schemaDevice.update(0, System.currentTimeMillis() + REQUEST_TIME / 2)
+        assertEquals(listOf("hr:00200"), queries.describe())
+    }
+
+    companion object {
+        const val REQUEST_TIME = 100L
+    }
+}
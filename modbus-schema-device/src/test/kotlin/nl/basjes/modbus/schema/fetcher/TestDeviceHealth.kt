@@ -0,0 +1,173 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.fetcher
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.DiscreteBlock
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.exception.ModbusApiException
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.exception.NotYetImplementedException
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Block
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import nl.basjes.modbus.schema.fetcher.DeviceHealth.State.CLOSED
+import nl.basjes.modbus.schema.fetcher.DeviceHealth.State.HALF_OPEN
+import nl.basjes.modbus.schema.fetcher.DeviceHealth.State.OPEN
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertTrue
+
+class TestDeviceHealth {
+
+    private class FlakyModbusDevice : MockedModbusDevice() {
+        var dead = false
+        var requests = 0
+
+        override fun getRegistersInto(
+            firstRegister: Address,
+            count: Int,
+            registerBlock: RegisterBlock,
+        ): Boolean {
+            requests++
+            if (dead) {
+                throw ModbusException("Timeout")
+            }
+            return super.getRegistersInto(firstRegister, count, registerBlock)
+        }
+    }
+
+    @Test
+    fun verifyCircuitBreaker() {
+        val schemaDevice = SchemaDevice("Health test device")
+        val block = Block(schemaDevice, "Block", "Block")
+        for (index in 0 until 5) {
+            Field(block, "F$index", expression = "int16(hr:${index * 100})")
+        }
+        assertTrue(schemaDevice.initialize())
+
+        val modbusDevice = FlakyModbusDevice()
+        for (index in 0 until 5) {
+            modbusDevice.addRegisters(Address.of("hr:${index * 100}"), "0001")
+        }
+        schemaDevice.connect(modbusDevice, 0)
+        schemaDevice.needAll()
+
+        val health = assertNotNull(schemaDevice.health)
+        var now = 1000000L
+        health.clock = { now }
+
+        assertEquals(5, schemaDevice.update().size)
+        assertEquals(CLOSED, health.state)
+
+        // The device dies: after 3 failures the rest is skipped
+        modbusDevice.dead = true
+        modbusDevice.requests = 0
+        Thread.sleep(5) // Make sure all values are too old
+        assertEquals(0, schemaDevice.update().size)
+        assertEquals(3, modbusDevice.requests)
+        assertEquals(OPEN, health.state)
+        assertFalse(health.isAvailable)
+        assertEquals(2, health.skippedRequests)
+
+        // While open nothing is sent to the device
+        schemaDevice.update()
+        assertEquals(3, modbusDevice.requests)
+
+        // After the backoff a single trial request is done which fails: the backoff doubles
+        now += DeviceHealth.DEFAULT_INITIAL_BACKOFF
+        assertEquals(HALF_OPEN, health.state)
+        schemaDevice.update()
+        assertEquals(4, modbusDevice.requests)
+        assertEquals(OPEN, health.state)
+        assertEquals(2 * DeviceHealth.DEFAULT_INITIAL_BACKOFF, health.backoff)
+
+        // The device is back: the trial succeeds and everything is fetched again.
+        modbusDevice.dead = false
+        now += health.backoff
+        assertEquals(5, schemaDevice.update().size)
+        assertEquals(CLOSED, health.state)
+        assertEquals(0, health.consecutiveFailures)
+        assertEquals(4, health.totalFailures)
+    }
+
+    // A driver that cannot read discretes
+    private class NoDiscretesModbusDevice(
+        val exception: () -> ModbusException,
+    ) : MockedModbusDevice() {
+        override fun getDiscretesInto(
+            firstDiscrete: Address,
+            count: Int,
+            discreteBlock: DiscreteBlock,
+        ): Boolean = throw exception()
+    }
+
+    private fun verifyUnsupportedIsNotAFailure(exception: () -> ModbusException) {
+        val schemaDevice = SchemaDevice("Health test device")
+        val block = Block(schemaDevice, "Block", "Block")
+        for (index in 0 until 5) {
+            Field(block, "C$index", expression = "boolean(c:${index * 100})")
+        }
+        for (index in 0 until 2) {
+            Field(block, "F$index", expression = "int16(hr:${index * 100})")
+        }
+        assertTrue(schemaDevice.initialize())
+
+        val modbusDevice = NoDiscretesModbusDevice(exception)
+        for (index in 0 until 2) {
+            modbusDevice.addRegisters(Address.of("hr:${index * 100}"), "0001")
+        }
+        schemaDevice.connect(modbusDevice, 0)
+        schemaDevice.needAll()
+
+        val health = assertNotNull(schemaDevice.health)
+        repeat(2) {
+            // The registers are still fetched
+            assertEquals(2, schemaDevice.update().size)
+            assertEquals(1L, block.getField("F1")?.longValue)
+            assertEquals(CLOSED, health.state)
+            assertEquals(0, health.totalFailures)
+            Thread.sleep(5) // Make sure all values are too old
+        }
+    }
+
+    @Test
+    fun verifyNotYetImplementedIsNotAFailure() =
+        verifyUnsupportedIsNotAFailure { NotYetImplementedException("Reading discretes has not yet been implemented") }
+
+    @Test
+    fun verifyApiExceptionIsNotAFailure() =
+        verifyUnsupportedIsNotAFailure { ModbusApiException("Not yet implemented") }
+
+    @Test
+    fun verifyMaxBackoff() {
+        val health = DeviceHealth(1, 100, 300)
+        val now = 0L
+        health.clock = { now }
+        health.recordFailure()
+        assertEquals(100, health.backoff)
+        health.recordFailure()
+        health.recordFailure()
+        health.recordFailure()
+        assertEquals(300, health.backoff)
+        health.reset()
+        assertEquals(CLOSED, health.state)
+    }
+}
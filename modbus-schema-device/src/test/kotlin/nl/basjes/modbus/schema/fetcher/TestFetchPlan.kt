@@ -0,0 +1,117 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.fetcher
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Block
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class TestFetchPlan {
+
+    private fun createSchemaDevice(): SchemaDevice {
+        val schemaDevice = SchemaDevice("Fetch plan test device")
+        val block1 = Block(schemaDevice, "Block1", "Block 1")
+        Field(block1, "One",   expression = "int16( hr:0 )")
+        Field(block1, "Two",   expression = "int32( hr:2 # 2 )")
+        Field(block1, "Three", expression = "int16( hr:10 )")
+        val block2 = Block(schemaDevice, "Block2", "Block 2")
+        Field(block2, "Four",  expression = "int16( hr:20 )")
+        Field(block2, "Five",  expression = "int16( hr:21 )")
+        schemaDevice.initialize()
+        return schemaDevice
+    }
+
+    private fun createModbusDevice(): MockedModbusDevice {
+        val modbusDevice = MockedModbusDevice()
+        modbusDevice.addRegisters(
+            Address.of("hr:0"),
+            """
+            0001 0000 0000 0002 0000 0000 0000 0000 0000 0000
+            0003 0000 0000 0000 0000 0000 0000 0000 0000 0000
+            0004 0005
+            """,
+        )
+        return modbusDevice
+    }
+
+    private fun List<ModbusQuery>.describe() = map { "${it.start.toCleanFormat()}#${it.count}" }
+
+    @Test
+    fun verifyTableRoundTrip() {
+        val schemaDevice = createSchemaDevice()
+        val fetchPlan = FetchPlan.calculate(schemaDevice, emptyList())
+        schemaDevice.clearModbusBlocks()
+
+        val table = fetchPlan.toTable()
+        val rebuilt = FetchPlan.fromTable(emptyList(), table)
+        assertEquals(table, rebuilt.toTable())
+        assertEquals(fetchPlan.toString(), rebuilt.toString())
+        assertEquals(1, fetchPlan.queries.size, "Everything should be merged into a single query: $fetchPlan")
+    }
+
+    @Test
+    fun verifyPlanMatchesDynamicFetching() {
+        val dynamicSchemaDevice = createSchemaDevice()
+        dynamicSchemaDevice.connect(createModbusDevice())
+        dynamicSchemaDevice.needAll()
+        val dynamicQueries = dynamicSchemaDevice.update()
+
+        val plannedSchemaDevice = createSchemaDevice()
+        val fetchPlan = FetchPlan.calculate(plannedSchemaDevice, emptyList())
+        plannedSchemaDevice.addFetchPlan(FetchPlan.fromTable(emptyList(), fetchPlan.toTable()))
+        plannedSchemaDevice.connect(createModbusDevice())
+        plannedSchemaDevice.needAll()
+        val plannedQueries = plannedSchemaDevice.update()
+
+        assertEquals(dynamicQueries.describe(), plannedQueries.describe())
+        assertEquals(1L, plannedSchemaDevice.getBlock("Block1")!!.getField("One")!!.longValue)
+        assertEquals(3L, plannedSchemaDevice.getBlock("Block1")!!.getField("Three")!!.longValue)
+        assertEquals(5L, plannedSchemaDevice.getBlock("Block2")!!.getField("Five")!!.longValue)
+
+        // Nothing is outdated so nothing is fetched
+        assertTrue(plannedSchemaDevice.update(10000).isEmpty())
+    }
+
+    @Test
+    fun verifyPlanIsUsed() {
+        val schemaDevice = createSchemaDevice()
+        // A deliberately non-optimal plan for Block2: two separate queries
+        schemaDevice.addFetchPlan(
+            FetchPlan.fromTable(
+                listOf("Block2"),
+                "${schemaDevice.maxRegistersPerModbusRequest} $DEFAULT_ALLOWED_GAP_READ_SIZE 3 20 1 1 20 1 0 3 21 1 1 21 1 0",
+            ),
+        )
+        schemaDevice.connect(createModbusDevice())
+
+        schemaDevice.getBlock("Block2")!!.needAll()
+        assertEquals(listOf("hr:00020#1", "hr:00021#1"), schemaDevice.update().describe())
+        assertEquals(4L, schemaDevice.getBlock("Block2")!!.getField("Four")!!.longValue)
+        assertEquals(5L, schemaDevice.getBlock("Block2")!!.getField("Five")!!.longValue)
+
+        // A different set of needed fields falls back to the dynamic calculation
+        schemaDevice.getBlock("Block2")!!.unNeedAll()
+        schemaDevice.getBlock("Block1")!!.getField("One")!!.need()
+        schemaDevice.getBlock("Block1")!!.getField("Three")!!.need()
+        assertEquals(listOf("hr:00000#11"), schemaDevice.update().describe())
+    }
+}
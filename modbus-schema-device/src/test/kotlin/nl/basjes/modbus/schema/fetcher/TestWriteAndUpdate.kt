@@ -0,0 +1,114 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.fetcher
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.RegisterBlock
+import nl.basjes.modbus.device.exception.ModbusException
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Block
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class TestWriteAndUpdate {
+
+    private class RequestLoggingModbusDevice : MockedModbusDevice() {
+        val requests = mutableListOf<String>()
+        private var inTransaction = false
+
+        override fun writeRegisters(
+            firstRegister: Address,
+            values: ShortArray,
+        ) {
+            if (!inTransaction) {
+                requests.add("write $firstRegister")
+            }
+            super.writeRegisters(firstRegister, values)
+        }
+
+        override fun getRegistersInto(
+            firstRegister: Address,
+            count: Int,
+            registerBlock: RegisterBlock,
+        ): Boolean {
+            if (!inTransaction) {
+                requests.add("read $firstRegister")
+            }
+            return super.getRegistersInto(firstRegister, count, registerBlock)
+        }
+
+        override fun readWriteRegisters(
+            writeFirstRegister: Address,
+            writeValues: ShortArray,
+            readFirstRegister: Address,
+            readCount: Int,
+        ): RegisterBlock {
+            requests.add("write $writeFirstRegister + read $readFirstRegister")
+            inTransaction = true
+            try {
+                return super.readWriteRegisters(writeFirstRegister, writeValues, readFirstRegister, readCount)
+            } finally {
+                inTransaction = false
+            }
+        }
+    }
+
+    @Test
+    fun verifyCombinedWriteAndRead() {
+        val schemaDevice = SchemaDevice("Control loop device")
+        val block = Block(schemaDevice, "Block", "Block")
+        val measurement = Field(block, "Measurement", expression = "int16(hr:0)")
+        val setpoint    = Field(block, "Setpoint",    expression = "int16(hr:1000)")
+        val other       = Field(block, "Other",       expression = "int16(ir:0)")
+        assertTrue(schemaDevice.initialize())
+
+        val modbusDevice = RequestLoggingModbusDevice()
+        modbusDevice.addRegisters(Address.of("hr:0"), "0005")
+        modbusDevice.addRegisters(Address.of("hr:1000"), "0000")
+        modbusDevice.addRegisters(Address.of("hr:2000"), "xxxx")
+        modbusDevice.addRegisters(Address.of("ir:0"), "0007")
+        schemaDevice.connect(modbusDevice, 0)
+        schemaDevice.needAll()
+
+        // The write is combined with the first holding register read.
+        val fetched = schemaDevice.writeAndUpdate(Address.of("hr:1000"), shortArrayOf(42))
+        assertEquals(3, fetched.size)
+        assertEquals(3, modbusDevice.requests.size)
+        assertEquals(1, modbusDevice.requests.count { it.startsWith("write hr:01000 + read") })
+        assertEquals(5L, measurement.longValue)
+        assertEquals(42L, setpoint.longValue)
+        assertEquals(7L, other.longValue)
+
+        // Without a holding register read the write is a separate request.
+        measurement.unNeed()
+        setpoint.unNeed()
+        modbusDevice.requests.clear()
+        Thread.sleep(5) // Make sure all values are too old
+        schemaDevice.writeAndUpdate(Address.of("hr:1000"), shortArrayOf(43))
+        assertEquals(listOf("write hr:01000", "read ir:00000"), modbusDevice.requests)
+        assertEquals(43L, setpoint.longValue)
+
+        // A failed write is an exception
+        assertFailsWith<ModbusException> {
+            schemaDevice.writeAndUpdate(Address.of("hr:2000"), shortArrayOf(1))
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.store
+
+import nl.basjes.modbus.device.api.Address
+import nl.basjes.modbus.device.api.RegisterValue
+import nl.basjes.modbus.device.memory.MockedModbusDevice
+import nl.basjes.modbus.schema.Block
+import nl.basjes.modbus.schema.Field
+import nl.basjes.modbus.schema.SchemaDevice
+import nl.basjes.modbus.schema.fetcher.ModbusQuery
+import nl.basjes.modbus.schema.get
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class TestPersistentImmutableValues {
+
+    @TempDir
+    lateinit var directory: File
+
+    private fun createSchemaDevice(): SchemaDevice {
+        val schemaDevice = SchemaDevice("Immutable test device")
+        val block = Block(schemaDevice, "Block", "Block")
+        Field(block, "Serial", immutable = true, expression = "utf8(hr:0 # 2)")
+        Field(block, "Model",  immutable = true, expression = "utf8(hr:100 # 2)")
+        Field(block, "Power",  expression = "int16(hr:200)")
+        assertTrue(schemaDevice.initialize())
+        return schemaDevice
+    }
+
+    private fun createModbusDevice(serial: String): MockedModbusDevice {
+        val modbusDevice = MockedModbusDevice()
+        modbusDevice.addRegisters(Address.of("hr:0"), serial)
+        modbusDevice.addRegisters(Address.of("hr:100"), "4D4F 4445")
+        modbusDevice.addRegisters(Address.of("hr:200"), "0042")
+        return modbusDevice
+    }
+
+    private fun List<ModbusQuery>.describe() = map { "${it.start.toCleanFormat()}#${it.count}" }
+
+    private fun run(
+        serial: String,
+        store: ImmutableValueStore,
+    ): Pair<Boolean, List<String>> {
+        val schemaDevice = createSchemaDevice()
+        schemaDevice.connect(createModbusDevice(serial), 0)
+        val persistent = PersistentImmutableValues(schemaDevice, store, "Device 1", schemaDevice["Block"]["Serial"])
+        val restored = persistent.restore()
+        val queries = schemaDevice.updateAll()
+        assertEquals("MODE", schemaDevice["Block"]["Model"]?.stringValue)
+        assertEquals(66L, schemaDevice["Block"]["Power"]?.longValue)
+        persistent.save()
+        return Pair(restored, queries.describe())
+    }
+
+    @Test
+    fun verifyRestoreAfterRestart() {
+        val store = FileImmutableValueStore(directory)
+        assertNull(store.load("Device 1"))
+
+        // First run: nothing stored, everything is read
+        assertEquals(Pair(false, listOf("hr:00000#2", "hr:00100#2", "hr:00200#1")), run("5345 5231", store))
+        assertEquals(1 + 4, File(directory, "Device_201.registers").readLines().size)
+
+        // Restart: only the fingerprint is validated and the mutable values are read
+        val (restored, queries) = run("5345 5231", store)
+        assertTrue(restored)
+        assertEquals(listOf("hr:00200#1"), queries)
+
+        // A different device on the same identity: the stored values are not used
+        assertEquals(Pair(false, listOf("hr:00100#2", "hr:00200#1")), run("4F54 4852", store))
+    }
+
+    @Test
+    fun verifyCorruptFileIsIgnored() {
+        val store = FileImmutableValueStore(directory)
+        File(directory, "Device_201.registers").writeText("# The immutable register values of Device 1\nhr:00000 XYZ")
+        assertNull(store.load("Device 1"))
+        store.remove("Device 1")
+        assertFalse(File(directory, "Device_201.registers").exists())
+    }
+
+    @Test
+    fun verifyDeviceKeysDoNotShareFiles() {
+        val store = FileImmutableValueStore(directory)
+        val values = listOf(RegisterValue(Address.of("hr:0")).setValue(0x4142, 0L))
+        store.save("10.0.0.1:502/1", values)
+        assertNull(store.load("10.0.0.1_502_1"))
+        assertNull(store.load("10.0.0.1-502-1"))
+        assertEquals("4142", store.load("10.0.0.1:502/1")?.single()?.toSingleValueString())
+        assertTrue(File(directory, "10.0.0.1_3A502_2F1.registers").exists())
+
+        // A file that was written for a different device key is not used
+        File(directory, "10.0.0.1_3A502_2F1.registers")
+            .copyTo(File(directory, "10.0.0.1_5F502_5F1.registers"))
+        assertNull(store.load("10.0.0.1_502_1"))
+    }
+}
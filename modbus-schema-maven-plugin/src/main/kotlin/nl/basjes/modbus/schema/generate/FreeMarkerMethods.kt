@@ -21,6 +21,7 @@ import freemarker.template.Configuration
 import freemarker.template.SimpleScalar
 import freemarker.template.TemplateMethodModelEx
 import freemarker.template.TemplateModelException
+import freemarker.template.TemplateNumberModel
 import nl.basjes.modbus.device.api.ModbusBlock
 import nl.basjes.modbus.schema.ReturnType
 import nl.basjes.modbus.schema.SchemaDevice
@@ -45,6 +46,7 @@ import nl.basjes.modbus.schema.expression.numbers.LongConstant
 import nl.basjes.modbus.schema.expression.numbers.Multiply
 import nl.basjes.modbus.schema.expression.numbers.NumericalField
 import nl.basjes.modbus.schema.expression.numbers.Power
+import nl.basjes.modbus.schema.expression.numbers.SubExpression
 import nl.basjes.modbus.schema.expression.numbers.Subtract
 import nl.basjes.modbus.schema.expression.registers.RegistersConstantExpression
 import nl.basjes.modbus.schema.expression.registers.SwapBytes
@@ -126,12 +128,17 @@ fun Configuration.registerAdditionalMethods() =
         this.setSharedVariable("asString",              ModbusBlockAsString(false))
         this.setSharedVariable("asStringMultiLine",     ModbusBlockAsString(true))
         this.setSharedVariable("indent",                Indent())
+        this.setSharedVariable("doubleLiteral",         DoubleLiteral())
         // Determine if an expression is of a specific expression type
         // Usage:  <#if isExpressionType(expr, "ExpressionRegistersConstant")>...</#if>
         this.setSharedVariable("isExpressionType",      IsExpressionType())
 
         // Usage: <#switch expressionType(expr)><#on "ExpressionRegistersConstant")>...</#switch>
         this.setSharedVariable("expressionType",        GetExpressionType())
+
+        // Replace a calculation that only uses constants with the resulting constant
+        // Usage: <#assign expr = foldConstants(expr)>
+        this.setSharedVariable("foldConstants",         FoldConstants())
     }
 
 abstract class BaseSingleStringMethod : TemplateMethodModelEx {
@@ -381,3 +388,56 @@ class Indent: TemplateMethodModelEx {
         return SimpleScalar(input.toString().replaceIndent(prefix.toString()))
     }
 }
+
+/**
+ * A double value as a literal that is valid in both Java and Kotlin code (i.e. always with a '.' or exponent).
+ */
+class DoubleLiteral: TemplateMethodModelEx {
+    override fun exec(arguments: MutableList<Any?>): Any {
+        if (arguments.size != 1) {
+            throw TemplateModelException("Need exactly 1 argument")
+        }
+        val input = arguments[0]
+        if (input !is TemplateNumberModel) {
+            throw TemplateModelException("Bad input: Argument must be a number")
+        }
+        return SimpleScalar(input.asNumber.toDouble().toString())
+    }
+}
+
+/**
+ * If the provided expression is a calculation that only uses constants (no registers, discretes or fields)
+ * the result is the constant value (a LongConstant or DoubleConstant) it evaluates to.
+ * In all other cases (or if the constant would change the returnType of the surrounding expression)
+ * the provided expression itself is returned.
+ */
+class FoldConstants: TemplateMethodModelEx {
+    override fun exec(arguments: MutableList<Any?>): Any {
+        if (arguments.size != 1) {
+            throw TemplateModelException("Need exactly 1 argument")
+        }
+        val arg0 = arguments[0]
+        if (arg0 !is WrapperTemplateModel) {
+            throw TemplateModelException("Bad input")
+        }
+        val input = arg0.wrappedObject
+        if (input !is Expression) {
+            throw TemplateModelException("Only works on Expressions")
+        }
+        if (input !is SubExpression || input.requiredAddresses.isNotEmpty() || input.requiredFields.isNotEmpty()) {
+            return input
+        }
+        // Constants do not use the SchemaDevice at all
+        val schemaDevice = SchemaDevice()
+        val folded =
+            when (input.returnType) {
+                ReturnType.LONG -> input.getValueAsLong(schemaDevice)?.let { LongConstant(it) }
+                else -> input.getValueAsDouble(schemaDevice)?.takeIf { it.isFinite() }?.let { DoubleConstant(it) }
+            } ?: return input
+        // The surrounding expression must still have the same return type.
+        if (folded.returnType != input.returnType || folded.getGuarantee() != input.getGuarantee()) {
+            return input
+        }
+        return folded
+    }
+}
@@ -34,9 +34,18 @@ class GenerateTestMojo: AbstractMojo() {
     @Parameter(property = "language", defaultValue = "kotlin", required = true)
     private val language: String = "kotlin"
 
-    @Parameter(property = "modbusSchemaFile", required = true)
+    @Parameter(property = "modbusSchemaFile")
     private val modbusSchemaFile: String? = null
 
+    /**
+     * Multiple schemas (each optionally a glob pattern) which are generated in parallel.
+     */
+    @Parameter
+    private val modbusSchemas: List<ModbusSchema>? = null
+
+    @Parameter(property = "threads", defaultValue = "0")
+    private val threads: Int = 0
+
     @Parameter(property = "templateDirectory")
     private val templateDirectory: File? = null
 
@@ -51,15 +60,23 @@ class GenerateTestMojo: AbstractMojo() {
 
     @Throws(MojoExecutionException::class)
     override fun execute() {
-        Generator(log).execute(
+        val schemas = mutableListOf<ModbusSchema>()
+        if (modbusSchemaFile != null) {
+            schemas.add(ModbusSchema(modbusSchemaFile, packageName, className))
+        }
+        schemas.addAll(modbusSchemas ?: emptyList())
+        if (schemas.isEmpty()) {
+            throw MojoExecutionException("Either modbusSchemaFile or modbusSchemas must be specified")
+        }
+        Generator(log).executeAll(
             project!!.basedir,
             outputDirectory,
-            modbusSchemaFile,
+            schemas,
             templateDirectory,
             packageName,
-            className,
             language,
             "test",
+            if (threads > 0) threads else Runtime.getRuntime().availableProcessors(),
         )
         if (project != null && outputDirectory != null) {
             project!!.addTestCompileSourceRoot(outputDirectory.absolutePath + File.separator + language)
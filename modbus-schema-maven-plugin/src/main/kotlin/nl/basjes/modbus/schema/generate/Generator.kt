@@ -16,11 +16,16 @@
  */
 package nl.basjes.modbus.schema.generate
 
+import freemarker.cache.ClassTemplateLoader
+import freemarker.cache.FileTemplateLoader
+import freemarker.cache.MultiTemplateLoader
 import freemarker.template.Configuration
 import freemarker.template.Template
 import freemarker.template.TemplateExceptionHandler
+import nl.basjes.modbus.device.exception.ModbusException
 import nl.basjes.modbus.schema.SchemaDevice
 import nl.basjes.modbus.schema.exceptions.ModbusSchemaParseException
+import nl.basjes.modbus.schema.fetcher.FetchPlan
 import nl.basjes.modbus.schema.toSchemaDevice
 import nl.basjes.modbus.version.PROJECT_VERSION
 import org.apache.maven.plugin.MojoExecutionException
@@ -34,7 +39,15 @@ import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStreamWriter
 import java.io.Writer
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.security.MessageDigest
+import java.util.HexFormat
 import java.util.TimeZone
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 import java.util.regex.Pattern
 
 class Generator(val log: Log) {
@@ -57,6 +70,106 @@ class Generator(val log: Log) {
         }
     }
 
+    /**
+     * Generate the code for all provided schemas in parallel.
+     * A schema file can also be a glob pattern (relative to the basedir) which results in a class for each matching file.
+     * @return The generated files (schemas that did not change since the previous generation are skipped)
+     */
+    fun executeAll(
+        basedir: File,
+        outputDirectory: File?,
+        modbusSchemas: List<ModbusSchema>,
+        templateDirectory: File?,
+        defaultPackageName: String?,
+        language: String,
+        type: String,
+        threads: Int = Runtime.getRuntime().availableProcessors(),
+    ): List<File> {
+        val expandedSchemas = modbusSchemas.flatMap { expandGlob(basedir, it, defaultPackageName) }
+        if (expandedSchemas.isEmpty()) {
+            throw MojoExecutionException("No modbus schemas were specified (or matched)")
+        }
+        val duplicates = expandedSchemas.groupBy { "${it.packageName}.${it.className}" }.filterValues { it.size > 1 }.keys
+        if (duplicates.isNotEmpty()) {
+            throw MojoExecutionException("Multiple schemas would generate the same class: $duplicates")
+        }
+
+        val executor = Executors.newFixedThreadPool(threads.coerceIn(1, expandedSchemas.size))
+        try {
+            val futures =
+                expandedSchemas.map { modbusSchema ->
+                    executor.submit<File?> {
+                        execute(
+                            basedir,
+                            outputDirectory,
+                            modbusSchema.modbusSchemaFile,
+                            templateDirectory,
+                            modbusSchema.packageName,
+                            modbusSchema.className,
+                            language,
+                            type,
+                        )
+                    }
+                }
+            return futures.mapNotNull {
+                try {
+                    it.get()
+                } catch (e: ExecutionException) {
+                    val cause = e.cause
+                    throw cause as? MojoExecutionException ?: MojoExecutionException(cause?.message, cause)
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun expandGlob(
+        basedir: File,
+        modbusSchema: ModbusSchema,
+        defaultPackageName: String?,
+    ): List<ModbusSchema> {
+        val modbusSchemaFile = modbusSchema.modbusSchemaFile
+            ?: throw MojoExecutionException("A modbusSchema without a modbusSchemaFile was specified")
+        val packageName = modbusSchema.packageName ?: defaultPackageName
+
+        if (modbusSchemaFile.none { it in GLOB_CHARACTERS }) {
+            return listOf(ModbusSchema(modbusSchemaFile, packageName, modbusSchema.className ?: classNameOf(modbusSchemaFile)))
+        }
+
+        val matcher = FileSystems.getDefault().getPathMatcher("glob:$modbusSchemaFile")
+        val basePath = basedir.toPath()
+        val matchingFiles =
+            Files.walk(basePath).use { paths ->
+                paths
+                    .filter { Files.isRegularFile(it) && matcher.matches(basePath.relativize(it)) }
+                    .map { basePath.relativize(it).toString() }
+                    .sorted()
+                    .toList()
+            }
+        if (matchingFiles.isEmpty()) {
+            log.warn("The modbusSchemaFile pattern $modbusSchemaFile did not match any files")
+        }
+        if (modbusSchema.className != null && matchingFiles.size > 1) {
+            throw MojoExecutionException("A className cannot be specified for the pattern $modbusSchemaFile which matches ${matchingFiles.size} files")
+        }
+        return matchingFiles.map { ModbusSchema(it, packageName, modbusSchema.className ?: classNameOf(it)) }
+    }
+
+    /**
+     * Derive a class name from a schema filename: "sunspec-sma_inverter.yaml" --> "SunspecSmaInverter"
+     */
+    fun classNameOf(modbusSchemaFile: String): String =
+        File(modbusSchemaFile)
+            .nameWithoutExtension
+            .split(Regex("[^a-zA-Z0-9]+"))
+            .filter { it.isNotEmpty() }
+            .joinToString("") { it.replaceFirstChar { char -> char.uppercaseChar() } }
+
+    /**
+     * Generate the code for a single schema.
+     * @return The generated file or null if the schema and templates did not change since the previous generation.
+     */
     fun execute(
         basedir: File,
         outputDirectory: File?,
@@ -66,7 +179,7 @@ class Generator(val log: Log) {
         className: String?,
         language: String,
         type: String,
-    ) {
+    ): File? {
         require(outputDirectory != null) {
             throw MojoExecutionException("outputDirectory is mandatory")
         }
@@ -75,6 +188,14 @@ class Generator(val log: Log) {
             throw MojoExecutionException("No modbusSchemaFile was specified")
         }
 
+        require(!packageName.isNullOrBlank()) { throw MojoExecutionException("packageName is mandatory") }
+        require(!className.isNullOrBlank()) { throw MojoExecutionException("className is mandatory") }
+        require(packageName.matches("[a-zA-Z][a-zA-Z0-9.]+".toRegex())) { throw MojoExecutionException("Invalid packageName was provided.") }
+        require(className.matches("[a-zA-Z][a-zA-Z0-9]+".toRegex())) { throw MojoExecutionException("Invalid className was provided.") }
+
+        require(language.matches("[a-zA-Z0-9]+".toRegex())) { throw MojoExecutionException("Invalid programming language name was provided.") }
+        require(type == "main" || type == "test") { throw MojoExecutionException("Invalid type was provided.") }
+
         log.info("Using Modbus Schema file $modbusSchemaFile")
         var schemaStream = modbusSchemaFile.openAsStream()
         if (schemaStream == null) {
@@ -83,25 +204,13 @@ class Generator(val log: Log) {
         requireNotNull(schemaStream) {
             throw MojoExecutionException("Could not open the specified modbusSchemaFile $modbusSchemaFile")
         }
-        val schemaDevice = schemaStream.toSchemaDevice()
-
-        requireNotNull(schemaDevice) {
-            throw MojoExecutionException("Could not open the specified modbusSchemaFile does not exist $modbusSchemaFile")
-        }
-
-        require(!packageName.isNullOrBlank()) { throw MojoExecutionException("packageName is mandatory") }
-        require(!className.isNullOrBlank()) { throw MojoExecutionException("className is mandatory") }
-        require(packageName.matches("[a-zA-Z][a-zA-Z0-9.]+".toRegex())) { throw MojoExecutionException("Invalid packageName was provided.") }
-        require(className.matches("[a-zA-Z][a-zA-Z0-9]+".toRegex())) { throw MojoExecutionException("Invalid className was provided.") }
-
-        require(language.matches("[a-zA-Z0-9]+".toRegex())) { throw MojoExecutionException("Invalid programming language name was provided.") }
-        require(type == "main" || type == "test") { throw MojoExecutionException("Invalid type was provided.") }
+        val schemaBytes = schemaStream.use { it.readBytes() }
 
         val languageSpecificOutputDirectoryPath = (outputDirectory.absolutePath + File.separator + language).replace(Regex(Pattern.quote(File.separator) + "+"), File.separator)
         val languageSpecificOutputDirectory =  File(languageSpecificOutputDirectoryPath)
 
         if (!languageSpecificOutputDirectory.exists()) {
-            if (!languageSpecificOutputDirectory.mkdirs()) {
+            if (!languageSpecificOutputDirectory.mkdirs() && !languageSpecificOutputDirectory.isDirectory) {
                 throw MojoExecutionException("Cannot create directory $languageSpecificOutputDirectory")
             }
         }
@@ -111,46 +220,125 @@ class Generator(val log: Log) {
                 languageSpecificOutputDirectoryPath,
                 fileName(templateDirectory, language, type, packageName, className),
             )
+        val outputFile = File(outputFileName)
+
+        // If neither the schema nor the templates changed the previously generated file is still valid.
+        val generationHash = generationHash(schemaBytes, templateDirectory, language, type, packageName, className)
+        val hashFile = File(outputDirectory, "$HASH_DIRECTORY/$language/$type/$packageName.$className.sha256")
+        if (outputFile.isFile && hashFile.isFile && hashFile.readText() == generationHash) {
+            log.info("Unchanged ($language ; $type): $outputFileName")
+            return null
+        }
 
         try {
-            val outputFile = File(outputFileName)
+            val schemaDevice = String(schemaBytes, UTF_8).toSchemaDevice()
             outputFile.parentFile.mkdirs()
             if (outputFile.exists() && outputFile.isFile) {
                 outputFile.delete()
             }
             require(outputFile.createNewFile()) { throw MojoExecutionException("Unable to create file $outputFile") }
-            val fileOutput = FileOutputStream(outputFile)
-            val output = OutputStreamWriter(fileOutput)
-            generate(
-                schemaDevice,
-                templateDirectory,
-                language,
-                type,
-                packageName,
-                className,
-                output,
-            )
+            OutputStreamWriter(FileOutputStream(outputFile), UTF_8).use { output ->
+                generate(
+                    schemaDevice,
+                    templateDirectory,
+                    language,
+                    type,
+                    packageName,
+                    className,
+                    output,
+                )
+            }
+            hashFile.parentFile.mkdirs()
+            hashFile.writeText(generationHash)
             log.info("Generated ($language ; $type): $outputFileName")
+            return outputFile
         }
         catch (e: ModbusSchemaParseException) {
+            hashFile.delete()
             throw MojoExecutionException(e.message)
         }
         catch (e: IOException) {
+            hashFile.delete()
             throw MojoExecutionException(e)
         }
     }
 
+    /**
+     * A hash of everything that determines the generated code.
+     */
+    private fun generationHash(
+        schemaBytes: ByteArray,
+        templateDirectory: File?,
+        language: String,
+        type: String,
+        packageName: String,
+        className: String,
+    ): String {
+        val templateConfig = getTemplateConfiguration(templateDirectory, language, type)
+        val digest = MessageDigest.getInstance("SHA-256")
+        val parts =
+            listOf(
+                PROJECT_VERSION,
+                language,
+                type,
+                packageName,
+                className,
+            ) + usedTemplates(templateConfig, listOf("filename.ftl", "code.ftl"))
+        parts.forEach { digest.update(it.toByteArray(UTF_8)); digest.update(0) }
+        digest.update(schemaBytes)
+        return HexFormat.of().formatHex(digest.digest())
+    }
+
+    /**
+     * The names and sources of the provided templates and of all templates they (recursively) include or import.
+     * Included templates can come from the shared templates (like constructExpression.ftl) or from the template directory.
+     */
+    private fun usedTemplates(
+        templateConfig: Configuration,
+        templateNames: List<String>,
+    ): List<String> {
+        val result = mutableListOf<String>()
+        val seen = mutableSetOf<String>()
+        val pending = ArrayDeque(templateNames)
+        while (pending.isNotEmpty()) {
+            val templateName = pending.removeFirst()
+            if (!seen.add(templateName)) {
+                continue
+            }
+            val source = templateConfig.getTemplate(templateName).toString()
+            result.add(templateName)
+            result.add(source)
+            INCLUDED_TEMPLATE.findAll(source).forEach { pending.add(it.groupValues[1].removePrefix("/")) }
+        }
+        return result
+    }
+
+    // A Configuration caches the loaded templates so it is reused for all generated classes.
+    private val templateConfigurations: MutableMap<String, Configuration> = ConcurrentHashMap()
+
     fun getTemplateConfiguration(
         templateDirectory: File?,
         language: String,
         type: String,
+    ): Configuration =
+        templateConfigurations.computeIfAbsent("${templateDirectory?.absolutePath}|$language|$type") {
+            createTemplateConfiguration(templateDirectory, language, type)
+        }
+
+    private fun createTemplateConfiguration(
+        templateDirectory: File?,
+        language: String,
+        type: String,
     ): Configuration {
         val cfg = Configuration(Configuration.VERSION_2_3_34)
-        if (templateDirectory == null) {
-            cfg.setClassForTemplateLoading(Generator::class.java, "/${language}/${type}")
-        } else {
-            cfg.setDirectoryForTemplateLoading(File("${templateDirectory.absolutePath}/${type}"))
-        }
+        val templateLoader =
+            if (templateDirectory == null) {
+                ClassTemplateLoader(Generator::class.java, "/${language}/${type}")
+            } else {
+                FileTemplateLoader(File("${templateDirectory.absolutePath}/${type}"))
+            }
+        // The parts that are shared by all templates (like constructExpression.ftl) are available to all templates.
+        cfg.templateLoader = MultiTemplateLoader(arrayOf(templateLoader, ClassTemplateLoader(Generator::class.java, "/common")))
         cfg.registerAdditionalMethods()
         cfg.defaultEncoding = "UTF-8"
         cfg.templateExceptionHandler= TemplateExceptionHandler.RETHROW_HANDLER
@@ -192,14 +380,39 @@ class Generator(val log: Log) {
                 "packageName"   to packageName,
                 "className"     to className,
                 "schemaDevice" to schemaDevice,
+                "fetchPlans"   to calculateFetchPlans(schemaDevice),
             ),
             output,
         )
     }
 
+    /**
+     * The fetch plans for needing all fields and for needing all fields of a single block.
+     * These are static for a schema so they are calculated here once and baked into the generated code.
+     */
+    fun calculateFetchPlans(schemaDevice: SchemaDevice?): List<FetchPlan> {
+        if (schemaDevice == null) {
+            return emptyList()
+        }
+        return try {
+            listOf(FetchPlan.calculate(schemaDevice, emptyList())) +
+                schemaDevice.blocks.map { FetchPlan.calculate(schemaDevice, listOf(it.id)) }
+        } catch (e: ModbusException) {
+            log.warn("Unable to calculate the fetch plans (falling back to dynamic fetching): ${e.message}")
+            emptyList()
+        } finally {
+            schemaDevice.clearModbusBlocks()
+        }
+    }
+
     fun buildFullFileName(
         directory: String,
         fileName: String,
     ) = directory.trim { it <= ' ' } + '/' + fileName.trim { it <= ' ' }.replace("/+".toRegex(), "/")
 
+    companion object {
+        private const val GLOB_CHARACTERS = "*?[{"
+        private const val HASH_DIRECTORY = ".modbus-schema-hashes"
+        private val INCLUDED_TEMPLATE = Regex("<#(?:include|import)\\s+\"([^\"]+)\"")
+    }
 }
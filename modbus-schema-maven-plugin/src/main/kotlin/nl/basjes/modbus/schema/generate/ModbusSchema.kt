@@ -0,0 +1,37 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.generate
+
+/**
+ * A schema to generate code for as used in the modbusSchemas list of the plugin configuration.
+ */
+class ModbusSchema(
+    /**
+     * The schema file: a file, a classpath resource or a glob pattern (like `**.yaml`) relative to the project.
+     */
+    var modbusSchemaFile: String? = null,
+    /**
+     * The package name of the generated class (defaults to the packageName of the plugin configuration).
+     */
+    var packageName: String? = null,
+    /**
+     * The name of the generated class (defaults to a name derived from the name of the schema file).
+     */
+    var className: String? = null,
+) {
+    override fun toString(): String = "ModbusSchema($modbusSchemaFile -> $packageName.$className)"
+}
@@ -0,0 +1,69 @@
+<#--                                                                          -->
+<#-- Modbus Schema toolkit                                                    -->
+<#-- Copyright (C) 2019-2025 Niels Basjes                                     -->
+<#--                                                                          -->
+<#-- Licensed under the Apache License, Version 2.0 (the "License");          -->
+<#-- you may not use this file except in compliance with the License.         -->
+<#-- You may obtain a copy of the License at                                  -->
+<#--                                                                          -->
+<#-- https://www.apache.org/licenses/LICENSE-2.0                              -->
+<#--                                                                          -->
+<#-- Unless required by applicable law or agreed to in writing, software      -->
+<#-- distributed under the License is distributed on an "AS IS" BASIS,        -->
+<#-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. -->
+<#-- See the License for the specific language governing permissions and      -->
+<#-- limitations under the License.                                           -->
+<#--                                                                          -->
+<#-- Generate the code that directly constructs the parsed expression (avoids parsing the expression at runtime). -->
+<#-- Calculations that only use constants are replaced by the resulting constant.                          -->
+<#-- The including template must provide the language specific parts:                                     -->
+<#--   newInstance : The prefix needed to create an instance ("new " in Java)                              -->
+<#--   listOf      : The function that creates an immutable list                                           -->
+<#--   codeString  : A function that turns a value into a String literal                                   -->
+<#--   sortedMap   : A macro that creates a sorted map (keyType, keySuffix, mappings)                      -->
+<#assign exprPackage="nl.basjes.modbus.schema.expression">
+<#macro notImplemented expr>${listOf}(<#list expr.notImplemented as notImplementedHexList>"${notImplementedHexList?join("")}"<#sep>, </#sep></#list>)</#macro>
+<#macro modbusAddress address>nl.basjes.modbus.device.api.Address.of(nl.basjes.modbus.device.api.AddressClass.${address.addressClass.enumName}, ${address.physicalAddress?c})</#macro>
+<#macro addresses expr><#list expr.requiredAddresses as address><@modbusAddress address/><#sep>, </#sep></#list></#macro>
+<#macro expression expr>
+<#local folded = foldConstants(expr)>
+<#switch expressionType(folded)>
+<#on "ExpressionGetModbusDiscretes">${newInstance}${exprPackage}.modbus.DiscreteModbusExpression(<@modbusAddress folded.address/>)<#t>
+<#on "ExpressionBooleanConstant">${newInstance}${exprPackage}.booleans.BooleanConstant(${codeString(folded.value)})<#t>
+<#on "ExpressionBooleanBitset">${newInstance}${exprPackage}.booleans.BooleanBitset(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>, ${folded.bitNr?c})<#t>
+<#on "ExpressionBooleanField">${newInstance}${exprPackage}.booleans.BooleanField(${codeString(folded.fieldName)})<#t>
+<#on "ExpressionRegistersConstant">${newInstance}${exprPackage}.registers.RegistersConstantExpression(${codeString(folded.value)})<#t>
+<#on "ExpressionGetModbusRegisters">${newInstance}${exprPackage}.modbus.RegistersModbusExpression(${listOf}(<@addresses folded/>))<#t>
+<#on "ExpressionSwapBytes">${newInstance}${exprPackage}.registers.SwapBytes(<@expression folded.registers/>)<#t>
+<#on "ExpressionSwapEndian">${newInstance}${exprPackage}.registers.SwapEndian(<@expression folded.registers/>)<#t>
+<#on "ExpressionLongConstant">${newInstance}${exprPackage}.numbers.LongConstant(${folded.value?c}L)<#t>
+<#on "ExpressionDoubleConstant">${newInstance}${exprPackage}.numbers.DoubleConstant(${doubleLiteral(folded.value)})<#t>
+<#on "ExpressionNumericalField">${newInstance}${exprPackage}.numbers.NumericalField(${codeString(folded.fieldName)})<#t>
+<#on "ExpressionAdd">${newInstance}${exprPackage}.numbers.Add(<@expression folded.left/>, <@expression folded.right/>)<#t>
+<#on "ExpressionSubtract">${newInstance}${exprPackage}.numbers.Subtract(<@expression folded.left/>, <@expression folded.right/>)<#t>
+<#on "ExpressionMultiply">${newInstance}${exprPackage}.numbers.Multiply(<@expression folded.left/>, <@expression folded.right/>)<#t>
+<#on "ExpressionDivide">${newInstance}${exprPackage}.numbers.Divide(<@expression folded.left/>, <@expression folded.right/>)<#t>
+<#on "ExpressionPower">${newInstance}${exprPackage}.numbers.Power(<@expression folded.left/>, <@expression folded.right/>)<#t>
+<#on "ExpressionIEEE754Float32">${newInstance}${exprPackage}.numbers.IEEE754Float32(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionIEEE754Float64">${newInstance}${exprPackage}.numbers.IEEE754Float64(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionIntegerSigned16">${newInstance}${exprPackage}.numbers.IntegerSigned16(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionIntegerSigned32">${newInstance}${exprPackage}.numbers.IntegerSigned32(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionIntegerSigned64">${newInstance}${exprPackage}.numbers.IntegerSigned64(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionIntegerUnsigned16">${newInstance}${exprPackage}.numbers.IntegerUnsigned16(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionIntegerUnsigned32">${newInstance}${exprPackage}.numbers.IntegerUnsigned32(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionIntegerUnsigned64">${newInstance}${exprPackage}.numbers.IntegerUnsigned64(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionBitsetStringList">${newInstance}${exprPackage}.strings.BitsetStringList(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>, <@sortedMap keyType="Int" keySuffix="" mappings=folded.mappings/>)<#t>
+<#on "ExpressionStringConstant">${newInstance}${exprPackage}.strings.StringConstant(${codeString(folded.value)})<#t>
+<#on "ExpressionEnumString">${newInstance}${exprPackage}.strings.EnumString(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>, <@sortedMap keyType="Long" keySuffix="L" mappings=folded.mappings/>)<#t>
+<#on "ExpressionEui48String">${newInstance}${exprPackage}.strings.Eui48String(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionHexString">${newInstance}${exprPackage}.strings.HexString(<@expression folded.subExpressions[0]/>)<#t>
+<#on "ExpressionIPv4AddrString">${newInstance}${exprPackage}.strings.IPv4AddrString(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionIPv6AddrString">${newInstance}${exprPackage}.strings.IPv6AddrString(<@expression folded.subExpressions[0]/>, <@notImplemented folded/>)<#t>
+<#on "ExpressionStringConcat">${newInstance}${exprPackage}.strings.StringConcat(${listOf}(<#list folded.expressions as subExpression><@expression subExpression/><#sep>, </#sep></#list>))<#t>
+<#on "ExpressionStringField">${newInstance}${exprPackage}.strings.StringField(${codeString(folded.fieldName)})<#t>
+<#on "ExpressionStringFromNumber">${newInstance}${exprPackage}.strings.StringFromNumber(<@expression folded.numericalExpression/>)<#t>
+<#on "ExpressionStringFromBoolean">${newInstance}${exprPackage}.strings.StringFromBoolean(<@expression folded.booleanExpression/>, ${codeString(folded.zeroString)}, ${codeString(folded.oneString)})<#t>
+<#on "ExpressionUTF8String">${newInstance}${exprPackage}.strings.UTF8String(<@expression folded.subExpressions[0]/>)<#t>
+<#default>@@@ ERROR: MISSING EXPRESSION TYPE IN TEMPLATE @@@<#t>
+</#switch>
+</#macro>
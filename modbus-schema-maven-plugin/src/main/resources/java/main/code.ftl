@@ -14,6 +14,12 @@
 <#-- See the License for the specific language governing permissions and      -->
 <#-- limitations under the License.                                           -->
 <#--                                                                          -->
+<#-- The language specific parts needed by the shared constructExpression.ftl -->
+<#assign newInstance="new ">
+<#assign listOf="java.util.List.of">
+<#function codeString value><#return "\"" + escapeForJava(value) + "\""></#function>
+<#macro sortedMap keyType keySuffix mappings>new java.util.TreeMap<>(java.util.Map.ofEntries(<#list mappings as key, value>java.util.Map.entry(${key?c}${keySuffix}, ${codeString(value)})<#sep>, </#sep></#list>))</#macro>
+<#include "/constructExpression.ftl">
 //
 // Generated using the nl.basjes.modbus:modbus-schema-maven-plugin:${pluginVersion}
 // Using the builtin template to generate Java MAIN code.
@@ -52,6 +58,11 @@ public class ${asClassName(className)} {
 
     public ${asClassName(className)}() {
         schemaDevice.initialize();
+<#if fetchPlans??>
+<#list fetchPlans as fetchPlan>
+        schemaDevice.addFetchPlan(nl.basjes.modbus.schema.fetcher.FetchPlan.fromTable(java.util.List.of(<#list fetchPlan.blockIds as blockId>${codeString(blockId)}<#sep>, </#sep></#list>), "${fetchPlan.toTable()}"));
+</#list>
+</#if>
     }
 
     public final SchemaDevice schemaDevice = new SchemaDevice();
@@ -236,6 +247,7 @@ public class ${asClassName(className)} {
                            .id("${field.id}")
                            .description("${escapeForJava(field.description)}")
                            .expression("${escapeForJava(field.parsedExpression.toString())}")
+                           .parsedExpression(<@expression field.parsedExpression/>)
                            .unit("${field.unit}")
                            .immutable(${field.immutable?string('true', 'false')})
                            .system(${field.system?string('true', 'false')})
@@ -247,6 +259,37 @@ public class ${asClassName(className)} {
             public ${jvmReturnType(field.returnType)} getValue() {
                 return field.get${asClassName(valueGetter(field.returnType))}();
             }
+<#assign fieldValueGetter=valueGetter(field.returnType)>
+<#if fieldValueGetter == "doubleValue" || fieldValueGetter == "longValue">
+
+            /**
+             * The value as a primitive double (without boxing)
+             * @param defaultValue The value to return if there is no value
+             */
+            public double getAsDouble(double defaultValue) {
+                return field.getAsDouble(defaultValue);
+            }
+</#if>
+<#if fieldValueGetter == "longValue">
+
+            /**
+             * The value as a primitive long (without boxing)
+             * @param defaultValue The value to return if there is no value
+             */
+            public long getAsLong(long defaultValue) {
+                return field.getAsLong(defaultValue);
+            }
+</#if>
+<#if fieldValueGetter == "booleanValue">
+
+            /**
+             * The value as a primitive boolean
+             * @param defaultValue The value to return if there is no value
+             */
+            public boolean getAsBoolean(boolean defaultValue) {
+                return field.getAsBoolean(defaultValue);
+            }
+</#if>
         }
 </#list>
 
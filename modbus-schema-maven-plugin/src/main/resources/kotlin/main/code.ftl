@@ -14,6 +14,12 @@
 <#-- See the License for the specific language governing permissions and      -->
 <#-- limitations under the License.                                           -->
 <#--                                                                          -->
+<#-- The language specific parts needed by the shared constructExpression.ftl -->
+<#assign newInstance="">
+<#assign listOf="listOf">
+<#function codeString value><#return "\"" + escapeForJava(value)?replace("$", "\\$") + "\""></#function>
+<#macro sortedMap keyType keySuffix mappings>sortedMapOf<${keyType}, String>(<#list mappings as key, value>${key?c}${keySuffix} to ${codeString(value)}<#sep>, </#sep></#list>)</#macro>
+<#include "/constructExpression.ftl">
 //
 // Generated using the nl.basjes.modbus:modbus-schema-maven-plugin:${pluginVersion}
 // Using the builtin template to generate Kotlin MAIN code.
@@ -168,12 +174,35 @@ open class ${asClassName(className)} {
                  .id("${field.id}")
                  .description("${escapeForJava(field.description)}")
                  .expression("${escapeForJava(field.parsedExpression.toString())}")
+                 .parsedExpression(<@expression field.parsedExpression/>)
                  .unit("${field.unit}")
                  .immutable(${field.immutable?string('true', 'false')})
                  .system(${field.system?string('true', 'false')})
                  .fetchGroup("${field.fetchGroup}")
                  .build()) {
             override val value get() = field.${asVariableName(valueGetter(field.returnType))}
+<#assign fieldValueGetter=valueGetter(field.returnType)>
+<#if fieldValueGetter == "doubleValue" || fieldValueGetter == "longValue">
+            /**
+             * The value as a primitive double (without boxing)
+             * @param default The value to return if there is no value
+             */
+            fun getAsDouble(default: Double): Double = field.getAsDouble(default)
+</#if>
+<#if fieldValueGetter == "longValue">
+            /**
+             * The value as a primitive long (without boxing)
+             * @param default The value to return if there is no value
+             */
+            fun getAsLong(default: Long): Long = field.getAsLong(default)
+</#if>
+<#if fieldValueGetter == "booleanValue">
+            /**
+             * The value as a primitive boolean
+             * @param default The value to return if there is no value
+             */
+            fun getAsBoolean(default: Boolean): Boolean = field.getAsBoolean(default)
+</#if>
         }
 </#list>
 
@@ -224,6 +253,11 @@ open class ${asClassName(className)} {
 
     init {
         require(schemaDevice.initialize()) { "Unable to initialize schema device" }
+<#if fetchPlans??>
+<#list fetchPlans as fetchPlan>
+        schemaDevice.addFetchPlan(nl.basjes.modbus.schema.fetcher.FetchPlan.fromTable(listOf(<#list fetchPlan.blockIds as blockId>${codeString(blockId)}<#sep>, </#sep></#list>), "${fetchPlan.toTable()}"))
+</#list>
+</#if>
     }
 
 }
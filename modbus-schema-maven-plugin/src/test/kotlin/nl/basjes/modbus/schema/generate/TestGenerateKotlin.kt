@@ -20,6 +20,8 @@ import nl.basjes.modbus.schema.toSchemaDevice
 import java.io.StringWriter
 import kotlin.test.Test
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
 
 class TestGenerateKotlin: QuickTestDevice() {
 
@@ -63,4 +65,43 @@ class TestGenerateKotlin: QuickTestDevice() {
         )
         log.info("\n$output")
     }
+
+    @Test
+    fun generateKotlinFoldsConstants() {
+        val schema = """
+            description: 'Constant folding'
+            schemaFeatureLevel: 2
+            blocks:
+              - id: 'Block'
+                description: 'Block'
+                fields:
+                  - id: 'Scaled'
+                    description: 'Scaled'
+                    expression: 'int16(hr:0) * 10^2'
+                  - id: 'Offset'
+                    description: 'Offset'
+                    expression: 'int16(hr:1) + 0.5 * 3'
+                  - id: 'Constant'
+                    description: 'Constant'
+                    expression: '3 + 4'
+            """.trimIndent()
+        val output = StringWriter()
+        Generator(log).generate(
+            schema.toSchemaDevice(),
+            null,
+            "kotlin",
+            "main",
+            "nl.klokko.demo",
+            "Foo",
+            output,
+        )
+        val code = output.toString()
+        log.info("\n$code")
+        val numbers = "nl.basjes.modbus.schema.expression.numbers"
+        assertTrue(code.contains("$numbers.Multiply($numbers.IntegerSigned16("), "Missing Multiply")
+        assertTrue(code.contains("$numbers.LongConstant(100L))"), "10^2 was not folded")
+        assertTrue(code.contains("$numbers.DoubleConstant(1.5))"), "0.5 * 3 was not folded")
+        assertTrue(code.contains(".parsedExpression($numbers.LongConstant(7L))"), "3 + 4 was not folded")
+        assertFalse(code.contains("$numbers.Power("), "Power was not folded")
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Modbus Schema Toolkit
+ * Copyright (C) 2019-2025 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.modbus.schema.generate
+
+import java.io.File
+import kotlin.io.path.createTempDirectory
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class TestGenerateMultiple: QuickTestDevice() {
+
+    private val log = PluginLoggerToLog4J()
+
+    @Test
+    fun checkClassNameOf() {
+        val generator = Generator(log)
+        assertEquals("QuickTestDevice", generator.classNameOf("SchemaReferenceTest/QuickTestDevice.yaml"))
+        assertEquals("SunspecSmaInverter", generator.classNameOf("schemas/sunspec-sma_inverter.yaml"))
+    }
+
+    @Test
+    fun generateMultipleSchemas() {
+        val basedir = createTempDirectory("modbus-schema-generate").toFile()
+        try {
+            val schemaDirectory = File(basedir, "schemas")
+            schemaDirectory.mkdirs()
+            val schema = testDevice().use { it.readBytes() }
+            File(schemaDirectory, "first-device.yaml").writeBytes(schema)
+            File(schemaDirectory, "second_device.yaml").writeBytes(schema)
+            val outputDirectory = File(basedir, "generated")
+
+            fun generate() =
+                Generator(log)
+                    .executeAll(
+                        basedir,
+                        outputDirectory,
+                        listOf(
+                            ModbusSchema("schemas/*.yaml"),
+                            ModbusSchema("SchemaReferenceTest/QuickTestDevice.yaml", "nl.klokko.other", "Foo"),
+                        ),
+                        null,
+                        "nl.klokko.demo",
+                        "kotlin",
+                        "main",
+                    ).map { it.relativeTo(outputDirectory).path }
+                    .sorted()
+
+            assertEquals(
+                listOf(
+                    "kotlin/nl/klokko/demo/FirstDevice.kt",
+                    "kotlin/nl/klokko/demo/SecondDevice.kt",
+                    "kotlin/nl/klokko/other/Foo.kt",
+                ),
+                generate(),
+            )
+
+            // Nothing changed so nothing is generated again
+            assertTrue(generate().isEmpty())
+
+            // Only the changed schema is generated again
+            File(schemaDirectory, "second_device.yaml").appendText("\n# A change\n")
+            assertEquals(listOf("kotlin/nl/klokko/demo/SecondDevice.kt"), generate())
+        } finally {
+            basedir.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun regenerateOnChangedIncludedTemplate() {
+        val basedir = createTempDirectory("modbus-schema-generate").toFile()
+        try {
+            File(basedir, "schema.yaml").writeBytes(testDevice().use { it.readBytes() })
+
+            // A copy of the builtin templates
+            val templateDirectory = File(basedir, "templates")
+            for (template in listOf("filename.ftl", "code.ftl")) {
+                copyResource("/kotlin/main/$template", File(templateDirectory, "main/$template"))
+            }
+            val outputDirectory = File(basedir, "generated")
+
+            fun generate() =
+                Generator(log)
+                    .executeAll(
+                        basedir,
+                        outputDirectory,
+                        listOf(ModbusSchema("schema.yaml")),
+                        templateDirectory,
+                        "nl.klokko.demo",
+                        "kotlin",
+                        "main",
+                    ).map { it.relativeTo(outputDirectory).path }
+
+            assertEquals(listOf("kotlin/nl/klokko/demo/Schema.kt"), generate())
+            assertTrue(generate().isEmpty())
+
+            // The included template is found in the template directory before the shared one
+            val includedTemplate = File(templateDirectory, "main/constructExpression.ftl")
+            copyResource("/common/constructExpression.ftl", includedTemplate)
+            includedTemplate.appendText("<#-- A change -->\n")
+            assertEquals(listOf("kotlin/nl/klokko/demo/Schema.kt"), generate())
+            assertTrue(generate().isEmpty())
+
+            includedTemplate.appendText("<#-- Another change -->\n")
+            assertEquals(listOf("kotlin/nl/klokko/demo/Schema.kt"), generate())
+        } finally {
+            basedir.deleteRecursively()
+        }
+    }
+
+    private fun copyResource(
+        resource: String,
+        target: File,
+    ) {
+        target.parentFile.mkdirs()
+        target.writeBytes(requireNotNull(javaClass.getResourceAsStream(resource)).use { it.readBytes() })
+    }
+}